@@ -0,0 +1,163 @@
+package unimelb.ds.project1;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONObject;
+
+import unimelb.ds.project1.GlobalConstants.MessageTag;
+import unimelb.ds.project1.GlobalConstants.MessageType;
+
+/**
+ * This singleton class decides whether a new client connection is accepted,
+ * based on the number of connected clients, the backlog of requests, the free
+ * heap and the latency of recent requests. A client which is not accepted is
+ * routed to the main hall of a less loaded server if there is one, or told
+ * that the server is busy.
+ * 
+ * @author Sewwandi Perera
+ *
+ */
+public class AdmissionControl {
+	/**
+	 * Singleton instance of the class
+	 */
+	private static AdmissionControl instance = new AdmissionControl();
+
+	/**
+	 * Number of open client connections
+	 */
+	private AtomicInteger connections;
+
+	/**
+	 * Latencies of client requests
+	 */
+	private LatencyHistogram latencies;
+
+	/**
+	 * Private constructor of the singleton class
+	 */
+	private AdmissionControl() {
+		connections = new AtomicInteger();
+		latencies = new LatencyHistogram(10000);
+	}
+
+	/**
+	 * Get singleton instance of the class.
+	 * 
+	 * @return
+	 */
+	public static AdmissionControl getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Decide whether to accept a new client connection. A rejected connection
+	 * is answered and closed.
+	 * 
+	 * @param socket
+	 * @return true if the connection was accepted
+	 */
+	public boolean admit(Socket socket) {
+		String reason = getOverloadReason();
+		if (reason == null) {
+			Metrics.getInstance().set("client.connections", connections.incrementAndGet());
+			return true;
+		}
+		Metrics.getInstance().increment("admission.reason." + reason);
+		Server server = LoadTracker.getInstance().findLessLoadedServer();
+		JSONObject reply;
+		if (server != null) {
+			Metrics.getInstance().increment("admission.routed");
+			reply = createRouteMessage(server);
+			System.out.println(Thread.currentThread().getName() + ": overloaded (" + reason
+					+ "), routing a new client to the server " + server.getId());
+		} else {
+			Metrics.getInstance().increment("admission.rejected");
+			reply = createBusyMessage(ServerData.getInstance().getConfig().getBusyRetry());
+			System.out.println(Thread.currentThread().getName() + ": overloaded (" + reason
+					+ "), rejecting a new client");
+		}
+		try {
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+			out.write(reply + "\n");
+			out.flush();
+		} catch (IOException e) {
+			System.err.println(Thread.currentThread().getName() + ": error while rejecting a client: " + e.getMessage());
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		return false;
+	}
+
+	/**
+	 * Record that an accepted connection was closed.
+	 */
+	public void connectionClosed() {
+		Metrics.getInstance().set("client.connections", connections.decrementAndGet());
+	}
+
+	/**
+	 * Record the time a client request took from reading to its reply.
+	 * 
+	 * @param millis
+	 */
+	public void recordLatency(long millis) {
+		latencies.record(millis);
+	}
+
+	/**
+	 * Find the first limit this server is over.
+	 * 
+	 * @return name of the limit, or null if the server can take more clients
+	 */
+	private String getOverloadReason() {
+		Config config = ServerData.getInstance().getConfig();
+		if (config.getMaxConnections() > 0 && connections.get() >= config.getMaxConnections()) {
+			return "connections";
+		}
+		if (config.getMaxBacklog() > 0 && ClientWorker.getRequestBacklog()
+				+ CoordinationClient.getInstance().getInFlight() >= config.getMaxBacklog()) {
+			return "backlog";
+		}
+		if (config.getMinFreeHeap() > 0) {
+			Runtime runtime = Runtime.getRuntime();
+			long used = runtime.totalMemory() - runtime.freeMemory();
+			if (runtime.maxMemory() - used < config.getMinFreeHeap() * runtime.maxMemory()) {
+				return "heap";
+			}
+		}
+		if (config.getMaxLatency() > 0) {
+			long latency = latencies.getPercentile(config.getLatencyPercentile());
+			Metrics.getInstance().set("admission.latency.ms", latency);
+			if (latency > config.getMaxLatency()) {
+				return "latency";
+			}
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject createRouteMessage(Server server) {
+		JSONObject route = new JSONObject();
+		route.put(MessageTag.type.name(), MessageType.route.name());
+		route.put(MessageTag.roomid.name(), GlobalConstants.MAIN_HALL_PREFIX + server.getId());
+		route.put(MessageTag.host.name(), server.getIp());
+		route.put(MessageTag.port.name(), Integer.toString(server.getClientPort()));
+		return route;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject createBusyMessage(long retryAfter) {
+		JSONObject busy = new JSONObject();
+		busy.put(MessageTag.type.name(), MessageType.busy.name());
+		busy.put(MessageTag.serverid.name(), ServerData.getInstance().getMyData().getId());
+		busy.put(MessageTag.retryafter.name(), Long.toString(retryAfter));
+		return busy;
+	}
+}
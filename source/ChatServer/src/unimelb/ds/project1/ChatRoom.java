@@ -1,7 +1,8 @@
 package unimelb.ds.project1;
 
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -27,9 +28,14 @@ public class ChatRoom {
 	private String ownerId;
 
 	/**
-	 * Thread safe list of members in the chat room
+	 * Members in the chat room by the handles of their identities
 	 */
-	private Map<String, ClientWorker> members;
+	private MemberSet members;
+
+	/**
+	 * Handles of the identities of members
+	 */
+	private SymbolTable symbols;
 
 	/**
 	 * Chat room can block broadcasting chat messages to group members in
@@ -38,6 +44,27 @@ public class ChatRoom {
 	 */
 	private boolean blockChatMessages = false;
 
+	/**
+	 * Recent chat messages of the room, null if the room keeps no history
+	 */
+	private MessageHistory history;
+
+	/**
+	 * Whether a history was already allocated or refused for the room
+	 */
+	private boolean historyRequested = false;
+
+	/**
+	 * Joins (true) and leaves (false) not yet sent to the members which get
+	 * summaries, in the order they happened
+	 */
+	private Map<String, Boolean> pendingPresence = new LinkedHashMap<String, Boolean>();
+
+	/**
+	 * Whether a summary of the pending joins and leaves is scheduled
+	 */
+	private boolean presenceScheduled = false;
+
 	/**
 	 * Constructor of the chat room
 	 * 
@@ -49,7 +76,9 @@ public class ChatRoom {
 	public ChatRoom(String id, String owner) {
 		this.id = id;
 		this.ownerId = owner;
-		this.members = new ConcurrentHashMap<String, ClientWorker>();
+		ServerData serverData = ServerData.getInstance();
+		this.members = new MemberSet(serverData.getSessionTable(), serverData.getConfig().getBitsetMembers());
+		this.symbols = serverData.getSymbols();
 	}
 
 	/**
@@ -59,8 +88,24 @@ public class ChatRoom {
 	 *            member identifier
 	 */
 	public synchronized void ifContainsRemoveMember(String member) {
-		if (members.containsKey(member)) {
-			members.remove(member);
+		int handle = symbols.lookup(member);
+		if (members.remove(handle)) {
+			ServerData.getInstance().releaseHandle(handle);
+		}
+	}
+
+	/**
+	 * Thread safe method to remove a member from the chat room, if the member
+	 * is still handled by the given worker
+	 * 
+	 * @param member
+	 *            member identifier
+	 * @param worker
+	 */
+	public synchronized void removeMember(String member, ClientWorker worker) {
+		int handle = symbols.lookup(member);
+		if (members.remove(handle, worker)) {
+			ServerData.getInstance().releaseHandle(handle);
 		}
 	}
 
@@ -73,7 +118,11 @@ public class ChatRoom {
 	 *            {@link ClientWorker} thread of the new member
 	 */
 	public synchronized void addMember(String id, ClientWorker worker) {
-		this.members.put(id, worker);
+		int handle = symbols.acquire(id);
+		if (!members.add(handle, worker)) {
+			// the member held the handle already
+			ServerData.getInstance().releaseHandle(handle);
+		}
 	}
 
 	/**
@@ -92,11 +141,202 @@ public class ChatRoom {
 		}
 		System.out.println(
 				Thread.currentThread().getName() + ": Broadcasting message \"" + message + "\" to the group " + id);
-		for (ClientWorker worker : members.values()) {
-			worker.sendMessage(message, false);
+		for (int i = members.next(0); i >= 0; i = members.next(i + 1)) {
+			members.workerAt(i).sendMessage(message, false);
+		}
+		if (chatMessage) {
+			recordHistory(message);
+			MessageLog log = ServerData.getInstance().getMessageLog();
+			if (log != null) {
+				log.append(id, message);
+			}
 		}
 	}
 
+	/**
+	 * Thread safe method to relay a chat message which is already encoded to
+	 * all members in the group except its sender. The same frame is written to
+	 * every member, recorded in the history and queued for the message log.
+	 * 
+	 * @param frame
+	 *            chat message as broadcast to the group, including its line end
+	 * @param sender
+	 *            {@link ClientWorker} thread of the sender
+	 */
+	public synchronized void relayMessage(String frame, ClientWorker sender) {
+		if (blockChatMessages) {
+			return;
+		}
+		for (int i = members.next(0); i >= 0; i = members.next(i + 1)) {
+			ClientWorker worker = members.workerAt(i);
+			if (worker != sender) {
+				worker.relayFrame(frame);
+			}
+		}
+		recordFrame(frame);
+		MessageLog log = ServerData.getInstance().getMessageLog();
+		if (log != null) {
+			log.appendFrame(id, frame);
+		}
+	}
+
+	/**
+	 * Thread safe method to broadcast that a client joined or left the room.
+	 * Members which asked for summaries get the change in the next summary of
+	 * the room instead, unless they are the client which moved. A client which
+	 * joins and leaves again before the summary is sent is left out of it.
+	 * 
+	 * @param roomChange
+	 *            room change message of the client
+	 */
+	public synchronized void sendRoomChange(JSONObject roomChange) {
+		long window = ServerData.getInstance().getConfig().getPresenceWindow();
+		if (window <= 0) {
+			sendMessage(roomChange, false);
+			return;
+		}
+		System.out.println(
+				Thread.currentThread().getName() + ": Broadcasting message \"" + roomChange + "\" to the group " + id);
+		String identity = (String) roomChange.get(MessageTag.identity.name());
+		int handle = symbols.lookup(identity);
+		boolean coalesced = false;
+		for (int i = members.next(0); i >= 0; i = members.next(i + 1)) {
+			ClientWorker worker = members.workerAt(i);
+			if (worker.wantsPresenceSummaries() && members.handleAt(i) != handle) {
+				coalesced = true;
+			} else {
+				worker.sendMessage(roomChange, false);
+			}
+		}
+		if (!coalesced) {
+			return;
+		}
+		Metrics.getInstance().increment("presence.coalesced");
+
+		// a join and a leave of the same client cancel out
+		boolean joined = id.equals(roomChange.get(MessageTag.roomid.name()));
+		Boolean pending = pendingPresence.get(identity);
+		if (pending != null && pending != joined) {
+			pendingPresence.remove(identity);
+			Metrics.getInstance().add("presence.cancelled", 2);
+		} else {
+			pendingPresence.put(identity, joined);
+		}
+		if (!presenceScheduled) {
+			presenceScheduled = true;
+			ServerData.getInstance().getTimerWheel()
+					.schedule(() -> ClientWorker.execute(() -> sendPresenceSummary()), window);
+		}
+	}
+
+	/**
+	 * Thread safe method to send the pending joins and leaves of the room to
+	 * the members which asked for summaries.
+	 */
+	public synchronized void sendPresenceSummary() {
+		presenceScheduled = false;
+		if (pendingPresence.isEmpty()) {
+			return;
+		}
+		JSONObject summary = createPresenceSummary();
+		pendingPresence.clear();
+		int sent = 0;
+		for (int i = members.next(0); i >= 0; i = members.next(i + 1)) {
+			ClientWorker worker = members.workerAt(i);
+			if (worker.wantsPresenceSummaries() && worker.sendMessage(summary, false)) {
+				sent++;
+			}
+		}
+		Metrics.getInstance().increment("presence.summaries");
+		Metrics.getInstance().add("presence.summaries.sent", sent);
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject createPresenceSummary() {
+		JSONArray joined = new JSONArray();
+		JSONArray left = new JSONArray();
+		for (Map.Entry<String, Boolean> change : pendingPresence.entrySet()) {
+			if (change.getValue()) {
+				joined.add(change.getKey());
+			} else {
+				left.add(change.getKey());
+			}
+		}
+		JSONObject summary = new JSONObject();
+		summary.put(MessageTag.type.name(), MessageType.presence.name());
+		summary.put(MessageTag.roomid.name(), id);
+		summary.put(MessageTag.joined.name(), joined);
+		summary.put(MessageTag.left.name(), left);
+		return summary;
+	}
+
+	/**
+	 * Thread safe method to send the recent chat messages of the room to a
+	 * member which just joined. The messages are sent before any later
+	 * broadcast, since both hold the lock of the room.
+	 * 
+	 * @param worker
+	 *            {@link ClientWorker} thread of the new member
+	 */
+	public void replayHistory(ClientWorker worker) {
+		replayHistory(worker, 0);
+	}
+
+	/**
+	 * Thread safe method to send the chat messages of the room since the given
+	 * time to a member, such as a client resuming its session which only
+	 * missed the messages since it was disconnected.
+	 * 
+	 * @param worker
+	 *            {@link ClientWorker} thread of the member
+	 * @param since
+	 *            time in milliseconds
+	 */
+	public synchronized void replayHistory(ClientWorker worker, long since) {
+		if (history == null) {
+			return;
+		}
+		long maxAge = ServerData.getInstance().getConfig().getHistoryAge();
+		if (maxAge > 0) {
+			since = Math.max(since, System.currentTimeMillis() - maxAge);
+		}
+		List<String> frames = history.getMessagesSince(since);
+		if (!frames.isEmpty()) {
+			worker.sendFrames(frames);
+			Metrics.getInstance().add("history.replayed", frames.size());
+		}
+	}
+
+	/**
+	 * Thread safe method to free the history of the room when it is deleted.
+	 */
+	public synchronized void releaseHistory() {
+		if (history != null) {
+			history.release();
+			history = null;
+		}
+	}
+
+	private void recordHistory(JSONObject message) {
+		if (hasHistory()) {
+			history.append(message + "\n");
+		}
+	}
+
+	private void recordFrame(String frame) {
+		if (hasHistory()) {
+			history.append(frame);
+		}
+	}
+
+	private boolean hasHistory() {
+		if (!historyRequested) {
+			historyRequested = true;
+			history = MessageHistory.allocate(ServerData.getInstance().getConfig());
+		}
+		return history != null;
+	}
+
 	/**
 	 * Thread safe method to prepare the room to be deleted. First of all, all
 	 * chat messages are blocked, because since we are going to delete the room
@@ -114,6 +354,7 @@ public class ChatRoom {
 	@SuppressWarnings("unchecked")
 	public synchronized void prepareToDelete(ChatRoom newRoom, boolean ownerQuit) {
 		this.blockChatMessages = true;
+		releaseHistory();
 
 		JSONObject roomChangeMessage = new JSONObject();
 		roomChangeMessage.put(MessageTag.type.name(), MessageType.roomchange.name());
@@ -124,27 +365,33 @@ public class ChatRoom {
 		if (ownerQuit) {
 			roomChangeMessage.put(MessageTag.identity.name(), ownerId);
 			roomChangeMessage.put(MessageTag.roomid.name(), "");
-			sendMessage(roomChangeMessage, false);
-			members.remove(ownerId);
+			sendRoomChange(roomChangeMessage);
+			ifContainsRemoveMember(ownerId);
 		}
 
 		// handle members
 		roomChangeMessage.put(MessageTag.roomid.name(), newRoom.getId());
-		Map<String, ClientWorker> membersClone = new ConcurrentHashMap<String, ClientWorker>(members);
-		for (String memberId : membersClone.keySet()) {
+		int[] handles = new int[members.size()];
+		ClientWorker[] workers = new ClientWorker[members.size()];
+		int count = 0;
+		for (int i = members.next(0); i >= 0; i = members.next(i + 1)) {
+			handles[count] = members.handleAt(i);
+			workers[count++] = members.workerAt(i);
+		}
+		for (int i = 0; i < count; i++) {
+			String memberId = symbols.getName(handles[i]);
 			roomChangeMessage.put(MessageTag.identity.name(), memberId);
-			ClientWorker worker = membersClone.get(memberId);
-
-			// remove the member from the chat room
-			members.remove(memberId);
+			ClientWorker worker = workers[i];
 
-			// add member to the new group
+			// add member to the new group, and remove it from the chat room
 			newRoom.addMember(memberId, worker);
+			members.remove(handles[i]);
+			ServerData.getInstance().releaseHandle(handles[i]);
 			worker.setChatRoom(newRoom.getId());
 
 			// broadcast messages to both groups
-			sendMessage(roomChangeMessage, false);
-			newRoom.sendMessage(roomChangeMessage, false);
+			sendRoomChange(roomChangeMessage);
+			newRoom.sendRoomChange(roomChangeMessage);
 		}
 	}
 
@@ -160,13 +407,22 @@ public class ChatRoom {
 		chatroom.put(MessageTag.roomid.name(), id);
 		chatroom.put(MessageTag.owner.name(), ownerId);
 		JSONArray members = new JSONArray();
-		for (String member : this.members.keySet()) {
-			members.add(member);
+		for (int i = this.members.next(0); i >= 0; i = this.members.next(i + 1)) {
+			members.add(symbols.getName(this.members.handleAt(i)));
 		}
 		chatroom.put(MessageTag.identities.name(), members);
 		return chatroom;
 	}
 
+	/**
+	 * Thread safe method to get the number of members in the chat room
+	 * 
+	 * @return
+	 */
+	public synchronized int getMemberCount() {
+		return members.size();
+	}
+
 	/**
 	 * Returns the identifier of the room
 	 * 
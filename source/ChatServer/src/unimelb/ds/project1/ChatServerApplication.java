@@ -1,5 +1,9 @@
 package unimelb.ds.project1;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * This runs the server application
  * 
@@ -15,9 +19,17 @@ public class ChatServerApplication {
 	 */
 	public void start(Config config) {
 		ServerData serverData = ServerData.getInstance();
+		serverData.setConfig(config);
+
+		// Start the timer wheel which expires locks
+		HashedTimerWheel timerWheel = new HashedTimerWheel(100, 512);
+		timerWheel.setName("Timer Wheel Thread");
+		timerWheel.start();
+		serverData.setTimerWheel(timerWheel);
 
 		// Store server details
-		for (Server server : config.readConfigFile()) {
+		List<Server> servers = config.readConfigFile();
+		for (Server server : servers) {
 			if (server.getId().equals(config.getServerId())) {
 				serverData.setMyData(server);
 			} else {
@@ -25,16 +37,125 @@ public class ChatServerApplication {
 			}
 		}
 
+		// Build the hash ring to find the owners of identities and room ids
+		if (config.isHashRing()) {
+			serverData.setHashRing(new ConsistentHashRing(servers));
+		}
+
+		// Start the log of chat messages
+		if (config.getLogDir() != null) {
+			final MessageLog messageLog = new MessageLog(config);
+			messageLog.setName("Message Log Thread");
+			messageLog.start();
+			serverData.setMessageLog(messageLog);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> messageLog.close()));
+		}
+		if (config.getLogDir() != null && config.getIndexInterval() > 0) {
+			MessageIndexer messageIndexer = new MessageIndexer(config);
+			messageIndexer.setName("Message Indexer Thread");
+			messageIndexer.start();
+			serverData.setMessageIndexer(messageIndexer);
+		}
+
+		// Pace the identity locks of new clients
+		if (config.getIdentityRate() > 0) {
+			IdentityAdmission identityAdmission = new IdentityAdmission(config);
+			identityAdmission.setName("Identity Admission Thread");
+			identityAdmission.start();
+			serverData.setIdentityAdmission(identityAdmission);
+		}
+
+		// Gather the messages to each client before sending them
+		if (config.getFlushDelay() > 0) {
+			OutputFlusher outputFlusher = new OutputFlusher(config);
+			outputFlusher.setName("Output Flusher Thread");
+			outputFlusher.start();
+			serverData.setOutputFlusher(outputFlusher);
+		}
+
 		// Create Main-hall chat room
 		ChatRoom mainhall = new ChatRoom(GlobalConstants.MAIN_HALL, "");
 		serverData.addChatRoom(mainhall);
 
-		// start threads to receive massages from other severs and clients
+		// Restore the chat rooms saved before the last shutdown
+		RoomSnapshot snapshot = null;
+		Map<String, String> restoredRooms = new HashMap<String, String>();
+		if (config.getSnapshotFile() != null) {
+			snapshot = new RoomSnapshot(config.getSnapshotFile());
+			for (Map.Entry<String, String> room : snapshot.read(config.getServerId()).entrySet()) {
+				if (serverData.restoreChatRoom(room.getKey(), room.getValue())) {
+					restoredRooms.put(room.getKey(), room.getValue());
+				}
+			}
+		}
+
+		// start threads to receive massages from other severs
 		Thread coordinationListner = new CoordinationListner(serverData.getMyData().getCoordinationPort());
 		coordinationListner.setName("Coordination Listner Thread");
+		coordinationListner.start();
+
+		// start sending heartbeats to other servers
+		Thread heartbeatSender = new HeartbeatSender(config.getHeartbeatInterval());
+		heartbeatSender.setName("Heartbeat Thread");
+		heartbeatSender.start();
+
+		// tell the other servers that this server joined, and get their
+		// state before accepting clients
+		ClusterMembership.getInstance().synchronize();
+		if (!restoredRooms.isEmpty()) {
+			announceRestoredRooms(restoredRooms, config.getOwnerGrace());
+		}
 		Thread clientCommunicationListner = new ClientListner(serverData.getMyData().getClientPort());
 		clientCommunicationListner.setName("Client Listner Thread");
-		coordinationListner.start();
 		clientCommunicationListner.start();
+
+		// follow changes of the config file
+		if (config.getConfigPollInterval() > 0) {
+			Thread configWatcher = new ConfigWatcher(config, config.getConfigPollInterval());
+			configWatcher.setName("Config Watcher Thread");
+			configWatcher.start();
+		}
+
+		// save the chat rooms periodically. There is no snapshot at shutdown,
+		// since the clients leaving then would delete their rooms from it.
+		if (snapshot != null) {
+			Thread snapshotWriter = new SnapshotWriter(snapshot, config.getSnapshotInterval());
+			snapshotWriter.setName("Snapshot Thread");
+			snapshotWriter.start();
+		}
+	}
+
+	/**
+	 * Tell the other servers about the restored chat rooms. A room which
+	 * another server created while this server was down is dropped. A room
+	 * whose owner does not come back within the grace time is deleted.
+	 * 
+	 * @param restoredRooms
+	 * @param ownerGrace
+	 */
+	private void announceRestoredRooms(Map<String, String> restoredRooms, long ownerGrace) {
+		final ServerData serverData = ServerData.getInstance();
+		for (Map.Entry<String, String> room : restoredRooms.entrySet()) {
+			final String roomId = room.getKey();
+			final String ownerId = room.getValue();
+			if (serverData.isOthersChatRoom(roomId)) {
+				serverData.deleteEmptyChatRoom(roomId, ownerId);
+				Metrics.getInstance().increment("snapshot.conflicts");
+				System.out.println("[ Restored room " + roomId + " was created by another server, dropping it ]");
+				continue;
+			}
+			Metrics.getInstance().increment("snapshot.restored");
+			serverData.getTimerWheel().schedule(() -> {
+				if (serverData.deleteUnclaimedChatRoom(roomId, ownerId)) {
+					Metrics.getInstance().increment("snapshot.unclaimed");
+					System.out.println("[ Owner " + ownerId + " of the restored room " + roomId + " did not return ]");
+					CoordinationClient.getInstance().sendAsync(
+							CoordinationWorker.createDeleteRoomNotification(serverData.getMyData().getId(), roomId),
+							serverData.getOtherServers());
+				}
+			}, ownerGrace);
+		}
+		ClusterMembership.getInstance().announceDirectory();
+		System.out.println("[ Restored the rooms " + serverData.getMyChatRoomOwners().keySet() + " ]");
 	}
 }
@@ -0,0 +1,107 @@
+package unimelb.ds.project1;
+
+/**
+ * Circuit breaker guarding the connections to another server. After a number
+ * of consecutive failures the circuit opens and requests fail straight away.
+ * When the open time has passed, one trial request is let through. The circuit
+ * closes again if it succeeds and opens again if it fails.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class CircuitBreaker {
+	/**
+	 * States of the circuit
+	 *
+	 * @author Sewwandi Perera
+	 *
+	 */
+	public enum State {
+		closed, open, halfopen;
+	}
+
+	/**
+	 * Identity of the guarded server
+	 */
+	private String serverId;
+
+	/**
+	 * Consecutive failures which open the circuit
+	 */
+	private int failureThreshold;
+
+	/**
+	 * Time in milliseconds the circuit stays open
+	 */
+	private long openMillis;
+
+	private State state = State.closed;
+	private int failures = 0;
+	private long openedTime = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param serverId
+	 * @param failureThreshold
+	 * @param openMillis
+	 */
+	public CircuitBreaker(String serverId, int failureThreshold, long openMillis) {
+		this.serverId = serverId;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Check whether a request may be sent to the server.
+	 *
+	 * @return
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+		case open:
+			if (System.currentTimeMillis() - openedTime < openMillis) {
+				return false;
+			}
+			// let one trial request through
+			changeState(State.halfopen);
+			return true;
+		case halfopen:
+			// a trial request is already in progress
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Record a successful request.
+	 */
+	public synchronized void recordSuccess() {
+		failures = 0;
+		if (state != State.closed) {
+			changeState(State.closed);
+		}
+	}
+
+	/**
+	 * Record a failed request.
+	 */
+	public synchronized void recordFailure() {
+		failures++;
+		if (state == State.halfopen || (state == State.closed && failures >= failureThreshold)) {
+			openedTime = System.currentTimeMillis();
+			changeState(State.open);
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	private void changeState(State newState) {
+		state = newState;
+		System.out.println("[ Circuit to server " + serverId + " is " + newState + " ]");
+		Metrics.getInstance().increment("circuit." + newState);
+	}
+}
@@ -30,6 +30,9 @@ public class ClientListner extends Thread {
 				threadCount++;
 				Socket socket = clientSocket.accept();
 				System.out.println(Thread.currentThread().getName() + ":Connected with client.");
+				if (!AdmissionControl.getInstance().admit(socket)) {
+					continue;
+				}
 				ClientWorker worker = new ClientWorker(socket);
 				worker.setName("ClientThread" + threadCount);
 				worker.start();
@@ -0,0 +1,108 @@
+package unimelb.ds.project1;
+
+import java.security.SecureRandom;
+
+/**
+ * Session of a client which can be resumed with its token after the
+ * connection drops. While the client is disconnected, its identity and rooms
+ * are kept for a grace period, so a client which reconnects in time continues
+ * where it left off.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class ClientSession {
+	/**
+	 * Source of session tokens
+	 */
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Identity of the client
+	 */
+	private String identity;
+
+	/**
+	 * Secret the client presents to resume the session
+	 */
+	private String token;
+
+	/**
+	 * Worker of the current or last connection of the client
+	 */
+	private ClientWorker worker;
+
+	/**
+	 * Whether the client is disconnected
+	 */
+	private boolean suspended = false;
+
+	/**
+	 * Timer which ends the session if the client does not come back
+	 */
+	private HashedTimerWheel.Timeout expiryTimer;
+
+	/**
+	 * Constructor
+	 *
+	 * @param identity
+	 * @param token
+	 * @param worker
+	 */
+	public ClientSession(String identity, String token, ClientWorker worker) {
+		this.identity = identity;
+		this.token = token;
+		this.worker = worker;
+	}
+
+	/**
+	 * Create a new random session token.
+	 *
+	 * @return
+	 */
+	public static String newToken() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b));
+		}
+		return token.toString();
+	}
+
+	public String getIdentity() {
+		return identity;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public void setToken(String token) {
+		this.token = token;
+	}
+
+	public ClientWorker getWorker() {
+		return worker;
+	}
+
+	public void setWorker(ClientWorker worker) {
+		this.worker = worker;
+	}
+
+	public boolean isSuspended() {
+		return suspended;
+	}
+
+	public void setSuspended(boolean suspended) {
+		this.suspended = suspended;
+	}
+
+	public HashedTimerWheel.Timeout getExpiryTimer() {
+		return expiryTimer;
+	}
+
+	public void setExpiryTimer(HashedTimerWheel.Timeout expiryTimer) {
+		this.expiryTimer = expiryTimer;
+	}
+}
@@ -7,8 +7,11 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -27,6 +30,37 @@ import unimelb.ds.project1.GlobalConstants.MessageType;
  *
  */
 public class ClientWorker extends Thread {
+	/**
+	 * Result of a message which was processed without waiting
+	 */
+	private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+	/**
+	 * Start of a relayed chat message, followed by the identity of the sender
+	 */
+	private static final String RELAY_IDENTITY = "{\"" + MessageTag.identity.name() + "\":\"";
+
+	/**
+	 * Part of a relayed chat message between the identity of the sender and
+	 * the content
+	 */
+	private static final String RELAY_CONTENT = "\",\"" + MessageTag.type.name() + "\":\"" + MessageType.message.name()
+			+ "\",\"" + MessageTag.content.name() + "\":";
+
+	/**
+	 * Threads which run pipelined read only requests of all clients
+	 */
+	private static final ExecutorService requestExecutor = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("RequestWorker"));
+
+	/**
+	 * Threads which write keepalive probes. A probe to a dead client may block
+	 * until the idle check closes the connection, so probes do not use the
+	 * threads shared with other requests.
+	 */
+	private static final ExecutorService probeExecutor = Executors
+			.newCachedThreadPool(new DaemonThreadFactory("ProbeWriter"));
+
 	/**
 	 * TCP socket to communicate with the client
 	 */
@@ -50,30 +84,104 @@ public class ClientWorker extends Thread {
 	/**
 	 * Identity of the client
 	 */
-	private String myIdentity;
+	private volatile String myIdentity;
 
 	/**
 	 * Identity of the chat room, to which the client currently belong
 	 */
-	private String myChatRoom;
+	private volatile String myChatRoom;
 
 	/**
 	 * This lock is used to block client from receiving chat messages in special
 	 * cases like client moving from one chat room to another.
 	 */
-	private boolean clientOutBufferBlocked = false;
+	private volatile boolean clientOutBufferBlocked = false;
 
 	/**
 	 * The exit flag is used to indicate the server that it should stop
 	 * listening to the client anymore.
 	 */
-	private boolean exit = false;
+	private volatile boolean exit = false;
 	
 	/**
 	 * This flag is used to indicate that client quits because he is moving to
 	 * another server.
 	 */
-	private boolean clientMovingToAnotherServer = false;
+	private volatile boolean clientMovingToAnotherServer = false;
+
+	/**
+	 * Processing of the messages read from the client. Each message is
+	 * processed after the previous one completes.
+	 */
+	private CompletableFuture<Void> processing = DONE;
+
+	/**
+	 * Limits the rate of messages read from the client
+	 */
+	private RateLimiter rateLimiter;
+
+	/**
+	 * Time the last message was read from the client
+	 */
+	private volatile long lastReadTime;
+
+	/**
+	 * Whether the client was sent a keepalive since its last message
+	 */
+	private volatile boolean probed = false;
+
+	/**
+	 * Next check whether the client is idle
+	 */
+	private volatile HashedTimerWheel.Timeout idleTimeout;
+
+	/**
+	 * Whether the session of the client is kept for a while when the
+	 * connection drops. It is not kept when the client quits or is
+	 * disconnected for misbehaving.
+	 */
+	private volatile boolean keepSession = true;
+
+	/**
+	 * Whether a new connection of the client took over its session
+	 */
+	private volatile boolean handedOver = false;
+
+	/**
+	 * Time the session of the client was suspended, 0 while it was not
+	 */
+	private volatile long suspendedTime = 0;
+
+	/**
+	 * Whether the client asked for summaries of the joins and leaves of its
+	 * room instead of single room changes
+	 */
+	private volatile boolean presenceSummaries = false;
+
+	/**
+	 * Number of messages written to the output but not flushed yet
+	 */
+	private int unflushedFrames = 0;
+
+	/**
+	 * Time in nanoseconds the first message not flushed yet was written
+	 */
+	private long unflushedSince;
+
+	/**
+	 * Relayed chat messages of the client are built here
+	 */
+	private StringBuilder relayBuffer = new StringBuilder(256);
+
+	/**
+	 * Identity the start of relayed chat messages was built for
+	 */
+	private String relayIdentity;
+
+	/**
+	 * Start of relayed chat messages of the client, up to the content
+	 */
+	private String relayPrefix;
 
 	/**
 	 * Constructor
@@ -89,6 +197,7 @@ public class ClientWorker extends Thread {
 			in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), "UTF-8"));
 			out = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream(), "UTF-8"));
 			serverData = ServerData.getInstance();
+			rateLimiter = new RateLimiter(serverData.getConfig());
 		} catch (IOException e) {
 			System.err.println(
 					Thread.currentThread().getName() + ": Error while creating client worker: " + e.getMessage());
@@ -120,8 +229,14 @@ public class ClientWorker extends Thread {
 	public void run() {
 		try {
 			String clientMsg = null;
+			lastReadTime = System.currentTimeMillis();
+			if (serverData.getConfig().getClientIdle() > 0) {
+				scheduleIdleCheck(serverData.getConfig().getClientIdle());
+			}
 			while ((clientMsg = in.readLine()) != null) {
-				processMessage(clientMsg);
+				lastReadTime = System.currentTimeMillis();
+				probed = false;
+				dispatchMessage(clientMsg);
 				if (exit) {
 					break;
 				}
@@ -133,50 +248,577 @@ public class ClientWorker extends Thread {
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		} finally {
-			// remove the client completely from the system
-			handleQuit();
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (IOException e) {
-					System.err.println(e.getMessage());
-					e.printStackTrace();
+			if (idleTimeout != null) {
+				idleTimeout.cancel();
+			}
+
+			// remove the client completely from the system once the messages
+			// already read are processed
+			processing.whenComplete((v, e) -> {
+				if (!handedOver && !suspendSession()) {
+					handleQuit();
 				}
+				flushOutput();
+				closeSocket();
+				AdmissionControl.getInstance().connectionClosed();
+				System.out.println(getName() + ": end of thread!");
+			});
+		}
+	}
+
+	/**
+	 * Keep the session of the client for the grace period after the
+	 * connection dropped, so that the client can resume it. The client is
+	 * silently taken out of its room meanwhile, and the room is kept even if
+	 * the client owns it.
+	 * 
+	 * @return true if the client should not be removed now
+	 */
+	private boolean suspendSession() {
+		long grace = serverData.getConfig().getSessionGrace();
+		if (grace <= 0 || !keepSession || myIdentity == null || clientMovingToAnotherServer) {
+			return false;
+		}
+		suspendedTime = System.currentTimeMillis();
+		if (!serverData.suspendSession(myIdentity, this, () -> requestExecutor.execute(() -> expireSession()),
+				grace)) {
+			return handedOver;
+		}
+		ChatRoom room = serverData.getChatRoom(myChatRoom);
+		if (room != null) {
+			room.removeMember(myIdentity, this);
+		}
+		System.out.println(getName() + ": keeping the session of the client " + myIdentity + " for " + grace + " ms");
+		return true;
+	}
+
+	/**
+	 * Remove the client if it did not resume its session in time.
+	 */
+	private void expireSession() {
+		if (serverData.expireSession(myIdentity, this)) {
+			System.out.println(getName() + ": the session of the client " + myIdentity + " expired");
+			handleQuit();
+		}
+	}
+
+	/**
+	 * Close the connection because a new connection of the client took over
+	 * its session. The client is not removed.
+	 */
+	public void handOver() {
+		handedOver = true;
+		exit = true;
+		closeSocket();
+	}
+
+	/**
+	 * Check whether the client is idle after the given delay. The check runs
+	 * on the timer wheel, and is scheduled again instead of being moved when
+	 * the client sends a message.
+	 * 
+	 * @param delay
+	 */
+	private void scheduleIdleCheck(long delay) {
+		idleTimeout = serverData.getTimerWheel().schedule(() -> checkIdle(), delay);
+	}
+
+	/**
+	 * Probe a client which sent no message for the idle time, and disconnect
+	 * it if it still sent nothing after the probe. The client leaves through
+	 * the normal quit handling once the socket is closed.
+	 */
+	private void checkIdle() {
+		if (exit || socket.isClosed()) {
+			return;
+		}
+		Config config = serverData.getConfig();
+		long idleTime = System.currentTimeMillis() - lastReadTime;
+		if (idleTime < config.getClientIdle()) {
+			scheduleIdleCheck(config.getClientIdle() - idleTime);
+			return;
+		}
+		if (!probed && config.getClientProbe() > 0) {
+			probed = true;
+			Metrics.getInstance().increment("client.probes");
+			// writing may block on a dead connection until the next check
+			// closes it, so neither on the wheel nor on the shared threads
+			probeExecutor.execute(() -> sendMessage(createKeepAliveMessage(), true));
+			scheduleIdleCheck(config.getClientProbe());
+			return;
+		}
+		Metrics.getInstance().increment("client.idle.closed");
+		System.out.println(getName() + ": closing the idle connection of the client " + myIdentity);
+		exit = true;
+		closeSocket();
+	}
+
+	/**
+	 * Close the connection with the client.
+	 */
+	private void closeSocket() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
 			}
-			System.out.println(Thread.currentThread().getName() + ": end of thread!");
 		}
 	}
 
 	/**
-	 * Process incoming messages from the client
+	 * Queue an incoming message for processing. Messages are processed in
+	 * order, but a message waiting for other servers does not stop this thread
+	 * from reading. Read only requests which the client tagged with a request
+	 * id are pipelined: they run concurrently once the state changing requests
+	 * before them are done.
 	 * 
 	 * @param messageString
 	 *            JSON string of message
 	 */
-	private void processMessage(String messageString) {
+	private void dispatchMessage(String messageString) {
 		System.out.println(Thread.currentThread().getName() + ": received a	message: " + messageString);
+		final long startTime = System.currentTimeMillis();
+
+		// find the type with a strict scan of the top level of the message, and
+		// drop messages over the rate limits before parsing them
+		long content = findChatContent(messageString);
+		String type = content >= 0 ? MessageType.message.name() : findType(messageString);
+		if (!acceptMessage(type)) {
+			return;
+		}
+
+		// relay plain chat messages as they were sent, unless messages before
+		// them are still being processed
+		if (content >= 0 && myIdentity != null && processing.isDone() && relayChatMessage(messageString, content)) {
+			recordLatency(startTime);
+			return;
+		}
+
+		final JSONParser parser = new JSONParser();
+		final JSONObject jsonObject;
+		try {
+			jsonObject = (JSONObject) parser.parse(messageString);
+		} catch (ParseException | ClassCastException e) {
+			System.err.println(Thread.currentThread().getName() + ": Error while processing message from client: "
+					+ e.getMessage());
+			return;
+		}
+
+		// the scan finds the type the parser finds in valid messages, a message
+		// they disagree on is limited again by the type the parser found
+		Object parsedType = jsonObject.get(MessageTag.type.name());
+		if (parsedType instanceof String ? !parsedType.equals(type) : type != null) {
+			Metrics.getInstance().increment("throttle.rechecked");
+			if (!acceptMessage(parsedType instanceof String ? (String) parsedType : null)) {
+				return;
+			}
+		}
+		final MessageType messageType = MessageType.valueOf((String) jsonObject.get(MessageTag.type.name()));
+
+		if (jsonObject.containsKey(MessageTag.requestid.name()) && (messageType == MessageType.list
+				|| messageType == MessageType.who || messageType == MessageType.search)) {
+			Metrics.getInstance().increment("client.pipelined");
+			processing.thenRunAsync(() -> processMessage(jsonObject, messageType, parser), requestExecutor)
+					.whenComplete((v, e) -> recordLatency(startTime)).exceptionally(e -> {
+						System.err.println(getName() + ": Error while processing message from client: "
+								+ e.getMessage());
+						return null;
+					});
+			return;
+		}
+
+		processing = processing.thenCompose(v -> processMessage(jsonObject, messageType, parser))
+				.whenComplete((v, e) -> recordLatency(startTime)).exceptionally(e -> {
+					System.err.println(getName() + ": Error while processing message from client: " + e.getMessage());
+					exit = true;
+					closeSocket();
+					return null;
+				});
+	}
+
+	/**
+	 * Take a message from the client under the rate limits, and disconnect
+	 * clients which keep sending too fast.
+	 * 
+	 * @param type
+	 *            type of the message, or null if it is not known
+	 * @return false if the message has to be dropped
+	 */
+	private boolean acceptMessage(String type) {
+		if (rateLimiter.tryAcquire(type)) {
+			return true;
+		}
+		System.err.println(getName() + ": throttled a message from the client " + myIdentity);
+		if (rateLimiter.isOffender()) {
+			Metrics.getInstance().increment("throttle.disconnects");
+			keepSession = false;
+			System.err.println(getName() + ": disconnecting the client " + myIdentity + " for sending too fast");
+			exit = true;
+		}
+		return false;
+	}
+
+	/**
+	 * Relay a chat message to the room of the client without parsing it. The
+	 * content is copied as it was sent into a message which starts with the
+	 * identity of the client, and the same message is written to all members.
+	 * 
+	 * @param messageString
+	 *            JSON string of message
+	 * @param content
+	 *            position of the content, as found by
+	 *            {@link #findChatContent(String)}
+	 * @return false if the client is in no room and the message has to be
+	 *         parsed
+	 */
+	private boolean relayChatMessage(String messageString, long content) {
+		ChatRoom room = serverData.getChatRoom(myChatRoom);
+		if (room == null) {
+			return false;
+		}
+		if (relayIdentity != myIdentity) {
+			relayIdentity = myIdentity;
+			relayPrefix = RELAY_IDENTITY + relayIdentity + RELAY_CONTENT;
+		}
+		relayBuffer.setLength(0);
+		relayBuffer.append(relayPrefix).append(messageString, (int) (content >>> 32), (int) content).append("}\n");
+		room.relayMessage(relayBuffer.toString(), this);
+		Metrics.getInstance().increment("client.relayed");
+		return true;
+	}
+
+	/**
+	 * Find the content of a chat message which has no other fields than its
+	 * type and its content, without parsing it.
+	 * 
+	 * @param messageString
+	 *            JSON string of message
+	 * @return start of the content as a JSON string with its quotes in the
+	 *         high half, and its end in the low half, or -1 if the message is
+	 *         not such a chat message
+	 */
+	private static long findChatContent(String messageString) {
+		int length = messageString.length();
+		int i = skipSpaces(messageString, 0);
+		if (i >= length || messageString.charAt(i) != '{') {
+			return -1;
+		}
+		boolean typeFound = false;
+		long content = -1;
+		while (true) {
+			int keyStart = skipSpaces(messageString, i + 1);
+			int keyEnd = skipString(messageString, keyStart);
+			if (keyEnd < 0) {
+				return -1;
+			}
+			i = skipSpaces(messageString, keyEnd);
+			if (i >= length || messageString.charAt(i) != ':') {
+				return -1;
+			}
+			int valueStart = skipSpaces(messageString, i + 1);
+			int valueEnd = skipString(messageString, valueStart);
+			if (valueEnd < 0) {
+				return -1;
+			}
+			if (isString(messageString, keyStart, keyEnd, MessageTag.type.name()) && !typeFound
+					&& isString(messageString, valueStart, valueEnd, MessageType.message.name())) {
+				typeFound = true;
+			} else if (isString(messageString, keyStart, keyEnd, MessageTag.content.name()) && content < 0) {
+				content = ((long) valueStart << 32) | valueEnd;
+			} else {
+				return -1;
+			}
+			i = skipSpaces(messageString, valueEnd);
+			if (i < length && messageString.charAt(i) == '}') {
+				break;
+			}
+			if (i >= length || messageString.charAt(i) != ',') {
+				return -1;
+			}
+		}
+		return typeFound && skipSpaces(messageString, i + 1) == length ? content : -1;
+	}
+
+	/**
+	 * Find the type of a message without parsing it. Only the keys of the top
+	 * level object are looked at, nested values are skipped, and the last type
+	 * key counts like in the parser.
+	 * 
+	 * @param messageString
+	 *            JSON string of message
+	 * @return the type, or null if the message is not an object with a type
+	 *         string
+	 */
+	private static String findType(String messageString) {
+		int length = messageString.length();
+		int i = skipSpaces(messageString, 0);
+		if (i >= length || messageString.charAt(i) != '{') {
+			return null;
+		}
+		String type = null;
+		while (true) {
+			int keyStart = skipSpaces(messageString, i + 1);
+			int keyEnd = skipString(messageString, keyStart);
+			if (keyEnd < 0) {
+				return null;
+			}
+			i = skipSpaces(messageString, keyEnd);
+			if (i >= length || messageString.charAt(i) != ':') {
+				return null;
+			}
+			int valueStart = skipSpaces(messageString, i + 1);
+			int valueEnd = skipValue(messageString, valueStart);
+			if (valueEnd < 0) {
+				return null;
+			}
+			if (MessageTag.type.name().equals(readString(messageString, keyStart, keyEnd))) {
+				type = messageString.charAt(valueStart) == '"' ? readString(messageString, valueStart, valueEnd)
+						: null;
+			}
+			i = skipSpaces(messageString, valueEnd);
+			if (i < length && messageString.charAt(i) == '}') {
+				break;
+			}
+			if (i >= length || messageString.charAt(i) != ',') {
+				return null;
+			}
+		}
+		return skipSpaces(messageString, i + 1) == length ? type : null;
+	}
+
+	/**
+	 * Find the end of a JSON value. Objects and arrays are skipped as a whole,
+	 * other values up to the next separator.
+	 * 
+	 * @param messageString
+	 * @param start
+	 * @return position after the value, or -1 if there is no value at the
+	 *         start
+	 */
+	private static int skipValue(String messageString, int start) {
+		int length = messageString.length();
+		if (start >= length) {
+			return -1;
+		}
+		char first = messageString.charAt(start);
+		if (first == '"') {
+			return skipString(messageString, start);
+		}
+		int i = start;
+		if (first == '{' || first == '[') {
+			int depth = 0;
+			while (i < length) {
+				char c = messageString.charAt(i);
+				if (c == '"') {
+					i = skipString(messageString, i);
+					if (i < 0) {
+						return -1;
+					}
+					continue;
+				}
+				if (c == '{' || c == '[') {
+					depth++;
+				} else if ((c == '}' || c == ']') && --depth == 0) {
+					return i + 1;
+				}
+				i++;
+			}
+			return -1;
+		}
+		while (i < length && ",}] \t\n\r".indexOf(messageString.charAt(i)) < 0) {
+			i++;
+		}
+		return i > start ? i : -1;
+	}
+
+	/**
+	 * Read a JSON string found by {@link #skipString(String, int)}.
+	 * 
+	 * @param messageString
+	 * @param start
+	 *            position of the opening quote
+	 * @param end
+	 *            position after the closing quote
+	 * @return
+	 */
+	private static String readString(String messageString, int start, int end) {
+		int escape = messageString.indexOf('\\', start + 1);
+		if (escape < 0 || escape >= end) {
+			return messageString.substring(start + 1, end - 1);
+		}
+		StringBuilder value = new StringBuilder(end - start);
+		for (int i = start + 1; i < end - 1; i++) {
+			char c = messageString.charAt(i);
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			c = messageString.charAt(++i);
+			switch (c) {
+			case 'u':
+				value.append((char) Integer.parseInt(messageString.substring(i + 1, i + 5), 16));
+				i += 4;
+				break;
+			case 'b':
+				value.append('\b');
+				break;
+			case 'f':
+				value.append('\f');
+				break;
+			case 'n':
+				value.append('\n');
+				break;
+			case 'r':
+				value.append('\r');
+				break;
+			case 't':
+				value.append('\t');
+				break;
+			default:
+				value.append(c);
+			}
+		}
+		return value.toString();
+	}
+
+	private static int skipSpaces(String messageString, int i) {
+		while (i < messageString.length()) {
+			char c = messageString.charAt(i);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Find the end of a JSON string.
+	 * 
+	 * @param messageString
+	 * @param start
+	 *            position of the opening quote
+	 * @return position after the closing quote, or -1 if there is no valid
+	 *         string at the start
+	 */
+	private static int skipString(String messageString, int start) {
+		int length = messageString.length();
+		if (start >= length || messageString.charAt(start) != '"') {
+			return -1;
+		}
+		int i = start + 1;
+		while (i < length) {
+			char c = messageString.charAt(i++);
+			if (c == '"') {
+				return i;
+			}
+			if (c < 0x20) {
+				return -1;
+			}
+			if (c == '\\') {
+				if (i >= length) {
+					return -1;
+				}
+				c = messageString.charAt(i++);
+				if (c == 'u') {
+					if (i + 4 > length) {
+						return -1;
+					}
+					for (int end = i + 4; i < end; i++) {
+						if (Character.digit(messageString.charAt(i), 16) < 0) {
+							return -1;
+						}
+					}
+				} else if ("\"\\/bfnrt".indexOf(c) < 0) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Check whether a JSON string without escapes has the given value.
+	 * 
+	 * @param messageString
+	 * @param start
+	 *            position of the opening quote
+	 * @param end
+	 *            position after the closing quote
+	 * @param value
+	 * @return
+	 */
+	private static boolean isString(String messageString, int start, int end, String value) {
+		return end - start == value.length() + 2 && messageString.startsWith(value, start + 1);
+	}
+
+	/**
+	 * Record how long a request took from reading it to its completion.
+	 * 
+	 * @param startTime
+	 */
+	private static void recordLatency(long startTime) {
+		AdmissionControl.getInstance().recordLatency(System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Run a short task on the threads which run pipelined requests, for work
+	 * which should not hold up the thread which scheduled it.
+	 * 
+	 * @param task
+	 */
+	public static void execute(Runnable task) {
+		requestExecutor.execute(task);
+	}
+
+	/**
+	 * Get the number of pipelined requests of all clients waiting for a
+	 * thread.
+	 * 
+	 * @return
+	 */
+	public static int getRequestBacklog() {
+		return ((ThreadPoolExecutor) requestExecutor).getQueue().size();
+	}
+
+	/**
+	 * Process incoming messages from the client
+	 * 
+	 * @param jsonObject
+	 *            the message
+	 * @param type
+	 *            type of the message
+	 * @param parser
+	 * @return completes when the message was fully processed
+	 */
+	private CompletableFuture<Void> processMessage(JSONObject jsonObject, MessageType type, JSONParser parser) {
+		if (exit) {
+			return DONE;
+		}
+		CompletableFuture<Void> result = DONE;
 		try {
-			JSONParser parser = new JSONParser();
-			JSONObject jsonObject = (JSONObject) parser.parse(messageString);
-			MessageType type = MessageType.valueOf((String) jsonObject.get(MessageTag.type.name()));
 			switch (type) {
 			case newidentity:
-				handleNewIdentityMessage(jsonObject, parser);
+				result = handleNewIdentityMessage(jsonObject, parser);
 				break;
 			case list:
-				handleListMessage();
+				handleListMessage(jsonObject);
 				break;
 			case who:
-				handleWhoMessage();
+				handleWhoMessage(jsonObject);
+				break;
+			case search:
+				handleSearchMessage(jsonObject);
 				break;
 			case createroom:
-				handleCreateRoomMessage(jsonObject, parser);
+				result = handleCreateRoomMessage(jsonObject, parser);
 				break;
 			case join:
-				handleJoinRoomMessage(jsonObject);
+				result = handleJoinRoomMessage(jsonObject);
 				break;
 			case movejoin:
-				handleMoveJoin(jsonObject, parser);
+				result = handleMoveJoin(jsonObject, parser);
 				break;
 			case deleteroom:
 				handleDeleteRoom(jsonObject);
@@ -184,45 +826,135 @@ public class ClientWorker extends Thread {
 			case message:
 				handleMessage(jsonObject);
 				break;
+			case keepalive:
+				// the client is alive, which was recorded when reading
+				break;
+			case resume:
+				handleResume(jsonObject);
+				break;
+			case presence:
+				handlePresenceMessage(jsonObject);
+				break;
 			case quit:
+				this.keepSession = false;
 				this.exit = true;
+				// stop reading in case the reader thread is not the one
+				// processing this message
+				socket.shutdownInput();
 				break;
 			default:
 				break;
 			}
-		} catch (ParseException e) {
+		} catch (IOException e) {
 			System.err.println(Thread.currentThread().getName() + ": Error while processing message from client: "
 					+ e.getMessage());
 		}
-		serverData.printData();
+		return result.thenRun(() -> serverData.printData());
 	}
 
 	/**
 	 * Handle client quit.
 	 */
 	private void handleQuit() {
+		// the room may have been deleted while the session was suspended
+		if (myChatRoom != null && serverData.getChatRoom(myChatRoom) == null) {
+			myChatRoom = GlobalConstants.MAIN_HALL;
+		}
+		// the owner of a room restored from the snapshot comes back in the
+		// MainHall, and may be in another room when it leaves
+		String ownedRoom = myIdentity == null ? null : serverData.getOwnedChatRoomId(myIdentity);
+		if (ownedRoom != null && !ownedRoom.equals(myChatRoom)) {
+			serverData.deleteChatRoom(ownedRoom, false);
+			sendCoordinationMessage(createDeleteRoomNotification(serverData.getMyData().getId(), ownedRoom),
+					serverData.getOtherServers());
+		}
+
 		if (myChatRoom != null) {
 			// if client is the owner of the chat room, delete it
 			if (serverData.getChatRoom(myChatRoom).getOwnerId().equals(myIdentity)) {
 				serverData.deleteChatRoom(myChatRoom, true);
 				// notify other servers
-				sendCoordinationMessage(createDeleteRoomNotification(serverData.getMyData().getId(), myChatRoom));
+				sendCoordinationMessage(createDeleteRoomNotification(serverData.getMyData().getId(), myChatRoom),
+						serverData.getOtherServers());
 			}
 	
 			// else remove client and send the server change message to group
 			// members
 			else {
 				if (!clientMovingToAnotherServer) {
-					serverData.getChatRoom(myChatRoom).sendMessage(createRoomChangeMessage(myChatRoom, "", myIdentity),
-							false);
+					serverData.getChatRoom(myChatRoom)
+							.sendRoomChange(createRoomChangeMessage(myChatRoom, "", myIdentity));
 				}
 				serverData.getChatRoom(myChatRoom).ifContainsRemoveMember(myIdentity);
 			}
 		}
 
 		// finally remove member from list
-		if (myIdentity != null) {
+		if (myIdentity != null && !clientMovingToAnotherServer) {
+			serverData.closeSession(myIdentity, this);
 			serverData.removeMyClient(myIdentity);
+			unregisterIdentity(myIdentity);
+		}
+	}
+
+	/**
+	 * Handle a client resuming its session on a new connection. The client
+	 * continues in its room, or in the MainHall if the room was deleted, and
+	 * is sent the messages of the room it missed if the room keeps a history.
+	 * 
+	 * @param jsonObject
+	 */
+	private void handleResume(JSONObject jsonObject) {
+		String identity = (String) jsonObject.get(MessageTag.identity.name());
+		String token = (String) jsonObject.get(MessageTag.token.name());
+		String requestId = (String) jsonObject.get(MessageTag.requestid.name());
+		String newToken = ClientSession.newToken();
+		ClientWorker former = myIdentity == null && identity != null && token != null
+				? serverData.resumeSession(identity, token, newToken, this) : null;
+		if (former == null) {
+			Metrics.getInstance().increment("session.rejected");
+			sendReply(createResumeResponse("false", null, null), requestId, false);
+			return;
+		}
+		ChatRoom room = former.getChatRoom() == null ? null : serverData.getChatRoom(former.getChatRoom());
+		if (room == null) {
+			room = serverData.getChatRoom(GlobalConstants.MAIN_HALL);
+		}
+		clientOutBufferBlocked = true;
+		myIdentity = identity;
+		myChatRoom = room.getId();
+		room.addMember(identity, this);
+		sendReply(createResumeResponse("true", myChatRoom, newToken), requestId, true);
+		room.replayHistory(this, former.getMissedSince());
+		clientOutBufferBlocked = false;
+		Metrics.getInstance().increment("session.resumed");
+		System.out.println(getName() + ": the client " + identity + " resumed its session in " + myChatRoom);
+	}
+
+	/**
+	 * Handle a client asking for summaries of the joins and leaves of its
+	 * room. Summaries are only sent if the server summarises them.
+	 * 
+	 * @param jsonObject
+	 */
+	private void handlePresenceMessage(JSONObject jsonObject) {
+		String requestId = (String) jsonObject.get(MessageTag.requestid.name());
+		presenceSummaries = serverData.getConfig().getPresenceWindow() > 0;
+		sendReply(createPresenceResponse(presenceSummaries ? "true" : "false"), requestId, false);
+	}
+
+	/**
+	 * Start a resumable session for the client, if sessions are kept.
+	 * 
+	 * @param reply
+	 *            reply accepting the client, which is given the session token
+	 */
+	@SuppressWarnings("unchecked")
+	private void openSession(JSONObject reply) {
+		if (serverData.getConfig().getSessionGrace() > 0) {
+			String token = ClientSession.newToken();
+			serverData.openSession(myIdentity, token, this);
+			reply.put(MessageTag.token.name(), token);
 		}
 	}
 
@@ -247,11 +979,12 @@ public class ClientWorker extends Thread {
 	private void handleDeleteRoom(JSONObject jsonObject) {
 		// read data from the message
 		String roomId = (String) jsonObject.get(MessageTag.roomid.name());
+		String requestId = (String) jsonObject.get(MessageTag.requestid.name());
 
 		// check if client is not the owner of the chat room or whether chat
 		// room exists
 		if (serverData.getChatRoom(roomId) == null || !serverData.getChatRoom(roomId).getOwnerId().equals(myIdentity)) {
-			sendMessage(createDeleteRoomResponse(roomId, "false"), false);
+			sendReply(createDeleteRoomResponse(roomId, "false"), requestId, false);
 			return;
 		}
 
@@ -260,10 +993,11 @@ public class ClientWorker extends Thread {
 		serverData.deleteChatRoom(roomId, false);
 		
 		// notify other servers
-		sendCoordinationMessage(createDeleteRoomNotification(serverData.getMyData().getId(), roomId));
+		sendCoordinationMessage(createDeleteRoomNotification(serverData.getMyData().getId(), roomId),
+				serverData.getOtherServers());
 		
 		// send client response
-		sendMessage(createDeleteRoomResponse(roomId, "true"), false);
+		sendReply(createDeleteRoomResponse(roomId, "true"), requestId, false);
 	}
 
 	/**
@@ -271,62 +1005,74 @@ public class ClientWorker extends Thread {
 	 * 
 	 * @param jsonObject
 	 */
-	private void handleMoveJoin(JSONObject jsonObject, JSONParser parser) {
+	private CompletableFuture<Void> handleMoveJoin(JSONObject jsonObject, final JSONParser parser) {
 		// read data from the message
-		String roomId = (String) jsonObject.get(MessageTag.roomid.name());
-		String clientId = (String) jsonObject.get(MessageTag.identity.name());
-		String formerRoom = (String) jsonObject.get(MessageTag.former.name());
+		final String roomId = (String) jsonObject.get(MessageTag.roomid.name());
+		final String clientId = (String) jsonObject.get(MessageTag.identity.name());
+		final String formerRoom = (String) jsonObject.get(MessageTag.former.name());
+		final String requestId = (String) jsonObject.get(MessageTag.requestid.name());
+		String nonce = (String) jsonObject.get(MessageTag.ticket.name());
+
+		// the former server handed the identity over already
+		if (serverData.takeMigrationTicket(clientId, nonce) != null) {
+			completeMoveJoin(roomId, clientId, formerRoom, requestId, false, false);
+			return transferIdentity(clientId);
+		}
 
 		// check if either the identity is used by my clients or
 		// currently I have locked the identity.
-		boolean clientIdInUse = !serverData.lockIdentity(clientId, serverData.getMyData().getId());
-
-		// check if the identity is already used by other servers
-		boolean sentLockMessage = false;
-		if (!clientIdInUse) {
-			// send lock message
-			sentLockMessage = true;
-			List<String> lockIdentityResponses = sendCoordinationMessageAndGetReply(
-					createLockIdentity(serverData.getMyData().getId(), clientId));
-
-			// read responses from other servers
-			for (String response : lockIdentityResponses) {
-				JSONObject lockIdentityResponse;
-				try {
-					lockIdentityResponse = (JSONObject) parser.parse(response);
-					if (((String) lockIdentityResponse.get(MessageTag.locked.name())).equals("false")) {
-						clientIdInUse = true;
-						break;
-					}
-				} catch (ParseException e) {
-				}
-			}
+		if (!serverData.lockIdentity(clientId, serverData.getMyData().getId())) {
+			completeMoveJoin(roomId, clientId, formerRoom, requestId, true, false);
+			return DONE;
 		}
 
+		// check if the identity is already used by other servers, and finish
+		// when all of them replied
+		return sendCoordinationMessageAndGetReply(createIdentityLockRequest(serverData.getMyData().getId(), clientId),
+				serverData.getCoordinationTargets(clientId)).thenAccept(responses -> completeMoveJoin(roomId, clientId,
+						formerRoom, requestId, !isLockApproved(responses, parser, true), true));
+	}
+
+	/**
+	 * Finish the move join once the identity lock is known.
+	 * 
+	 * @param roomId
+	 * @param clientId
+	 * @param formerRoom
+	 * @param requestId
+	 * @param clientIdInUse
+	 * @param sentLockMessage
+	 */
+	private void completeMoveJoin(String roomId, String clientId, String formerRoom, String requestId,
+			boolean clientIdInUse, boolean sentLockMessage) {
 		// store client information and send acknowledgement to client
 		if (!clientIdInUse) {
 			clientOutBufferBlocked = true;
+			serverData.addNewClient(clientId);
 			// select a room
 			ChatRoom room = serverData.addMemberToChatRoom(roomId, clientId, this);
 			room.addMember(clientId, this);
 			this.myIdentity = clientId;
 			this.myChatRoom = room.getId();
 			
-			// send response to the client
-			sendMessage(createServerChangeMessage(serverData.getMyData().getId(), "true"), true);
+			// send response to the client, and the messages the client missed
+			JSONObject serverChange = createServerChangeMessage(serverData.getMyData().getId(), "true");
+			openSession(serverChange);
+			sendReply(serverChange, requestId, true);
+			room.replayHistory(this);
 			clientOutBufferBlocked = false;
 
 			// broadcast room change massage to all members in the room
-			serverData.getChatRoom(myChatRoom).sendMessage(createRoomChangeMessage(formerRoom, myChatRoom, clientId),
-					false);
+			serverData.getChatRoom(myChatRoom)
+					.sendRoomChange(createRoomChangeMessage(formerRoom, myChatRoom, clientId));
 		}
 
 		// release the lock
 		if (sentLockMessage) {
-			sendCoordinationMessage(createReleaseIdentityMessage(serverData.getMyData().getId(), clientId));
+			releaseIdentityLock(clientId, !clientIdInUse);
 		}
 		if (clientIdInUse) {
-			sendMessage(createServerChangeMessage(serverData.getMyData().getId(), "false"), true);
+			sendReply(createServerChangeMessage(serverData.getMyData().getId(), "false"), requestId, true);
 		}
 		serverData.releaseClientId(clientId, serverData.getMyData().getId());
 	}
@@ -336,17 +1082,18 @@ public class ClientWorker extends Thread {
 	 * 
 	 * @param jsonObject
 	 */
-	private void handleJoinRoomMessage(JSONObject jsonObject) {
+	private CompletableFuture<Void> handleJoinRoomMessage(JSONObject jsonObject) {
 		// read room id
 		String roomid = (String) jsonObject.get(MessageTag.roomid.name());
+		final String requestId = (String) jsonObject.get(MessageTag.requestid.name());
 
 		// validate the request (client is the owner of the current room or
 		// non-existent chat room)
 		boolean notValid = serverData.getChatRoom(myChatRoom).getOwnerId().equals(myIdentity)
 				|| !serverData.isChatRoomAvailable(roomid) || myChatRoom.equals(roomid);
 		if (notValid) {
-			sendMessage(createRoomChangeMessage(myChatRoom, myChatRoom, myIdentity), false);
-			return;
+			sendReply(createRoomChangeMessage(myChatRoom, myChatRoom, myIdentity), requestId, false);
+			return DONE;
 		}
 
 		// handle if the chat room belong to this server
@@ -360,40 +1107,87 @@ public class ClientWorker extends Thread {
 			this.clientOutBufferBlocked = true;
 			boolean success = serverData.addClientToNewChatRoom(myChatRoom, roomid, myIdentity, this);
 			if (!success){
-				sendMessage(createRoomChangeMessage(myChatRoom, myChatRoom, myIdentity), false);
-				return;
+				sendReply(createRoomChangeMessage(myChatRoom, myChatRoom, myIdentity), requestId, false);
+				return DONE;
 			}
 			myChatRoom = roomid;
 
 			// broadcast room change message to new group
-			serverData.getChatRoom(roomid).sendMessage(roomchange, false);
-
-			// send room change message to the client
-			sendMessage(roomchange, true);
+			serverData.getChatRoom(roomid).sendRoomChange(roomchange);
+
+			// send room change message to the client, and the messages the
+			// client missed
+			sendReply(roomchange, requestId, true);
+			ChatRoom newRoom = serverData.getChatRoom(roomid);
+			if (newRoom != null) {
+				newRoom.replayHistory(this);
+			}
 			this.clientOutBufferBlocked = false;
 
 			// broadcast room change message to former group
-			serverData.getChatRoom(formerRoom).sendMessage(roomchange, false);
+			serverData.getChatRoom(formerRoom).sendRoomChange(roomchange);
 
-			return;
+			return DONE;
 		}
 
 		// handle if chat room belong to another server
 		else {
-			// send the route to the client
-			sendMessage(createRouteMessage(roomid, server.getIp(), server.getClientPort()), false);
+			return moveToServer(roomid, server, requestId);
+		}
+	}
 
-			// remove client
-			serverData.getChatRoom(myChatRoom).ifContainsRemoveMember(myIdentity);
-			serverData.removeMyClient(myIdentity);
-			
-			// set the flag
-			clientMovingToAnotherServer = true;
+	/**
+	 * Move the client to a room of another server.
+	 * 
+	 * @param roomid
+	 * @param server
+	 * @param requestId
+	 * @return completes when the client was sent the route
+	 */
+	private CompletableFuture<Void> moveToServer(String roomid, Server server, final String requestId) {
+		// remove client
+		serverData.getChatRoom(myChatRoom).ifContainsRemoveMember(myIdentity);
+		serverData.removeMyClient(myIdentity);
+
+		// set the flag
+		clientMovingToAnotherServer = true;
+
+		// broadcast room change message to former room
+		serverData.getChatRoom(myChatRoom).sendRoomChange(createRoomChangeMessage(myChatRoom, roomid, myIdentity));
+
+		// send the route to the client. The identity is handed over to the
+		// new server, or released, before the client receives the route, so
+		// that the movejoin finds it there or can lock it again. Only the
+		// client receives the nonce of the ticket, in its route.
+		final String identity = myIdentity;
+		final String nonce = ClientSession.newToken();
+		return migrateIdentity(identity, nonce, myChatRoom, roomid, server).thenCompose(accepted -> {
+			JSONObject route = createRouteMessage(roomid, server.getIp(), server.getClientPort(),
+					accepted ? nonce : null);
+			return (accepted ? DONE : unregisterIdentity(identity)).thenRun(() -> sendReply(route, requestId, false));
+		});
+	}
 
-			// broadcast room change message to former room
-			serverData.getChatRoom(myChatRoom).sendMessage(createRoomChangeMessage(myChatRoom, roomid, myIdentity),
-					false);
+	/**
+	 * Redirect a new client to the main hall of a server with fewer clients,
+	 * if this server has reached the configured number of clients.
+	 * 
+	 * @param requestId
+	 * @return
+	 */
+	private CompletableFuture<Void> redirectIfOverloaded(String requestId) {
+		int redirectClients = serverData.getConfig().getRedirectClients();
+		if (myIdentity == null || clientMovingToAnotherServer || redirectClients <= 0
+				|| serverData.getMyClientCount() < redirectClients) {
+			return DONE;
+		}
+		Server server = LoadTracker.getInstance().findLessLoadedServer();
+		if (server == null) {
+			return DONE;
 		}
+		Metrics.getInstance().increment("load.redirected");
+		System.out.println(getName() + ": redirecting " + myIdentity + " to the less loaded server " + server.getId());
+		return moveToServer(GlobalConstants.MAIN_HALL_PREFIX + server.getId(), server, requestId);
 	}
 
 	/**
@@ -402,39 +1196,80 @@ public class ClientWorker extends Thread {
 	 * @param jsonObject
 	 * @param parser
 	 */
-	private void handleCreateRoomMessage(JSONObject jsonObject, JSONParser parser) {
+	private CompletableFuture<Void> handleCreateRoomMessage(JSONObject jsonObject, final JSONParser parser) {
 		// read room id
-		String roomid = (String) jsonObject.get(MessageTag.roomid.name());
+		final String roomid = (String) jsonObject.get(MessageTag.roomid.name());
+		final String requestId = (String) jsonObject.get(MessageTag.requestid.name());
 
 		// validate format of identity and if client already an owner of a
 		// chat room and if the chat room id is available
 		if (!validateIdentity(roomid) || serverData.isClientOwner(myIdentity)
 				|| !serverData.lockChatRoom(roomid, serverData.getMyData().getId())) {
 			// send denied reply to the client
-			sendMessage(createCreateRoomMessage(roomid, "false"), false);
-			return;
+			sendReply(createCreateRoomMessage(roomid, "false"), requestId, false);
+			return DONE;
 		}
 
-		// send lock request
-		List<String> responses = sendCoordinationMessageAndGetReply(
-				createLockRoomMessage(serverData.getMyData().getId(), roomid));
+		// send lock request, and finish when all servers replied
+		return sendCoordinationMessageAndGetReply(createRoomLockRequest(serverData.getMyData().getId(), roomid),
+				serverData.getCoordinationTargets(roomid)).thenCompose(responses -> {
+					boolean lockSuccessful = isLockApproved(responses, parser, false);
+					Server server = lockSuccessful && serverData.getConfig().isPlaceRooms()
+							? LoadTracker.getInstance().findLessLoadedServer() : null;
+					if (server == null) {
+						completeCreateRoom(roomid, requestId, lockSuccessful);
+						return DONE;
+					}
+					return placeRoom(roomid, requestId, server);
+				});
+	}
 
-		// process responses from other servers
-		boolean lockSuccessful = true;
-		for (String response : responses) {
-			JSONObject lockIdentityResponse;
-			try {
-				lockIdentityResponse = (JSONObject) parser.parse(response);
-				if (((String) lockIdentityResponse.get(MessageTag.locked.name())).equals("false")) {
-					lockSuccessful = false;
-					break;
-				}
-			} catch (ParseException e) {
-				lockSuccessful = false;
-				break;
-			}
-		}
+	/**
+	 * Create the room on a server with fewer clients and move the client
+	 * there. If the server does not accept the room, it is created here.
+	 * 
+	 * @param roomid
+	 * @param requestId
+	 * @param server
+	 * @return
+	 */
+	private CompletableFuture<Void> placeRoom(final String roomid, final String requestId, final Server server) {
+		final String serverId = serverData.getMyData().getId();
+		return CoordinationClient.getInstance()
+				.sendAndGetReplyAsync(createPlaceRoomMessage(serverId, roomid, myIdentity), server)
+				.thenCompose(reply -> {
+					if (!isApproved(reply)) {
+						completeCreateRoom(roomid, requestId, true);
+						return DONE;
+					}
+					Metrics.getInstance().increment("load.placed");
+					System.out.println(getName() + ": placed the room " + roomid + " on the less loaded server "
+							+ server.getId());
+
+					// the server announces the room, so only the locks taken
+					// for this server are released
+					serverData.releaseRoomId(roomid, serverId, false);
+					if (!serverData.getConfig().isOptimistic()) {
+						sendCoordinationMessage(createReleaseRoomMessage(serverId, roomid, "false"),
+								serverData.getOtherServers());
+					} else {
+						sendCoordinationMessage(createDeleteRoomNotification(serverId, roomid),
+								serverData.getCoordinationTargets(roomid));
+					}
+
+					sendReply(createCreateRoomMessage(roomid, "true"), requestId, true);
+					return moveToServer(roomid, server, requestId);
+				});
+	}
 
+	/**
+	 * Finish creating the room once the room id lock is known.
+	 * 
+	 * @param roomid
+	 * @param requestId
+	 * @param lockSuccessful
+	 */
+	private void completeCreateRoom(String roomid, String requestId, boolean lockSuccessful) {
 		// create the chat room if lock was successfully acquired and send
 		// acknowledgement to client
 		JSONObject clientResponse = createCreateRoomMessage(roomid, lockSuccessful ? "true" : "false");
@@ -446,31 +1281,49 @@ public class ClientWorker extends Thread {
 		} else {
 			serverData.releaseRoomId(roomid, serverData.getMyData().getId(), false);
 		}
-		sendMessage(clientResponse, true);
+		sendReply(clientResponse, requestId, true);
 		clientOutBufferBlocked = false;
 
 		// send release room id request to other servers
-		sendCoordinationMessage(
-				createReleaseRoomMessage(serverData.getMyData().getId(), roomid, lockSuccessful ? "true" : "false"));
+		releaseRoomLock(roomid, lockSuccessful);
 
 		// broadcast message to the members of the previous group
 		if (lockSuccessful) {
 			JSONObject roomchange = createRoomChangeMessage(formerChatRoom, roomid, myIdentity);
-			serverData.getChatRoom(formerChatRoom).sendMessage(roomchange, false);
-			sendMessage(roomchange, false);
+			serverData.getChatRoom(formerChatRoom).sendRoomChange(roomchange);
+			sendReply(roomchange, requestId, false);
 		}
 	}
 
-	private void handleWhoMessage() {
-		sendMessage(serverData.getChatRoom(myChatRoom).getChatRoomDetails(), false);
+	private void handleWhoMessage(JSONObject jsonObject) {
+		String requestId = (String) jsonObject.get(MessageTag.requestid.name());
+		sendReply(serverData.getChatRoom(myChatRoom).getChatRoomDetails(), requestId, false);
+	}
+
+	/**
+	 * Handle search of the messages sent in the current room of the client
+	 * 
+	 * @param jsonObject
+	 */
+	private void handleSearchMessage(JSONObject jsonObject) {
+		String requestId = (String) jsonObject.get(MessageTag.requestid.name());
+		String roomId = myChatRoom;
+		List<JSONObject> messages = serverData.searchMessages(roomId,
+				(String) jsonObject.get(MessageTag.identity.name()), (String) jsonObject.get(MessageTag.content.name()),
+				(Number) jsonObject.get(MessageTag.limit.name()));
+		sendReply(CoordinationWorker.createSearchResults(roomId, messages), requestId, false);
 	}
 
 	/**
 	 * handle list message
+	 * 
+	 * @param jsonObject
 	 */
-	private void handleListMessage() {
+	private void handleListMessage(JSONObject jsonObject) {
+		String requestId = (String) jsonObject.get(MessageTag.requestid.name());
+
 		// send response message
-		sendMessage(createRoomList(serverData.getAllChatRoomNames()), false);
+		sendReply(createRoomList(serverData.getAllChatRoomNames()), requestId, false);
 	}
 
 	/**
@@ -479,44 +1332,56 @@ public class ClientWorker extends Thread {
 	 * @param jsonObject
 	 * @param parser
 	 */
-	private void handleNewIdentityMessage(JSONObject jsonObject, JSONParser parser) {
+	private CompletableFuture<Void> handleNewIdentityMessage(JSONObject jsonObject, final JSONParser parser) {
 		// read identity
-		String identity = (String) jsonObject.get(MessageTag.identity.name());
+		final String identity = (String) jsonObject.get(MessageTag.identity.name());
+		final String requestId = (String) jsonObject.get(MessageTag.requestid.name());
 
 		// validate identity
 		boolean validId = validateIdentity(identity);
 		if (!validId) {
 			// send denied reply to the client
-			sendMessage(createNewIdentityResponse("false"), false);
-			return;
+			sendReply(createNewIdentityResponse("false"), requestId, false);
+			return DONE;
 		}
 
 		// check if either the identity is used by my clients or
 		// currently I have locked the identity.
-		boolean clientIdInUse = !serverData.lockIdentity(identity, serverData.getMyData().getId());
+		if (!serverData.lockIdentity(identity, serverData.getMyData().getId())) {
+			completeNewIdentity(identity, requestId, true, false);
+			return DONE;
+		}
 
-		// check if the identity is already used by other servers
-		boolean sentLockMessage = false;
-		if (!clientIdInUse) {
-			// send lock message
-			sentLockMessage = true;
-			List<String> lockIdentityResponses = sendCoordinationMessageAndGetReply(
-					createLockIdentity(serverData.getMyData().getId(), identity));
-
-			// read responses from other servers
-			for (String response : lockIdentityResponses) {
-				JSONObject lockIdentityResponse;
-				try {
-					lockIdentityResponse = (JSONObject) parser.parse(response);
-					if (((String) lockIdentityResponse.get(MessageTag.locked.name())).equals("false")) {
-						clientIdInUse = true;
-						break;
-					}
-				} catch (ParseException e) {
-				}
-			}
+		// lock the identity with the identities of other new clients, at a
+		// pace the other servers can take. An identity which was not sent
+		// because too many clients are waiting is refused.
+		IdentityAdmission admission = serverData.getIdentityAdmission();
+		if (admission != null) {
+			return admission.lock(identity, serverData.getCoordinationTargets(identity))
+					.thenAccept(approved -> completeNewIdentity(identity, requestId, !Boolean.TRUE.equals(approved),
+							approved != null))
+					.thenCompose(v -> redirectIfOverloaded(requestId));
 		}
 
+		// check if the identity is already used by other servers, and finish
+		// when all of them replied
+		return sendCoordinationMessageAndGetReply(createIdentityLockRequest(serverData.getMyData().getId(), identity),
+				serverData.getCoordinationTargets(identity))
+						.thenAccept(responses -> completeNewIdentity(identity, requestId,
+								!isLockApproved(responses, parser, true), true))
+						.thenCompose(v -> redirectIfOverloaded(requestId));
+	}
+
+	/**
+	 * Finish the new identity once the identity lock is known.
+	 * 
+	 * @param identity
+	 * @param requestId
+	 * @param clientIdInUse
+	 * @param sentLockMessage
+	 */
+	private void completeNewIdentity(String identity, String requestId, boolean clientIdInUse,
+			boolean sentLockMessage) {
 		// store client information and send acknowledgement to client
 		JSONObject clientReply = createNewIdentityResponse(clientIdInUse ? "false" : "true");
 		if (!clientIdInUse) {
@@ -525,13 +1390,14 @@ public class ClientWorker extends Thread {
 			serverData.getChatRoom(GlobalConstants.MAIN_HALL).addMember(identity, this);
 			this.myIdentity = identity;
 			this.myChatRoom = GlobalConstants.MAIN_HALL;
+			openSession(clientReply);
 		}
-		sendMessage(clientReply, true);
+		sendReply(clientReply, requestId, true);
 		clientOutBufferBlocked = false;
 
 		// release the lock
 		if (sentLockMessage) {
-			sendCoordinationMessage(createReleaseIdentityMessage(serverData.getMyData().getId(), identity));
+			releaseIdentityLock(identity, !clientIdInUse);
 		}
 		if (clientIdInUse) {
 			serverData.releaseClientId(identity, serverData.getMyData().getId());
@@ -539,7 +1405,7 @@ public class ClientWorker extends Thread {
 
 		// notify the members in the MainHall
 		if (!clientIdInUse) {
-			serverData.getChatRoom(myChatRoom).sendMessage(createRoomChangeMessage("", myChatRoom, myIdentity), false);
+			serverData.getChatRoom(myChatRoom).sendRoomChange(createRoomChangeMessage("", myChatRoom, myIdentity));
 		}
 	}
 
@@ -568,83 +1434,198 @@ public class ClientWorker extends Thread {
 	}
 
 	/**
-	 * Send coordination messages to other servers and get reply
+	 * Send coordination messages to the given servers and get reply
 	 * 
 	 * @param message
+	 * @param servers
 	 * @return
 	 */
-	private synchronized List<String> sendCoordinationMessageAndGetReply(JSONObject message) {
-		List<String> responses = new ArrayList<String>();
-		for (Server server : serverData.getOtherServers()) {
-			Socket socket = null;
-			BufferedReader in = null;
-			BufferedWriter out = null;
-			try {
-				socket = new Socket(server.getIp(), server.getCoordinationPort());
-				in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-				out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
-
-				// Send message to the server
-				out.write(message + "\n");
-				out.flush();
-				System.out.println(Thread.currentThread().getName() + ": sent a coordination message \"" + message
-						+ "\" to the server " + server.getId());
-
-				// Receive the reply from the server
-				String received = in.readLine();
-				System.out.println(Thread.currentThread().getName() + ": received response \"" + received
-						+ "\" from the server " + server.getId());
-				responses.add(received);
+	private CompletableFuture<List<String>> sendCoordinationMessageAndGetReply(JSONObject message,
+			List<Server> servers) {
+		return CoordinationClient.getInstance().sendAndGetRepliesAsync(message, servers);
+	}
 
-			} catch (IOException e) {
-				System.err.println(Thread.currentThread().getName() + ": error while communicationg to the server "
-						+ server.getId() + ": " + e.getMessage());
-			} finally {
-				if (socket != null) {
-					try {
-						in.close();
-						out.close();
-						socket.close();
-					} catch (IOException e) {
-					}
+	/**
+	 * Send coordination messages to the given servers and do not expect
+	 * responses.
+	 * 
+	 * @param message
+	 * @param servers
+	 * @return completes when the message was sent to all servers
+	 */
+	private CompletableFuture<Void> sendCoordinationMessage(JSONObject message, List<Server> servers) {
+		return CoordinationClient.getInstance().sendAsync(message, servers);
+	}
+
+	/**
+	 * Check whether all servers approved a lock request.
+	 * 
+	 * @param responses
+	 * @param parser
+	 * @param ignoreInvalidResponses
+	 *            whether a response which cannot be parsed counts as approved
+	 * @return
+	 */
+	private boolean isLockApproved(List<String> responses, JSONParser parser, boolean ignoreInvalidResponses) {
+		for (String response : responses) {
+			try {
+				JSONObject lockResponse = (JSONObject) parser.parse(response);
+				if (((String) lockResponse.get(MessageTag.locked.name())).equals("false")) {
+					return false;
+				}
+			} catch (ParseException e) {
+				if (!ignoreInvalidResponses) {
+					return false;
 				}
 			}
 		}
-		return responses;
+		return true;
 	}
 
 	/**
-	 * Send coordination messages to other servers and do not expect responses.
+	 * Create the request which locks an identity on other servers, or reserves
+	 * it when the single round trip protocol is enabled.
 	 * 
-	 * @param message
+	 * @param serverId
+	 * @param identity
+	 * @return
 	 */
-	private synchronized void sendCoordinationMessage(JSONObject message) {
-		for (Server server : serverData.getOtherServers()) {
-			Socket socket = null;
-			BufferedWriter out = null;
-			try {
-				socket = new Socket(server.getIp(), server.getCoordinationPort());
-				out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+	private JSONObject createIdentityLockRequest(String serverId, String identity) {
+		if (serverData.getConfig().isOptimistic()) {
+			return createReserveIdentity(serverId, identity);
+		}
+		return createLockIdentity(serverId, identity);
+	}
 
-				// Send message to the server
-				out.write(message + "\n");
-				out.flush();
-				System.out.println(Thread.currentThread().getName() + " sent a coordination message \"" + message
-						+ "\" to the server " + server.getId());
+	/**
+	 * Create the request which locks a room id on other servers, or reserves it
+	 * when the single round trip protocol is enabled.
+	 * 
+	 * @param serverId
+	 * @param roomId
+	 * @return
+	 */
+	private JSONObject createRoomLockRequest(String serverId, String roomId) {
+		if (serverData.getConfig().isOptimistic()) {
+			return createReserveRoomMessage(serverId, roomId);
+		}
+		return createLockRoomMessage(serverId, roomId);
+	}
 
-			} catch (IOException e) {
-				System.err.println(getName() + " error while communicationg to the server " + server.getId() + ": "
-						+ e.getMessage());
-			} finally {
-				if (socket != null) {
-					try {
-						out.close();
-						socket.close();
-					} catch (IOException e) {
-					}
-				}
-			}
+	/**
+	 * Finish the identity lock on other servers. In the two phase protocol the
+	 * lock is always released. A reservation which every server accepted is
+	 * already final, so only a rejected one is aborted.
+	 * 
+	 * @param identity
+	 * @param approved
+	 */
+	private void releaseIdentityLock(String identity, boolean approved) {
+		String serverId = serverData.getMyData().getId();
+		if (!serverData.getConfig().isOptimistic()) {
+			sendCoordinationMessage(createReleaseIdentityMessage(serverId, identity, approved ? "true" : "false"),
+					serverData.getCoordinationTargets(identity));
+		} else if (!approved) {
+			Metrics.getInstance().increment("reserve.identity.aborted");
+			sendCoordinationMessage(createDeleteIdentityNotification(serverId, identity),
+					serverData.getCoordinationTargets(identity));
+		}
+	}
+
+	/**
+	 * Finish the room id lock on other servers. All servers are told about the
+	 * new room, even if only the owners in the hash ring locked it. A
+	 * reservation which every server accepted is already recorded by them, so
+	 * only a rejected one is aborted.
+	 * 
+	 * @param roomId
+	 * @param approved
+	 */
+	private void releaseRoomLock(String roomId, boolean approved) {
+		String serverId = serverData.getMyData().getId();
+		if (!serverData.getConfig().isOptimistic()) {
+			sendCoordinationMessage(createReleaseRoomMessage(serverId, roomId, approved ? "true" : "false"),
+					serverData.getOtherServers());
+		} else if (!approved) {
+			Metrics.getInstance().increment("reserve.roomid.aborted");
+			sendCoordinationMessage(createDeleteRoomNotification(serverId, roomId), serverData.getCoordinationTargets(roomId));
+		} else if (serverData.getHashRing() != null) {
+			sendCoordinationMessage(createReleaseRoomMessage(serverId, roomId, "true"), serverData.getOtherServers());
+		}
+	}
+
+	/**
+	 * Tell the servers holding the identity that the client left this server.
+	 * Only the hash ring owners and the single round trip protocol keep
+	 * identities of other servers.
+	 * 
+	 * @param identity
+	 * @return completes when the servers were told
+	 */
+	private CompletableFuture<Void> unregisterIdentity(String identity) {
+		if (serverData.getHashRing() != null || serverData.getConfig().isOptimistic()) {
+			return sendCoordinationMessage(
+					createDeleteIdentityNotification(serverData.getMyData().getId(), identity),
+					serverData.getCoordinationTargets(identity));
+		}
+		return DONE;
+	}
+
+	/**
+	 * Ask the server of the room the client is joining to hold the identity of
+	 * the client until it arrives with a movejoin message.
+	 * 
+	 * @param identity
+	 * @param nonce
+	 *            nonce the client has to present with its movejoin
+	 * @param former
+	 * @param roomId
+	 * @param server
+	 * @return whether the server issued a migration ticket
+	 */
+	private CompletableFuture<Boolean> migrateIdentity(String identity, String nonce, String former, String roomId,
+			Server server) {
+		if (serverData.getConfig().getMigrationTicketTime() <= 0) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return CoordinationClient.getInstance()
+				.sendAndGetReplyAsync(createMigrateMessage(serverData.getMyData().getId(), identity, nonce, former, roomId),
+						server)
+				.thenApply(reply -> isApproved(reply));
+	}
+
+	/**
+	 * Check whether the reply of a server approved the request.
+	 * 
+	 * @param reply
+	 * @return false if there is no reply
+	 */
+	private boolean isApproved(String reply) {
+		if (reply == null) {
+			return false;
+		}
+		try {
+			JSONObject response = (JSONObject) new JSONParser().parse(reply);
+			return "true".equals(response.get(MessageTag.approved.name()));
+		} catch (ParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Register the identity of a client which arrived with a migration ticket
+	 * for this server, on the servers which held it for the former server.
+	 * 
+	 * @param identity
+	 * @return
+	 */
+	private CompletableFuture<Void> transferIdentity(String identity) {
+		if (serverData.getHashRing() != null || serverData.getConfig().isOptimistic()) {
+			return sendCoordinationMessage(
+					createReleaseIdentityMessage(serverData.getMyData().getId(), identity, "true"),
+					serverData.getCoordinationTargets(identity));
 		}
+		return DONE;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -694,12 +1675,15 @@ public class ClientWorker extends Thread {
 	}
 
 	@SuppressWarnings("unchecked")
-	private synchronized JSONObject createRouteMessage(String roomId, String host, int port) {
+	private synchronized JSONObject createRouteMessage(String roomId, String host, int port, String ticket) {
 		JSONObject route = new JSONObject();
 		route.put(MessageTag.type.name(), MessageType.route.name());
 		route.put(MessageTag.roomid.name(), roomId);
 		route.put(MessageTag.host.name(), host);
 		route.put(MessageTag.port.name(), Integer.toString(port));
+		if (ticket != null) {
+			route.put(MessageTag.ticket.name(), ticket);
+		}
 		return route;
 	}
 
@@ -721,6 +1705,15 @@ public class ClientWorker extends Thread {
 		return lockroom;
 	}
 
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createReserveRoomMessage(String serverId, String roomId) {
+		JSONObject reserveRoom = new JSONObject();
+		reserveRoom.put(MessageTag.type.name(), MessageType.reserveroomid.name());
+		reserveRoom.put(MessageTag.serverid.name(), serverId);
+		reserveRoom.put(MessageTag.roomid.name(), roomId);
+		return reserveRoom;
+	}
+
 	@SuppressWarnings("unchecked")
 	private synchronized JSONObject createReleaseRoomMessage(String serverId, String roomId, String approved) {
 		JSONObject releaseRoom = new JSONObject();
@@ -731,6 +1724,33 @@ public class ClientWorker extends Thread {
 		return releaseRoom;
 	}
 
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createResumeResponse(String approved, String roomId, String token) {
+		JSONObject resume = new JSONObject();
+		resume.put(MessageTag.type.name(), MessageType.resume.name());
+		resume.put(MessageTag.approved.name(), approved);
+		if (roomId != null) {
+			resume.put(MessageTag.roomid.name(), roomId);
+			resume.put(MessageTag.token.name(), token);
+		}
+		return resume;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createPresenceResponse(String approved) {
+		JSONObject presence = new JSONObject();
+		presence.put(MessageTag.type.name(), MessageType.presence.name());
+		presence.put(MessageTag.approved.name(), approved);
+		return presence;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createKeepAliveMessage() {
+		JSONObject keepAlive = new JSONObject();
+		keepAlive.put(MessageTag.type.name(), MessageType.keepalive.name());
+		return keepAlive;
+	}
+
 	@SuppressWarnings("unchecked")
 	private synchronized JSONObject createRoomList(List<String> allChatRooms) {
 		JSONObject roomlist = new JSONObject();
@@ -761,14 +1781,56 @@ public class ClientWorker extends Thread {
 	}
 
 	@SuppressWarnings("unchecked")
-	private synchronized JSONObject createReleaseIdentityMessage(String serverId, String identity) {
+	private synchronized JSONObject createReserveIdentity(String serverId, String identity) {
+		JSONObject reserveIdentity = new JSONObject();
+		reserveIdentity.put(MessageTag.type.name(), MessageType.reserveidentity.name());
+		reserveIdentity.put(MessageTag.serverid.name(), serverId);
+		reserveIdentity.put(MessageTag.identity.name(), identity);
+		return reserveIdentity;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createReleaseIdentityMessage(String serverId, String identity, String approved) {
 		JSONObject releaseLock = new JSONObject();
 		releaseLock.put(MessageTag.type.name(), MessageType.releaseidentity.name());
 		releaseLock.put(MessageTag.serverid.name(), serverId);
 		releaseLock.put(MessageTag.identity.name(), identity);
+		releaseLock.put(MessageTag.approved.name(), approved);
 		return releaseLock;
 	}
 
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createMigrateMessage(String serverId, String identity, String nonce,
+			String former, String roomId) {
+		JSONObject migrate = new JSONObject();
+		migrate.put(MessageTag.type.name(), MessageType.migrate.name());
+		migrate.put(MessageTag.serverid.name(), serverId);
+		migrate.put(MessageTag.identity.name(), identity);
+		migrate.put(MessageTag.ticket.name(), nonce);
+		migrate.put(MessageTag.former.name(), former);
+		migrate.put(MessageTag.roomid.name(), roomId);
+		return migrate;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createPlaceRoomMessage(String serverId, String roomId, String identity) {
+		JSONObject placeRoom = new JSONObject();
+		placeRoom.put(MessageTag.type.name(), MessageType.placeroom.name());
+		placeRoom.put(MessageTag.serverid.name(), serverId);
+		placeRoom.put(MessageTag.roomid.name(), roomId);
+		placeRoom.put(MessageTag.identity.name(), identity);
+		return placeRoom;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createDeleteIdentityNotification(String serverId, String identity) {
+		JSONObject deleteIdentity = new JSONObject();
+		deleteIdentity.put(MessageTag.type.name(), MessageType.deleteidentity.name());
+		deleteIdentity.put(MessageTag.serverid.name(), serverId);
+		deleteIdentity.put(MessageTag.identity.name(), identity);
+		return deleteIdentity;
+	}
+
 	/**
 	 * Send message to the client
 	 * 
@@ -788,7 +1850,7 @@ public class ClientWorker extends Thread {
 		}
 		try {
 			out.write(message + "\n");
-			out.flush();
+			flushOrDefer(1);
 			System.out.println(Thread.currentThread().getName() + ": sent a message to client \"" + message + "\"");
 		} catch (IOException e) {
 			System.err.println(
@@ -797,6 +1859,159 @@ public class ClientWorker extends Thread {
 		return true;
 	}
 
+	/**
+	 * Send frames which are already encoded to the client, even while the
+	 * output is blocked.
+	 * 
+	 * @param frames
+	 *            messages including their line ends
+	 */
+	public synchronized void sendFrames(List<String> frames) {
+		try {
+			for (String frame : frames) {
+				out.write(frame);
+			}
+			flushOrDefer(frames.size());
+			System.out.println(Thread.currentThread().getName() + ": sent " + frames.size()
+					+ " earlier messages to client " + myIdentity);
+		} catch (IOException e) {
+			System.err.println(
+					Thread.currentThread().getName() + ": error while sending a message to the client " + myIdentity);
+		}
+	}
+
+	/**
+	 * Send a chat message which is already encoded to the client, unless the
+	 * output is blocked.
+	 * 
+	 * @param frame
+	 *            message including its line end
+	 */
+	public synchronized void relayFrame(String frame) {
+		if (clientOutBufferBlocked) {
+			return;
+		}
+		try {
+			out.write(frame);
+			flushOrDefer(1);
+		} catch (IOException e) {
+			System.err.println(
+					Thread.currentThread().getName() + ": error while sending a message to the client " + myIdentity);
+		}
+	}
+
+	/**
+	 * Flush the messages just written, or leave them for the output flusher
+	 * so that the messages written within its delay are sent together. The
+	 * messages are flushed here if the oldest of them waited too long already.
+	 * 
+	 * @param frames
+	 *            number of messages just written
+	 * @throws IOException
+	 */
+	private synchronized void flushOrDefer(int frames) throws IOException {
+		OutputFlusher flusher = serverData.getOutputFlusher();
+		if (flusher == null) {
+			out.flush();
+			return;
+		}
+		if (unflushedFrames == 0) {
+			unflushedSince = System.nanoTime();
+			unflushedFrames = frames;
+			flusher.schedule(this);
+		} else {
+			unflushedFrames += frames;
+			if (System.nanoTime() - unflushedSince >= flusher.getMaxDelay()) {
+				Metrics.getInstance().increment("flush.capped");
+				flushOutput();
+			}
+		}
+	}
+
+	/**
+	 * Send the messages written to the output but not flushed yet.
+	 */
+	public synchronized void flushOutput() {
+		if (unflushedFrames == 0) {
+			return;
+		}
+		Metrics metrics = Metrics.getInstance();
+		metrics.increment("flush.writes");
+		metrics.add("flush.frames", unflushedFrames);
+		metrics.add("flush.saved", unflushedFrames - 1);
+		metrics.max("flush.frames.max", unflushedFrames);
+		metrics.max("flush.delay.us.max", (System.nanoTime() - unflushedSince) / 1000);
+		unflushedFrames = 0;
+		try {
+			out.flush();
+		} catch (IOException e) {
+			System.err.println(
+					Thread.currentThread().getName() + ": error while sending a message to the client " + myIdentity);
+		}
+	}
+
+	/**
+	 * Close the connection of a client which does not take the messages
+	 * written to it. This does not wait for the output, so that it ends a
+	 * flush which is blocked on the socket.
+	 */
+	public void abortOutput() {
+		if (exit || socket.isClosed()) {
+			return;
+		}
+		Metrics.getInstance().increment("flush.timeouts");
+		System.err.println(getName() + ": closing the connection of the client " + myIdentity
+				+ " which does not take its messages");
+		exit = true;
+		closeSocket();
+	}
+
+	/**
+	 * Send a reply to a request of the client. If the client tagged the request
+	 * with a request id, the reply carries the same id so that the client can
+	 * match replies to pipelined requests. The message is copied before
+	 * tagging, because it may be broadcast to other members as well. A tagged
+	 * reply is never dropped while the output is blocked, since a pipelined
+	 * request may finish while another request of the client changes rooms.
+	 * 
+	 * @param message
+	 * @param requestId
+	 *            request id of the client, or null
+	 * @param specialPriority
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean sendReply(JSONObject message, String requestId, boolean specialPriority) {
+		if (requestId != null) {
+			JSONObject reply = new JSONObject();
+			reply.putAll(message);
+			reply.put(MessageTag.requestid.name(), requestId);
+			message = reply;
+			specialPriority = true;
+		}
+		return sendMessage(message, specialPriority);
+	}
+
+	public boolean wantsPresenceSummaries() {
+		return presenceSummaries;
+	}
+
+	/**
+	 * Get the time from which the client may have missed the chat messages of
+	 * its room on this connection: the time its session was suspended, or the
+	 * last time it was heard from if its session was taken over while the
+	 * connection was still open.
+	 * 
+	 * @return
+	 */
+	public long getMissedSince() {
+		return suspendedTime > 0 ? suspendedTime : lastReadTime;
+	}
+
+	public String getChatRoom() {
+		return myChatRoom;
+	}
+
 	public synchronized void setChatRoom(String roomid) {
 		this.myChatRoom = roomid;
 	}
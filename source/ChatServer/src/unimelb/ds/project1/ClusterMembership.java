@@ -0,0 +1,281 @@
+package unimelb.ds.project1;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import unimelb.ds.project1.GlobalConstants.MessageTag;
+import unimelb.ds.project1.GlobalConstants.MessageType;
+
+/**
+ * This singleton class adds and removes other servers while the server is
+ * running, when the config file changes or when a server announces that it
+ * joins or leaves. A server which joins is sent the chat rooms and clients of
+ * this server, so it knows them without a restart of the system. A server
+ * which starts synchronizes with the others before accepting clients.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class ClusterMembership {
+	/**
+	 * Singleton instance of the class
+	 */
+	private static ClusterMembership instance = new ClusterMembership();
+
+	/**
+	 * Private constructor of the singleton class
+	 */
+	private ClusterMembership() {
+	}
+
+	/**
+	 * Get singleton instance of the class.
+	 *
+	 * @return
+	 */
+	public static ClusterMembership getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Bring the other servers in line with the servers listed in the config
+	 * file.
+	 *
+	 * @param servers
+	 *            all servers in the config file
+	 */
+	public synchronized void applyConfig(List<Server> servers) {
+		ServerData serverData = ServerData.getInstance();
+		String myId = serverData.getMyData().getId();
+		Set<String> listed = new HashSet<String>();
+		for (Server server : servers) {
+			listed.add(server.getId());
+		}
+		if (!listed.contains(myId)) {
+			System.err.println("[ This server is no longer in the config file, keeping the other servers ]");
+			return;
+		}
+		List<Server> added = new ArrayList<Server>();
+		boolean changed = false;
+		for (Server server : servers) {
+			if (!server.getId().equals(myId) && serverData.addOtherServer(server)) {
+				added.add(server);
+				changed = true;
+			}
+		}
+		for (Server server : serverData.getOtherServers()) {
+			if (!listed.contains(server.getId())) {
+				serverData.removeOtherServer(server.getId());
+				changed = true;
+				System.out.println("[ Server " + server.getId() + " left the system ]");
+			}
+		}
+		if (changed) {
+			membershipChanged(added);
+		}
+	}
+
+	/**
+	 * Add a server which announced that it joins the system. The server is
+	 * always sent the directory of this server, since it may have restarted.
+	 *
+	 * @param server
+	 */
+	public synchronized void addServer(Server server) {
+		ServerData serverData = ServerData.getInstance();
+		if (server.getId().equals(serverData.getMyData().getId())) {
+			return;
+		}
+		if (serverData.addOtherServer(server)) {
+			membershipChanged(Collections.singletonList(server));
+		} else {
+			sendDirectory(Collections.singletonList(server));
+		}
+	}
+
+	/**
+	 * Remove a server which announced that it leaves the system.
+	 *
+	 * @param serverId
+	 */
+	public synchronized void removeServer(String serverId) {
+		if (ServerData.getInstance().removeOtherServer(serverId) != null) {
+			System.out.println("[ Server " + serverId + " left the system ]");
+			membershipChanged(Collections.<Server> emptyList());
+		}
+	}
+
+	/**
+	 * Tell the other servers that this server joins the system, and wait for
+	 * their snapshots. The other servers forget what they knew about an
+	 * earlier run of this server. This server records their chat rooms,
+	 * clients and the locks they hold, so that it is consistent before it
+	 * accepts clients.
+	 */
+	public void synchronize() {
+		ServerData serverData = ServerData.getInstance();
+		long startTime = System.currentTimeMillis();
+		List<Server> servers = serverData.getOtherServers();
+		List<String> snapshots = CoordinationClient.getInstance()
+				.sendAndGetRepliesAsync(createServerMessage(MessageType.snapshot, serverData.getMyData()), servers)
+				.join();
+		JSONParser parser = new JSONParser();
+		for (String snapshot : snapshots) {
+			try {
+				recordSnapshot((JSONObject) parser.parse(snapshot));
+			} catch (ParseException | RuntimeException e) {
+				System.err.println(Thread.currentThread().getName() + ": invalid snapshot: " + snapshot);
+			}
+		}
+		long syncMillis = System.currentTimeMillis() - startTime;
+		Metrics.getInstance().set("sync.servers", snapshots.size());
+		Metrics.getInstance().set("sync.ms", syncMillis);
+		System.out.println("[ Synchronized with " + snapshots.size() + " of " + servers.size() + " servers in "
+				+ syncMillis + " ms ]");
+	}
+
+	/**
+	 * Handle a server which started, and may have run before. Everything
+	 * known about its earlier run is forgotten.
+	 *
+	 * @param server
+	 * @return the snapshot of this server to send to it
+	 */
+	public synchronized JSONObject rejoin(Server server) {
+		ServerData serverData = ServerData.getInstance();
+		serverData.forgetServerState(server.getId());
+		if (serverData.addOtherServer(server)) {
+			membershipChanged(Collections.singletonList(server));
+		}
+		Metrics.getInstance().increment("sync.snapshots");
+		return createSnapshot();
+	}
+
+	/**
+	 * Send the chat rooms and clients of this server to all other servers.
+	 */
+	public void announceDirectory() {
+		sendDirectory(ServerData.getInstance().getOtherServers());
+	}
+
+	/**
+	 * Record the directory sent by another server.
+	 *
+	 * @param directory
+	 */
+	@SuppressWarnings("unchecked")
+	public void recordDirectory(JSONObject directory) {
+		String serverId = (String) directory.get(MessageTag.serverid.name());
+		ServerData.getInstance().recordDirectory(serverId, (List<String>) directory.get(MessageTag.rooms.name()),
+				(List<String>) directory.get(MessageTag.identities.name()));
+	}
+
+	/**
+	 * Record the snapshot sent by another server while this server starts.
+	 *
+	 * @param snapshot
+	 */
+	@SuppressWarnings("unchecked")
+	private void recordSnapshot(JSONObject snapshot) {
+		recordDirectory(snapshot);
+		ServerData.getInstance().importLocks((Map<String, String>) snapshot.get(MessageTag.lockedidentities.name()),
+				(Map<String, String>) snapshot.get(MessageTag.lockedrooms.name()));
+	}
+
+	/**
+	 * Read the server described in an addserver or snapshot message.
+	 *
+	 * @param message
+	 * @return
+	 */
+	public Server readServer(JSONObject message) {
+		Server server = new Server();
+		server.setId((String) message.get(MessageTag.serverid.name()));
+		server.setIp((String) message.get(MessageTag.host.name()));
+		server.setClientPort(Integer.parseInt((String) message.get(MessageTag.port.name())));
+		server.setCoordinationPort(Integer.parseInt((String) message.get(MessageTag.coordinationport.name())));
+		return server;
+	}
+
+	/**
+	 * Update the hash ring and send the directory to the servers which need
+	 * it. When the hash ring changes, the owners of identities change, so all
+	 * servers are sent the directory.
+	 *
+	 * @param added
+	 */
+	private void membershipChanged(List<Server> added) {
+		ServerData serverData = ServerData.getInstance();
+		Metrics.getInstance().increment("membership.changes");
+		Metrics.getInstance().set("membership.servers", serverData.getOtherServers().size() + 1);
+		for (Server server : added) {
+			System.out.println("[ Server " + server.getId() + " joined the system ]");
+		}
+		if (serverData.getHashRing() != null) {
+			serverData.rebuildHashRing();
+			sendDirectory(serverData.getOtherServers());
+		} else {
+			sendDirectory(added);
+		}
+	}
+
+	/**
+	 * Send the chat rooms and clients of this server to the given servers.
+	 *
+	 * @param servers
+	 */
+	private void sendDirectory(List<Server> servers) {
+		if (!servers.isEmpty()) {
+			CoordinationClient.getInstance().sendAsync(createDirectoryMessage(), servers);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject createDirectoryMessage() {
+		ServerData serverData = ServerData.getInstance();
+		JSONObject directory = new JSONObject();
+		directory.put(MessageTag.type.name(), MessageType.directory.name());
+		directory.put(MessageTag.serverid.name(), serverData.getMyData().getId());
+		JSONArray rooms = new JSONArray();
+		rooms.addAll(serverData.getMyChatRoomIds());
+		directory.put(MessageTag.rooms.name(), rooms);
+		JSONArray identities = new JSONArray();
+		identities.addAll(serverData.getMyClients());
+		directory.put(MessageTag.identities.name(), identities);
+		return directory;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject createSnapshot() {
+		ServerData serverData = ServerData.getInstance();
+		JSONObject snapshot = createDirectoryMessage();
+		snapshot.put(MessageTag.type.name(), MessageType.snapshot.name());
+		JSONObject lockedIdentities = new JSONObject();
+		lockedIdentities.putAll(serverData.getLockedIdentities());
+		snapshot.put(MessageTag.lockedidentities.name(), lockedIdentities);
+		JSONObject lockedRooms = new JSONObject();
+		lockedRooms.putAll(serverData.getLockedRoomIds());
+		snapshot.put(MessageTag.lockedrooms.name(), lockedRooms);
+		return snapshot;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject createServerMessage(MessageType type, Server server) {
+		JSONObject message = new JSONObject();
+		message.put(MessageTag.type.name(), type.name());
+		message.put(MessageTag.serverid.name(), server.getId());
+		message.put(MessageTag.host.name(), server.getIp());
+		message.put(MessageTag.port.name(), String.valueOf(server.getClientPort()));
+		message.put(MessageTag.coordinationport.name(), String.valueOf(server.getCoordinationPort()));
+		return message;
+	}
+}
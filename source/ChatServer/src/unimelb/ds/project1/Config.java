@@ -28,6 +28,385 @@ public class Config {
 	@Option(required = true, name = "-l", usage = "Path to the configuration file.")
 	private String configFile;
 
+	/**
+	 * Whether identities and room ids are reserved on their owning servers in
+	 * a consistent hash ring instead of on all servers.
+	 */
+	@Option(name = "-hashring", usage = "Reserve identities and room ids only on their owning servers in a consistent hash ring.")
+	private boolean hashRing = false;
+
+	/**
+	 * Number of servers in the hash ring which hold a reservation (the owner
+	 * and its replicas).
+	 */
+	@Option(name = "-ringreplicas", usage = "Number of servers holding a reservation in the hash ring mode (default 2).")
+	private int ringReplicas = 2;
+
+	/**
+	 * Time in milliseconds after which an unreleased identity or room id lock
+	 * expires.
+	 */
+	@Option(name = "-locklease", usage = "Milliseconds after which an unreleased identity or room id lock expires (default 30000).")
+	private long lockLease = 30000;
+
+	/**
+	 * Whether identities and room ids are reserved in a single round trip
+	 * instead of the two phase lock and release protocol.
+	 */
+	@Option(name = "-optimistic", usage = "Reserve identities and room ids in a single round trip instead of locking and releasing them.")
+	private boolean optimistic = false;
+
+	/**
+	 * Milliseconds to wait for connecting to another server and for its reply.
+	 */
+	@Option(name = "-coordinationtimeout", usage = "Milliseconds to wait for another server to accept a connection or reply (default 2000).")
+	private int coordinationTimeout = 2000;
+
+	/**
+	 * Time between heartbeats to other servers in milliseconds.
+	 */
+	@Option(name = "-heartbeat", usage = "Milliseconds between heartbeats to other servers (default 1000).")
+	private long heartbeatInterval = 1000;
+
+	/**
+	 * Time in milliseconds after which a silent server is suspected.
+	 */
+	@Option(name = "-suspecttimeout", usage = "Milliseconds without hearing from a server before it is suspected (default 3000).")
+	private long suspectTimeout = 3000;
+
+	/**
+	 * Time in milliseconds after which a silent server is considered dead.
+	 */
+	@Option(name = "-deadtimeout", usage = "Milliseconds without hearing from a server before it is considered dead (default 10000).")
+	private long deadTimeout = 10000;
+
+	/**
+	 * Which servers are skipped when sending coordination messages.
+	 */
+	@Option(name = "-skippeers", usage = "Skip none, dead or suspected servers when sending coordination messages (default dead).")
+	private FailureDetector.SkipPolicy skipPolicy = FailureDetector.SkipPolicy.dead;
+
+	/**
+	 * Number of times a failed coordination message is sent again.
+	 */
+	@Option(name = "-retries", usage = "Number of times a failed coordination message is sent again (default 2).")
+	private int coordinationRetries = 2;
+
+	/**
+	 * Base delay in milliseconds before retrying a coordination message.
+	 */
+	@Option(name = "-retrydelay", usage = "Base milliseconds before retrying a coordination message, doubled for each retry (default 100).")
+	private long retryDelay = 100;
+
+	/**
+	 * Consecutive failures after which messages to a server fail straight
+	 * away.
+	 */
+	@Option(name = "-breakerfailures", usage = "Consecutive failures which open the circuit to a server (default 5).")
+	private int breakerFailures = 5;
+
+	/**
+	 * Time in milliseconds the circuit to a failing server stays open.
+	 */
+	@Option(name = "-breakeropen", usage = "Milliseconds the circuit to a failing server stays open (default 5000).")
+	private long breakerOpenTime = 5000;
+
+	/**
+	 * Time in milliseconds a server holds the identity of a client moving to
+	 * it. Clients then have to send the ticket of their route message with
+	 * movejoin, so zero, which disables migration tickets, is the default.
+	 */
+	@Option(name = "-migrationticket", usage = "Milliseconds a moving client has to reach its new server with the ticket of its route before the ticket expires, 0 to lock the identity again on arrival (default 0).")
+	private long migrationTicketTime = 0;
+
+	/**
+	 * Number of clients from which new clients are redirected to a server
+	 * with fewer clients. Zero disables redirecting.
+	 */
+	@Option(name = "-redirectclients", usage = "Clients on this server from which new clients are redirected to a less loaded server, 0 to never redirect (default 0).")
+	private int redirectClients = 0;
+
+	/**
+	 * Whether new rooms are placed on a server with fewer clients.
+	 */
+	@Option(name = "-placerooms", usage = "Place new rooms, with their owners, on a less loaded server.")
+	private boolean placeRooms = false;
+
+	/**
+	 * How many fewer clients another server needs to be less loaded.
+	 */
+	@Option(name = "-loadmargin", usage = "How many fewer clients another server needs to be chosen as less loaded (default 5).")
+	private int loadMargin = 5;
+
+	/**
+	 * Load average per processor above which a server is not chosen. Zero
+	 * ignores the CPU.
+	 */
+	@Option(name = "-cpulimit", usage = "Load average per processor above which another server is not chosen as less loaded, 0 to ignore the CPU (default 0).")
+	private double cpuLimit = 0;
+
+	/**
+	 * Time in milliseconds between checks of the config file for servers
+	 * joining or leaving. Zero disables the checks.
+	 */
+	@Option(name = "-configpoll", usage = "Milliseconds between checks of the config file for servers joining or leaving, 0 to never reload (default 2000).")
+	private long configPollInterval = 2000;
+
+	/**
+	 * File the chat rooms of this server are saved to and restored from.
+	 */
+	@Option(name = "-snapshot", usage = "File to save the chat rooms of this server to, and restore them from at startup.")
+	private String snapshotFile;
+
+	/**
+	 * Time in milliseconds between snapshots of the chat rooms.
+	 */
+	@Option(name = "-snapshotinterval", usage = "Milliseconds between snapshots of the chat rooms (default 5000).")
+	private long snapshotInterval = 5000;
+
+	/**
+	 * Time in milliseconds the owner of a restored room has to come back.
+	 */
+	@Option(name = "-ownergrace", usage = "Milliseconds the owner of a restored chat room has to reconnect before the room is deleted (default 60000).")
+	private long ownerGrace = 60000;
+
+	/**
+	 * Number of recent chat messages of a room sent to a client joining it.
+	 */
+	@Option(name = "-history", usage = "Number of recent chat messages of a room sent to clients joining it, 0 to keep no history (default 0).")
+	private int historyMessages = 0;
+
+	/**
+	 * Maximum age in milliseconds of the messages sent to a joining client.
+	 */
+	@Option(name = "-historyage", usage = "Milliseconds of recent chat messages sent to clients joining a room, 0 for no limit (default 0).")
+	private long historyAge = 0;
+
+	/**
+	 * Size in bytes of the history buffer of a room.
+	 */
+	@Option(name = "-historyroombytes", usage = "Bytes of message history kept for each chat room (default 65536).")
+	private int historyRoomBytes = 65536;
+
+	/**
+	 * Maximum bytes of message history of all chat rooms.
+	 */
+	@Option(name = "-historymemory", usage = "Maximum bytes of message history for all chat rooms of this server (default 16777216).")
+	private long historyMemory = 16777216;
+
+	/**
+	 * Directory of the chat message log, null to keep no log.
+	 */
+	@Option(name = "-logdir", usage = "Directory to log the chat messages of this server to, no log if not given.")
+	private String logDir;
+
+	/**
+	 * When the message log is forced to disk.
+	 */
+	@Option(name = "-logsync", usage = "When the message log is forced to disk: always, interval or never (default interval).")
+	private MessageLog.SyncPolicy logSync = MessageLog.SyncPolicy.interval;
+
+	/**
+	 * Time in milliseconds between syncs of the message log.
+	 */
+	@Option(name = "-logsyncinterval", usage = "Milliseconds between syncs of the message log with the interval policy (default 1000).")
+	private long logSyncInterval = 1000;
+
+	/**
+	 * Time in milliseconds the log writer waits for more messages when the
+	 * queue is empty.
+	 */
+	@Option(name = "-logbatchms", usage = "Milliseconds the message log waits to collect a batch of messages (default 10).")
+	private long logBatchTime = 10;
+
+	/**
+	 * Maximum number of messages waiting to be logged.
+	 */
+	@Option(name = "-logqueue", usage = "Messages waiting to be logged before further messages are dropped from the log (default 100000).")
+	private int logQueue = 100000;
+
+	/**
+	 * Size in bytes at which a new log segment is started.
+	 */
+	@Option(name = "-logsegmentbytes", usage = "Bytes after which a new message log segment is started (default 67108864).")
+	private long logSegmentBytes = 67108864;
+
+	/**
+	 * Time in milliseconds after which a new log segment is started.
+	 */
+	@Option(name = "-logsegmentms", usage = "Milliseconds after which a new message log segment is started (default 3600000).")
+	private long logSegmentTime = 3600000;
+
+	/**
+	 * Time in milliseconds log segments are kept.
+	 */
+	@Option(name = "-logretention", usage = "Milliseconds message log segments are kept, 0 to keep them forever (default 0).")
+	private long logRetention = 0;
+
+	/**
+	 * Maximum bytes of all log segments.
+	 */
+	@Option(name = "-logretainbytes", usage = "Bytes of message log segments kept, 0 for no limit (default 0).")
+	private long logRetainBytes = 0;
+
+	/**
+	 * Time in milliseconds between runs of the message log indexer.
+	 */
+	@Option(name = "-indexinterval", usage = "Milliseconds between updates of the message log index, 0 to not index the log (default 5000).")
+	private long indexInterval = 5000;
+
+	/**
+	 * Number of message log indexes of the same level merged into one.
+	 */
+	@Option(name = "-indexmerge", usage = "Number of message log indexes of the same level merged into one in the background, 0 to never merge (default 4).")
+	private int indexMerge = 4;
+
+	/**
+	 * Maximum number of messages returned by a search.
+	 */
+	@Option(name = "-searchlimit", usage = "Maximum number of messages returned by a search of the message log (default 100).")
+	private int searchLimit = 100;
+
+	/**
+	 * Messages per second a client may send on average.
+	 */
+	@Option(name = "-ratelimit", usage = "Messages per second a client may send on average, 0 for no limit (default 0).")
+	private double rateLimit = 0;
+
+	/**
+	 * Messages a client may send in a burst.
+	 */
+	@Option(name = "-rateburst", usage = "Messages a client may send in a burst above the rate limit (default 20).")
+	private int rateBurst = 20;
+
+	/**
+	 * Limits per message type as type:rate:burst separated by commas.
+	 */
+	@Option(name = "-typelimits", usage = "Limits per message type as type:rate:burst separated by commas, for example message:10:20,list:1:5.")
+	private String typeLimits;
+
+	/**
+	 * Throttled messages in a window after which the client is disconnected.
+	 */
+	@Option(name = "-maxthrottles", usage = "Throttled messages within the throttle window after which a client is disconnected, 0 to never disconnect (default 100).")
+	private int maxThrottles = 100;
+
+	/**
+	 * Time in milliseconds over which throttled messages are counted.
+	 */
+	@Option(name = "-throttlewindow", usage = "Milliseconds over which throttled messages of a client are counted (default 10000).")
+	private long throttleWindow = 10000;
+
+	/**
+	 * Maximum number of client connections.
+	 */
+	@Option(name = "-maxconnections", usage = "Client connections after which new clients are routed elsewhere or rejected, 0 for no limit (default 0).")
+	private int maxConnections = 0;
+
+	/**
+	 * Maximum number of requests waiting to be processed.
+	 */
+	@Option(name = "-maxbacklog", usage = "Queued client requests and pending coordination messages after which new clients are not accepted, 0 for no limit (default 0).")
+	private int maxBacklog = 0;
+
+	/**
+	 * Minimum fraction of the heap which must be free to accept clients.
+	 */
+	@Option(name = "-minfreeheap", usage = "Fraction of the maximum heap which must be free to accept new clients, 0 for no limit (default 0).")
+	private double minFreeHeap = 0;
+
+	/**
+	 * Maximum latency percentile of client requests to accept clients.
+	 */
+	@Option(name = "-maxlatency", usage = "Milliseconds of request latency at the latency percentile after which new clients are not accepted, 0 for no limit (default 0).")
+	private long maxLatency = 0;
+
+	/**
+	 * Percentile of request latencies compared with the maximum latency.
+	 */
+	@Option(name = "-latencypercentile", usage = "Percentile of request latencies compared with the maximum latency (default 0.99).")
+	private double latencyPercentile = 0.99;
+
+	/**
+	 * Time in milliseconds a rejected client is asked to wait.
+	 */
+	@Option(name = "-busyretry", usage = "Milliseconds a rejected client is asked to wait before connecting again (default 5000).")
+	private long busyRetry = 5000;
+
+	/**
+	 * New identities per second locked on other servers.
+	 */
+	@Option(name = "-identityrate", usage = "New identities per second sent to other servers in batches, 0 to lock each identity at once (default 0).")
+	private double identityRate = 0;
+
+	/**
+	 * Time in milliseconds between batches of identity locks.
+	 */
+	@Option(name = "-identitybatchms", usage = "Milliseconds between batches of identity locks sent to other servers (default 20).")
+	private long identityBatchTime = 20;
+
+	/**
+	 * Maximum number of new identities waiting to be locked.
+	 */
+	@Option(name = "-identityqueue", usage = "Maximum number of new identities waiting to be sent to other servers, 0 for no limit (default 1000).")
+	private int identityQueue = 1000;
+
+	/**
+	 * Time in milliseconds a new identity may wait to be locked.
+	 */
+	@Option(name = "-identitywait", usage = "Milliseconds a new identity may wait to be sent to other servers before it is refused, 0 for no limit (default 10000).")
+	private long identityWait = 10000;
+
+	/**
+	 * Time in milliseconds without messages after which a client is probed.
+	 */
+	@Option(name = "-clientidle", usage = "Milliseconds without messages from a client after which it is probed with a keepalive, 0 to never (default 0).")
+	private long clientIdle = 0;
+
+	/**
+	 * Time in milliseconds a probed client has to send a message.
+	 */
+	@Option(name = "-clientprobe", usage = "Milliseconds a client has to answer a keepalive before it is disconnected, 0 to disconnect idle clients without probing (default 10000).")
+	private long clientProbe = 10000;
+
+	/**
+	 * Time in milliseconds a disconnected client can resume its session.
+	 */
+	@Option(name = "-sessiongrace", usage = "Milliseconds a disconnected client keeps its identity and rooms and can resume its session, 0 to remove it at once (default 0).")
+	private long sessionGrace = 0;
+
+	/**
+	 * Time in milliseconds over which joins and leaves are summarised.
+	 */
+	@Option(name = "-presencewindow", usage = "Milliseconds over which the joins and leaves of a room are summarised for clients which ask for summaries, 0 to always send them one by one (default 0).")
+	private long presenceWindow = 0;
+
+	/**
+	 * Time in microseconds the messages to a client are gathered before they
+	 * are sent.
+	 */
+	@Option(name = "-flushdelay", usage = "Microseconds the messages to a client are gathered before they are sent together, 0 to send every message at once (default 0).")
+	private long flushDelay = 0;
+
+	/**
+	 * Time in microseconds after which gathered messages are sent in any case.
+	 */
+	@Option(name = "-flushmaxdelay", usage = "Microseconds after which the gathered messages to a client are sent by the next message written to it, if they were not sent yet (default 2000).")
+	private long flushMaxDelay = 2000;
+
+	/**
+	 * Time in milliseconds after which a connection which does not take the
+	 * gathered messages is closed.
+	 */
+	@Option(name = "-flushtimeout", usage = "Milliseconds after which the connection of a client which does not take the gathered messages is closed (default 5000).")
+	private long flushTimeout = 5000;
+
+	/**
+	 * Number of members from which a chat room keeps a bit per member.
+	 */
+	@Option(name = "-bitsetmembers", usage = "Number of members from which a chat room keeps its members as bits over the client table instead of a map, 0 to always keep a map (default 1024).")
+	private int bitsetMembers = 1024;
+
 	public String getServerId() {
 		return serverId;
 	}
@@ -44,6 +423,494 @@ public class Config {
 		this.configFile = configFile;
 	}
 
+	public boolean isHashRing() {
+		return hashRing;
+	}
+
+	public void setHashRing(boolean hashRing) {
+		this.hashRing = hashRing;
+	}
+
+	public int getRingReplicas() {
+		return ringReplicas;
+	}
+
+	public void setRingReplicas(int ringReplicas) {
+		this.ringReplicas = ringReplicas;
+	}
+
+	public long getLockLease() {
+		return lockLease;
+	}
+
+	public void setLockLease(long lockLease) {
+		this.lockLease = lockLease;
+	}
+
+	public boolean isOptimistic() {
+		return optimistic;
+	}
+
+	public void setOptimistic(boolean optimistic) {
+		this.optimistic = optimistic;
+	}
+
+	public int getCoordinationTimeout() {
+		return coordinationTimeout;
+	}
+
+	public void setCoordinationTimeout(int coordinationTimeout) {
+		this.coordinationTimeout = coordinationTimeout;
+	}
+
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	public long getSuspectTimeout() {
+		return suspectTimeout;
+	}
+
+	public void setSuspectTimeout(long suspectTimeout) {
+		this.suspectTimeout = suspectTimeout;
+	}
+
+	public long getDeadTimeout() {
+		return deadTimeout;
+	}
+
+	public void setDeadTimeout(long deadTimeout) {
+		this.deadTimeout = deadTimeout;
+	}
+
+	public FailureDetector.SkipPolicy getSkipPolicy() {
+		return skipPolicy;
+	}
+
+	public void setSkipPolicy(FailureDetector.SkipPolicy skipPolicy) {
+		this.skipPolicy = skipPolicy;
+	}
+
+	public int getCoordinationRetries() {
+		return coordinationRetries;
+	}
+
+	public void setCoordinationRetries(int coordinationRetries) {
+		this.coordinationRetries = coordinationRetries;
+	}
+
+	public long getRetryDelay() {
+		return retryDelay;
+	}
+
+	public void setRetryDelay(long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	public int getBreakerFailures() {
+		return breakerFailures;
+	}
+
+	public void setBreakerFailures(int breakerFailures) {
+		this.breakerFailures = breakerFailures;
+	}
+
+	public long getBreakerOpenTime() {
+		return breakerOpenTime;
+	}
+
+	public void setBreakerOpenTime(long breakerOpenTime) {
+		this.breakerOpenTime = breakerOpenTime;
+	}
+
+	public long getMigrationTicketTime() {
+		return migrationTicketTime;
+	}
+
+	public void setMigrationTicketTime(long migrationTicketTime) {
+		this.migrationTicketTime = migrationTicketTime;
+	}
+
+	public int getRedirectClients() {
+		return redirectClients;
+	}
+
+	public void setRedirectClients(int redirectClients) {
+		this.redirectClients = redirectClients;
+	}
+
+	public boolean isPlaceRooms() {
+		return placeRooms;
+	}
+
+	public void setPlaceRooms(boolean placeRooms) {
+		this.placeRooms = placeRooms;
+	}
+
+	public int getLoadMargin() {
+		return loadMargin;
+	}
+
+	public void setLoadMargin(int loadMargin) {
+		this.loadMargin = loadMargin;
+	}
+
+	public double getCpuLimit() {
+		return cpuLimit;
+	}
+
+	public void setCpuLimit(double cpuLimit) {
+		this.cpuLimit = cpuLimit;
+	}
+
+	public long getConfigPollInterval() {
+		return configPollInterval;
+	}
+
+	public void setConfigPollInterval(long configPollInterval) {
+		this.configPollInterval = configPollInterval;
+	}
+
+	public String getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	public void setSnapshotFile(String snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	public long getSnapshotInterval() {
+		return snapshotInterval;
+	}
+
+	public void setSnapshotInterval(long snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	public long getOwnerGrace() {
+		return ownerGrace;
+	}
+
+	public void setOwnerGrace(long ownerGrace) {
+		this.ownerGrace = ownerGrace;
+	}
+
+	public int getHistoryMessages() {
+		return historyMessages;
+	}
+
+	public void setHistoryMessages(int historyMessages) {
+		this.historyMessages = historyMessages;
+	}
+
+	public long getHistoryAge() {
+		return historyAge;
+	}
+
+	public void setHistoryAge(long historyAge) {
+		this.historyAge = historyAge;
+	}
+
+	public int getHistoryRoomBytes() {
+		return historyRoomBytes;
+	}
+
+	public void setHistoryRoomBytes(int historyRoomBytes) {
+		this.historyRoomBytes = historyRoomBytes;
+	}
+
+	public long getHistoryMemory() {
+		return historyMemory;
+	}
+
+	public void setHistoryMemory(long historyMemory) {
+		this.historyMemory = historyMemory;
+	}
+
+	public String getLogDir() {
+		return logDir;
+	}
+
+	public void setLogDir(String logDir) {
+		this.logDir = logDir;
+	}
+
+	public MessageLog.SyncPolicy getLogSync() {
+		return logSync;
+	}
+
+	public void setLogSync(MessageLog.SyncPolicy logSync) {
+		this.logSync = logSync;
+	}
+
+	public long getLogSyncInterval() {
+		return logSyncInterval;
+	}
+
+	public void setLogSyncInterval(long logSyncInterval) {
+		this.logSyncInterval = logSyncInterval;
+	}
+
+	public long getLogBatchTime() {
+		return logBatchTime;
+	}
+
+	public void setLogBatchTime(long logBatchTime) {
+		this.logBatchTime = logBatchTime;
+	}
+
+	public int getLogQueue() {
+		return logQueue;
+	}
+
+	public void setLogQueue(int logQueue) {
+		this.logQueue = logQueue;
+	}
+
+	public long getLogSegmentBytes() {
+		return logSegmentBytes;
+	}
+
+	public void setLogSegmentBytes(long logSegmentBytes) {
+		this.logSegmentBytes = logSegmentBytes;
+	}
+
+	public long getLogSegmentTime() {
+		return logSegmentTime;
+	}
+
+	public void setLogSegmentTime(long logSegmentTime) {
+		this.logSegmentTime = logSegmentTime;
+	}
+
+	public long getLogRetention() {
+		return logRetention;
+	}
+
+	public void setLogRetention(long logRetention) {
+		this.logRetention = logRetention;
+	}
+
+	public long getLogRetainBytes() {
+		return logRetainBytes;
+	}
+
+	public void setLogRetainBytes(long logRetainBytes) {
+		this.logRetainBytes = logRetainBytes;
+	}
+
+	public long getIndexInterval() {
+		return indexInterval;
+	}
+
+	public void setIndexInterval(long indexInterval) {
+		this.indexInterval = indexInterval;
+	}
+
+	public int getIndexMerge() {
+		return indexMerge;
+	}
+
+	public void setIndexMerge(int indexMerge) {
+		this.indexMerge = indexMerge;
+	}
+
+	public int getSearchLimit() {
+		return searchLimit;
+	}
+
+	public void setSearchLimit(int searchLimit) {
+		this.searchLimit = searchLimit;
+	}
+
+	public double getRateLimit() {
+		return rateLimit;
+	}
+
+	public void setRateLimit(double rateLimit) {
+		this.rateLimit = rateLimit;
+	}
+
+	public int getRateBurst() {
+		return rateBurst;
+	}
+
+	public void setRateBurst(int rateBurst) {
+		this.rateBurst = rateBurst;
+	}
+
+	public String getTypeLimits() {
+		return typeLimits;
+	}
+
+	public void setTypeLimits(String typeLimits) {
+		this.typeLimits = typeLimits;
+	}
+
+	public int getMaxThrottles() {
+		return maxThrottles;
+	}
+
+	public void setMaxThrottles(int maxThrottles) {
+		this.maxThrottles = maxThrottles;
+	}
+
+	public long getThrottleWindow() {
+		return throttleWindow;
+	}
+
+	public void setThrottleWindow(long throttleWindow) {
+		this.throttleWindow = throttleWindow;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxBacklog() {
+		return maxBacklog;
+	}
+
+	public void setMaxBacklog(int maxBacklog) {
+		this.maxBacklog = maxBacklog;
+	}
+
+	public double getMinFreeHeap() {
+		return minFreeHeap;
+	}
+
+	public void setMinFreeHeap(double minFreeHeap) {
+		this.minFreeHeap = minFreeHeap;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public void setMaxLatency(long maxLatency) {
+		this.maxLatency = maxLatency;
+	}
+
+	public double getLatencyPercentile() {
+		return latencyPercentile;
+	}
+
+	public void setLatencyPercentile(double latencyPercentile) {
+		this.latencyPercentile = latencyPercentile;
+	}
+
+	public long getBusyRetry() {
+		return busyRetry;
+	}
+
+	public void setBusyRetry(long busyRetry) {
+		this.busyRetry = busyRetry;
+	}
+
+	public double getIdentityRate() {
+		return identityRate;
+	}
+
+	public void setIdentityRate(double identityRate) {
+		this.identityRate = identityRate;
+	}
+
+	public long getIdentityBatchTime() {
+		return identityBatchTime;
+	}
+
+	public void setIdentityBatchTime(long identityBatchTime) {
+		this.identityBatchTime = identityBatchTime;
+	}
+
+	public int getIdentityQueue() {
+		return identityQueue;
+	}
+
+	public void setIdentityQueue(int identityQueue) {
+		this.identityQueue = identityQueue;
+	}
+
+	public long getIdentityWait() {
+		return identityWait;
+	}
+
+	public void setIdentityWait(long identityWait) {
+		this.identityWait = identityWait;
+	}
+
+	public long getClientIdle() {
+		return clientIdle;
+	}
+
+	public void setClientIdle(long clientIdle) {
+		this.clientIdle = clientIdle;
+	}
+
+	public long getClientProbe() {
+		return clientProbe;
+	}
+
+	public void setClientProbe(long clientProbe) {
+		this.clientProbe = clientProbe;
+	}
+
+	public long getSessionGrace() {
+		return sessionGrace;
+	}
+
+	public void setSessionGrace(long sessionGrace) {
+		this.sessionGrace = sessionGrace;
+	}
+
+	public long getPresenceWindow() {
+		return presenceWindow;
+	}
+
+	public void setPresenceWindow(long presenceWindow) {
+		this.presenceWindow = presenceWindow;
+	}
+
+	public long getFlushDelay() {
+		return flushDelay;
+	}
+
+	public void setFlushDelay(long flushDelay) {
+		this.flushDelay = flushDelay;
+	}
+
+	public long getFlushMaxDelay() {
+		return flushMaxDelay;
+	}
+
+	public void setFlushMaxDelay(long flushMaxDelay) {
+		this.flushMaxDelay = flushMaxDelay;
+	}
+
+	public long getFlushTimeout() {
+		return flushTimeout;
+	}
+
+	public void setFlushTimeout(long flushTimeout) {
+		this.flushTimeout = flushTimeout;
+	}
+
+	public int getBitsetMembers() {
+		return bitsetMembers;
+	}
+
+	public void setBitsetMembers(int bitsetMembers) {
+		this.bitsetMembers = bitsetMembers;
+	}
+
 	/**
 	 * Read the config file.
 	 * 
@@ -52,6 +919,30 @@ public class Config {
 	 */
 	public List<Server> readConfigFile() throws RuntimeException {
 		List<Server> servers = new ArrayList<Server>();
+		try {
+			readServers(servers);
+		} catch (IOException e) {
+			System.out.println("Error while reading configuration file " + getConfigFile() + ".");
+		}
+		return servers;
+	}
+
+	/**
+	 * Read the config file again while the server is running. Unlike at
+	 * startup, the servers read before an error are not returned, so a file
+	 * which could not be read completely does not remove other servers.
+	 * 
+	 * @return
+	 * @throws IOException
+	 * @throws RuntimeException
+	 */
+	public List<Server> reloadConfigFile() throws IOException, RuntimeException {
+		List<Server> servers = new ArrayList<Server>();
+		readServers(servers);
+		return servers;
+	}
+
+	private void readServers(List<Server> servers) throws IOException {
 		BufferedReader reader = null;
 		try {
 			reader = new BufferedReader(new FileReader(getConfigFile()));
@@ -70,8 +961,6 @@ public class Config {
 				servers.add(server);
 				line = reader.readLine();
 			}
-		} catch (IOException e) {
-			System.out.println("Error while reading configuration file " + getConfigFile() + ".");
 		} finally {
 			if (reader != null) {
 				try {
@@ -80,7 +969,6 @@ public class Config {
 				}
 			}
 		}
-		return servers;
 	}
 
 }
@@ -0,0 +1,73 @@
+package unimelb.ds.project1;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This thread checks the config file periodically and applies the servers
+ * listed in it when the file was changed, so servers can join or leave the
+ * system without restarting the others. A change is only applied once the
+ * file stayed the same for one check, and only if it could be read
+ * completely.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class ConfigWatcher extends Thread {
+	/**
+	 * Time between checks in milliseconds
+	 */
+	private long interval;
+
+	/**
+	 * Configurations of this server
+	 */
+	private Config config;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config
+	 * @param interval
+	 */
+	public ConfigWatcher(Config config, long interval) {
+		this.config = config;
+		this.interval = interval;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		File file = new File(config.getConfigFile());
+		long lastModified = file.lastModified();
+		long seenModified = lastModified;
+		long seenLength = file.length();
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long modified = file.lastModified();
+			long length = file.length();
+			if (modified == lastModified) {
+				continue;
+			}
+			// wait until the file stops changing, so that a file which is
+			// still being written is not read
+			if (modified != seenModified || length != seenLength) {
+				seenModified = modified;
+				seenLength = length;
+				continue;
+			}
+			lastModified = modified;
+			System.out.println(getName() + ": config file " + config.getConfigFile() + " changed, reloading.");
+			try {
+				ClusterMembership.getInstance().applyConfig(config.reloadConfigFile());
+			} catch (IOException | RuntimeException e) {
+				System.err.println(getName() + ": Error while reloading the config file, keeping the current servers: "
+						+ e.getMessage());
+			}
+		}
+	}
+}
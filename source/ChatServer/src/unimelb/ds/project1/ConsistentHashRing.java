@@ -0,0 +1,110 @@
+package unimelb.ds.project1;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring over all servers in the system. Each identity and room
+ * id is owned by the first server found clockwise from its hash, and the next
+ * distinct servers on the ring act as replicas. All servers build the ring
+ * from the same config file, so they agree on the owners without any
+ * communication. The ring does not change once it is built, and a new ring is
+ * built when the servers change, so lookups need no lock.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class ConsistentHashRing {
+	/**
+	 * Number of points each server gets on the ring. More points give a more
+	 * even distribution of keys.
+	 */
+	private static final int VIRTUAL_NODES = 128;
+
+	/**
+	 * Ring positions with the server placed in each position
+	 */
+	private final NavigableMap<Long, Server> ring;
+
+	/**
+	 * Constructor
+	 *
+	 * @param servers
+	 *            all servers in the system including this server
+	 */
+	public ConsistentHashRing(List<Server> servers) {
+		TreeMap<Long, Server> positions = new TreeMap<Long, Server>();
+		for (Server server : servers) {
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				positions.put(hash(server.getId() + "#" + i), server);
+			}
+		}
+		this.ring = Collections.unmodifiableNavigableMap(positions);
+	}
+
+	/**
+	 * Get the servers responsible for the given key. The first server in the
+	 * list is the owner and the rest are replicas. The walk around the ring
+	 * stops as soon as enough distinct servers are found.
+	 *
+	 * @param key
+	 *            identity or room id
+	 * @param count
+	 *            number of servers needed
+	 * @return
+	 */
+	public List<Server> getOwners(String key, int count) {
+		List<Server> owners = new ArrayList<Server>();
+		long position = hash(key);
+		addOwners(owners, ring.tailMap(position, true).values(), count);
+		addOwners(owners, ring.headMap(position, false).values(), count);
+		return owners;
+	}
+
+	/**
+	 * Add the distinct servers of a part of the ring to the owners, until
+	 * there are enough owners.
+	 *
+	 * @param owners
+	 * @param walk
+	 *            servers in ring order
+	 * @param count
+	 *            number of servers needed
+	 */
+	private void addOwners(List<Server> owners, Iterable<Server> walk, int count) {
+		for (Server server : walk) {
+			if (owners.size() >= count) {
+				return;
+			}
+			if (!owners.contains(server)) {
+				owners.add(server);
+			}
+		}
+	}
+
+	/**
+	 * Hash a key into a ring position. MD5 is used because it is the same in
+	 * every JVM and spreads similar names evenly.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package unimelb.ds.project1;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+import unimelb.ds.project1.GlobalConstants.MessageTag;
+
+/**
+ * This singleton class sends coordination messages to other servers. A new
+ * connection is opened for each message. Servers which the
+ * {@link FailureDetector} considers unreachable are skipped, and each server is
+ * guarded by a {@link CircuitBreaker}. Failed messages are retried.
+ * 
+ * Messages are sent asynchronously and the results are given as
+ * {@link CompletableFuture}s, so that no thread waits for another server.
+ * Results are completed on a small pool of callback threads.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class CoordinationClient {
+	/**
+	 * Number of threads which complete the asynchronous I/O
+	 */
+	private static final int IO_THREADS = 2;
+
+	/**
+	 * Number of threads which run the code waiting for the results
+	 */
+	private static final int CALLBACK_THREADS = 4;
+
+	/**
+	 * Singleton instance of the class
+	 */
+	private static CoordinationClient instance = new CoordinationClient();
+
+	/**
+	 * Circuit breakers of other servers
+	 */
+	private Map<String, CircuitBreaker> circuitBreakers;
+
+	/**
+	 * Counter used to create unique request ids
+	 */
+	private AtomicLong requestCounter;
+
+	/**
+	 * Random id of this run of the server, which keeps request ids unique
+	 * after a restart, even when the clock was set back
+	 */
+	private String epoch;
+
+	/**
+	 * Number of messages waiting for a result
+	 */
+	private AtomicInteger inFlight;
+
+	/**
+	 * Channel group used for the connections to other servers
+	 */
+	private AsynchronousChannelGroup channelGroup;
+
+	/**
+	 * Threads which complete the results
+	 */
+	private ExecutorService callbackExecutor;
+
+	/**
+	 * Private constructor of the singleton class
+	 */
+	private CoordinationClient() {
+		circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+		requestCounter = new AtomicLong();
+		epoch = Long.toHexString(new SecureRandom().nextLong());
+		inFlight = new AtomicInteger();
+		callbackExecutor = Executors.newFixedThreadPool(CALLBACK_THREADS, new DaemonThreadFactory("CoordinationCallback"));
+		try {
+			channelGroup = AsynchronousChannelGroup.withFixedThreadPool(IO_THREADS,
+					new DaemonThreadFactory("CoordinationIO"));
+		} catch (IOException e) {
+			throw new RuntimeException("Error while creating coordination channels: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get singleton instance of the class.
+	 *
+	 * @return
+	 */
+	public static CoordinationClient getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Send a coordination message to the given servers at the same time and get
+	 * their replies. Servers which could not be reached do not give a reply.
+	 *
+	 * @param message
+	 * @param servers
+	 * @return
+	 */
+	public CompletableFuture<List<String>> sendAndGetRepliesAsync(JSONObject message, List<Server> servers) {
+		addRequestId(message);
+		final List<CompletableFuture<String>> replies = new ArrayList<CompletableFuture<String>>();
+		for (Server server : getReachableServers(servers)) {
+			replies.add(exchange(message, server, true, true));
+		}
+		return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[replies.size()])).thenApply(v -> {
+			List<String> responses = new ArrayList<String>();
+			for (CompletableFuture<String> reply : replies) {
+				String received = reply.join();
+				if (received != null) {
+					responses.add(received);
+				}
+			}
+			return responses;
+		});
+	}
+
+	/**
+	 * Send a coordination message to the given servers and do not expect
+	 * responses. The result completes when the message was sent to all
+	 * servers, or given up.
+	 *
+	 * @param message
+	 * @param servers
+	 * @return
+	 */
+	public CompletableFuture<Void> sendAsync(JSONObject message, List<Server> servers) {
+		addRequestId(message);
+		List<CompletableFuture<String>> sends = new ArrayList<CompletableFuture<String>>();
+		for (Server server : getReachableServers(servers)) {
+			sends.add(exchange(message, server, false, true));
+		}
+		return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()]));
+	}
+
+	/**
+	 * Send a coordination message to a server and get the reply.
+	 *
+	 * @param message
+	 * @param server
+	 * @return the reply, or null if the server could not be reached
+	 */
+	public CompletableFuture<String> sendAndGetReplyAsync(JSONObject message, Server server) {
+		addRequestId(message);
+		return exchange(message, server, true, true);
+	}
+
+	/**
+	 * Send a message to a server once and get the reply, without retrying.
+	 * Used for heartbeats, which are repeated anyway.
+	 *
+	 * @param message
+	 * @param server
+	 * @return the reply, or null if the server could not be reached
+	 */
+	public CompletableFuture<String> sendOnceAndGetReplyAsync(JSONObject message, Server server) {
+		return exchange(message, server, true, false);
+	}
+
+	/**
+	 * Get the number of messages waiting for a result.
+	 *
+	 * @return
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Filter out the servers which should be skipped under the configured
+	 * policy.
+	 *
+	 * @param servers
+	 * @return
+	 */
+	private List<Server> getReachableServers(List<Server> servers) {
+		FailureDetector failureDetector = FailureDetector.getInstance();
+		List<Server> reachable = new ArrayList<Server>();
+		for (Server server : servers) {
+			if (failureDetector.isReachable(server.getId())) {
+				reachable.add(server);
+			} else {
+				Metrics.getInstance().increment("coordination.skipped");
+				System.out.println(Thread.currentThread().getName() + ": skipped the unreachable server "
+						+ server.getId());
+			}
+		}
+		return reachable;
+	}
+
+	/**
+	 * Send a message to a server, retrying failed attempts after a jittered
+	 * exponential delay. Retried messages carry a request id, so the server
+	 * processes a repeated message only once.
+	 *
+	 * @param message
+	 * @param server
+	 * @param expectReply
+	 * @param retry
+	 * @return the reply, or null if no reply was received
+	 */
+	private CompletableFuture<String> exchange(JSONObject message, Server server, boolean expectReply,
+			boolean retry) {
+		Config config = ServerData.getInstance().getConfig();
+		CompletableFuture<String> result = new CompletableFuture<String>();
+		inFlight.incrementAndGet();
+		Metrics.getInstance().max("coordination.inflight.max", inFlight.get());
+		attempt(message.toJSONString(), server, expectReply, 1, retry ? config.getCoordinationRetries() + 1 : 1,
+				result);
+		return result.whenComplete((reply, e) -> inFlight.decrementAndGet());
+	}
+
+	/**
+	 * Make an attempt to send a message to a server. A failed attempt is
+	 * retried later on the timer wheel.
+	 *
+	 * @param message
+	 * @param server
+	 * @param expectReply
+	 * @param attempt
+	 * @param attempts
+	 * @param result
+	 */
+	private void attempt(final String message, final Server server, final boolean expectReply, final int attempt,
+			final int attempts, final CompletableFuture<String> result) {
+		final Config config = ServerData.getInstance().getConfig();
+		final CircuitBreaker circuitBreaker = getCircuitBreaker(server.getId());
+		if (!circuitBreaker.allowRequest()) {
+			Metrics.getInstance().increment("coordination.rejected");
+			System.err.println(Thread.currentThread().getName() + ": circuit to the server " + server.getId()
+					+ " is open, message not sent: " + message);
+			complete(result, null);
+			return;
+		}
+		final HashedTimerWheel timerWheel = ServerData.getInstance().getTimerWheel();
+		new CoordinationExchange(message, server, expectReply)
+				.start(channelGroup, timerWheel, config.getCoordinationTimeout()).whenComplete((received, e) -> {
+					if (e == null) {
+						circuitBreaker.recordSuccess();
+						if (expectReply) {
+							FailureDetector.getInstance().heartbeat(server.getId());
+							System.out.println(Thread.currentThread().getName() + ": received response \""
+									+ received + "\" to \"" + message + "\" from the server " + server.getId());
+						} else {
+							System.out.println(Thread.currentThread().getName() + ": sent a coordination message \""
+									+ message + "\" to the server " + server.getId());
+						}
+						complete(result, received);
+						return;
+					}
+					circuitBreaker.recordFailure();
+					Metrics.getInstance().increment("coordination.failed");
+					System.err.println(Thread.currentThread().getName() + ": error while communicationg to the server "
+							+ server.getId() + " (attempt " + attempt + " of " + attempts + "): " + e.getMessage());
+					if (attempt < attempts) {
+						Metrics.getInstance().increment("coordination.retried");
+						timerWheel.schedule(new Runnable() {
+							@Override
+							public void run() {
+								attempt(message, server, expectReply, attempt + 1, attempts, result);
+							}
+						}, getRetryDelay(attempt, config.getRetryDelay()));
+					} else {
+						complete(result, null);
+					}
+				});
+	}
+
+	/**
+	 * Complete a result on a callback thread, so that the code waiting for it
+	 * does not run on the I/O threads.
+	 *
+	 * @param result
+	 * @param received
+	 */
+	private void complete(final CompletableFuture<String> result, final String received) {
+		callbackExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				result.complete(received);
+			}
+		});
+	}
+
+	/**
+	 * Get the delay before the next attempt. The delay doubles with each
+	 * attempt and a random part of it is used, so that servers retrying at the
+	 * same time do not collide again.
+	 *
+	 * @param attempt
+	 * @param baseDelay
+	 * @return
+	 */
+	private long getRetryDelay(int attempt, long baseDelay) {
+		long maxDelay = baseDelay << Math.min(attempt - 1, 10);
+		return maxDelay / 2 + ThreadLocalRandom.current().nextLong(maxDelay / 2 + 1);
+	}
+
+	/**
+	 * Stamp the message with a new request id unless it already has one.
+	 * Other servers remember the replies to the ids they saw, and the counter
+	 * starts again after a restart, so the id also holds the epoch of this run
+	 * of the server. Otherwise the first requests after a restart would be
+	 * answered with the replies to the requests of the previous run.
+	 *
+	 * @param message
+	 */
+	@SuppressWarnings("unchecked")
+	private void addRequestId(JSONObject message) {
+		if (!message.containsKey(MessageTag.requestid.name())) {
+			message.put(MessageTag.requestid.name(), ServerData.getInstance().getMyData().getId() + "-" + epoch + "-"
+					+ requestCounter.incrementAndGet());
+		}
+	}
+
+	/**
+	 * Get the circuit breaker of the server.
+	 *
+	 * @param serverId
+	 * @return
+	 */
+	private CircuitBreaker getCircuitBreaker(String serverId) {
+		CircuitBreaker circuitBreaker = circuitBreakers.get(serverId);
+		if (circuitBreaker == null) {
+			Config config = ServerData.getInstance().getConfig();
+			circuitBreakers.putIfAbsent(serverId,
+					new CircuitBreaker(serverId, config.getBreakerFailures(), config.getBreakerOpenTime()));
+			circuitBreaker = circuitBreakers.get(serverId);
+		}
+		return circuitBreaker;
+	}
+}
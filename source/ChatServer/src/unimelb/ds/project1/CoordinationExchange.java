@@ -0,0 +1,190 @@
+package unimelb.ds.project1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One attempt to send a coordination message to a server and read the reply,
+ * using an asynchronous channel. No thread waits while the connection, the
+ * write or the read is in progress. If the exchange does not finish within the
+ * timeout, the channel is closed and the attempt fails.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class CoordinationExchange {
+	/**
+	 * Server to communicate with
+	 */
+	private Server server;
+
+	/**
+	 * Encoded message including the line separator
+	 */
+	private ByteBuffer request;
+
+	/**
+	 * Whether a reply is expected
+	 */
+	private boolean expectReply;
+
+	/**
+	 * Channel to the server
+	 */
+	private AsynchronousSocketChannel channel;
+
+	/**
+	 * Buffer for reading the reply
+	 */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+
+	/**
+	 * Bytes of the reply read so far
+	 */
+	private ByteArrayOutputStream reply = new ByteArrayOutputStream();
+
+	/**
+	 * Completed with the reply, with null if no reply is expected, or
+	 * exceptionally if the attempt failed
+	 */
+	private CompletableFuture<String> result = new CompletableFuture<String>();
+
+	/**
+	 * Set once the exchange finished, so that it finishes only once
+	 */
+	private AtomicBoolean finished = new AtomicBoolean(false);
+
+	/**
+	 * Constructor
+	 *
+	 * @param message
+	 * @param server
+	 * @param expectReply
+	 */
+	public CoordinationExchange(String message, Server server, boolean expectReply) {
+		this.server = server;
+		this.request = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+		this.expectReply = expectReply;
+	}
+
+	/**
+	 * Start the exchange.
+	 *
+	 * @param group
+	 *            channel group whose threads complete the I/O
+	 * @param timerWheel
+	 *            timer used to give up after the timeout
+	 * @param timeout
+	 *            milliseconds
+	 * @return
+	 */
+	public CompletableFuture<String> start(AsynchronousChannelGroup group, HashedTimerWheel timerWheel,
+			long timeout) {
+		try {
+			channel = AsynchronousSocketChannel.open(group);
+		} catch (IOException e) {
+			fail(e);
+			return result;
+		}
+		final HashedTimerWheel.Timeout timer = timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				fail(new IOException("timed out after " + timeout + " ms"));
+			}
+		}, timeout);
+		result.whenComplete((reply, e) -> timer.cancel());
+
+		channel.connect(new InetSocketAddress(server.getIp(), server.getCoordinationPort()), null,
+				new CompletionHandler<Void, Void>() {
+					@Override
+					public void completed(Void v, Void attachment) {
+						write();
+					}
+
+					@Override
+					public void failed(Throwable e, Void attachment) {
+						fail(e);
+					}
+				});
+		return result;
+	}
+
+	private void write() {
+		channel.write(request, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer written, Void attachment) {
+				if (request.hasRemaining()) {
+					write();
+				} else if (expectReply) {
+					read();
+				} else {
+					succeed(null);
+				}
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				fail(e);
+			}
+		});
+	}
+
+	private void read() {
+		readBuffer.clear();
+		channel.read(readBuffer, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer read, Void attachment) {
+				if (read < 0) {
+					fail(new IOException("connection closed before the reply"));
+					return;
+				}
+				readBuffer.flip();
+				while (readBuffer.hasRemaining()) {
+					byte b = readBuffer.get();
+					if (b == '\n') {
+						succeed(new String(reply.toByteArray(), StandardCharsets.UTF_8).trim());
+						return;
+					}
+					reply.write(b);
+				}
+				read();
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				fail(e);
+			}
+		});
+	}
+
+	private void succeed(String received) {
+		if (finished.compareAndSet(false, true)) {
+			close();
+			result.complete(received);
+		}
+	}
+
+	private void fail(Throwable e) {
+		if (finished.compareAndSet(false, true)) {
+			close();
+			result.completeExceptionally(e);
+		}
+	}
+
+	private void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
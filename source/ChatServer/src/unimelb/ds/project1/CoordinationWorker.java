@@ -6,7 +6,12 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -22,6 +27,35 @@ import unimelb.ds.project1.GlobalConstants.MessageType;
  *
  */
 public class CoordinationWorker extends Thread {
+	/**
+	 * Number of recently processed requests remembered
+	 */
+	private static final int PROCESSED_REQUESTS_LIMIT = 10000;
+
+	/**
+	 * Marks a request which is still being processed. It is never a reply,
+	 * since replies are JSON objects or empty.
+	 */
+	private static final String IN_PROGRESS = "in progress";
+
+	/**
+	 * Replies to recently processed requests with their request ids. A request
+	 * which is sent again by a retrying server is answered from here instead of
+	 * being processed again. The id is reserved before the request is
+	 * processed, so a retry arriving meanwhile is not processed twice. Request
+	 * ids carry the start time of the sending server, so the ids of a restarted
+	 * server never match the replies to its previous run.
+	 */
+	private static Map<String, String> processedRequests = Collections
+			.synchronizedMap(new LinkedHashMap<String, String>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+					return size() > PROCESSED_REQUESTS_LIMIT;
+				}
+			});
+
 	/**
 	 * TCP socket to communicate with coordinating server.
 	 */
@@ -37,6 +71,11 @@ public class CoordinationWorker extends Thread {
 	 */
 	private BufferedWriter out;
 
+	/**
+	 * Reply sent for the current message
+	 */
+	private String reply = "";
+
 	/**
 	 * Constructor
 	 * 
@@ -88,10 +127,28 @@ public class CoordinationWorker extends Thread {
 	private void processMessage(String messageString) {
 		System.out.println(Thread.currentThread().getName() + ": received a coordination message: " + messageString);
 		ServerData serverData = ServerData.getInstance();
+		String requestId = null;
 		try {
 			JSONParser parser = new JSONParser();
 			JSONObject jsonObject = (JSONObject) parser.parse(messageString);
 			MessageType type = MessageType.valueOf((String) jsonObject.get("type"));
+
+			// answer a repeated request with the reply sent the first time.
+			// A retry of a request which is still being processed is dropped,
+			// and the sender retries again later.
+			requestId = (String) jsonObject.get(MessageTag.requestid.name());
+			String processedReply = requestId == null ? null
+					: processedRequests.putIfAbsent(requestId, IN_PROGRESS);
+			if (processedReply != null) {
+				Metrics.getInstance().increment("coordination.duplicates");
+				if (processedReply.equals(IN_PROGRESS)) {
+					Metrics.getInstance().increment("coordination.duplicates.inprogress");
+				} else if (!processedReply.isEmpty()) {
+					sendReply(processedReply);
+				}
+				return;
+			}
+
 			switch (type) {
 			case lockidentity:
 				// read identity
@@ -105,13 +162,68 @@ public class CoordinationWorker extends Thread {
 				sendMessage(createLockIdentityResponse(serverData.getMyData().getId(), identity, isAvailable));
 				break;
 
+			case lockidentities:
+				// lock or reserve a batch of identities of new clients
+				String batchServer = (String) jsonObject.get(MessageTag.serverid.name());
+				Map<String, String> lockedIdentities = new LinkedHashMap<String, String>();
+				for (Object batchIdentity : (List<?>) jsonObject.get(MessageTag.identities.name())) {
+					boolean locked = serverData.getConfig().isOptimistic()
+							? serverData.reserveIdentity((String) batchIdentity, batchServer)
+							: serverData.lockIdentity((String) batchIdentity, batchServer);
+					lockedIdentities.put((String) batchIdentity, locked ? "true" : "false");
+				}
+				sendMessage(createLockIdentitiesResponse(serverData.getMyData().getId(), lockedIdentities));
+				break;
+
 			case releaseidentity:
 				// read data from message
 				String clientId = (String) jsonObject.get(MessageTag.identity.name());
 				String serverId = (String) jsonObject.get(MessageTag.serverid.name());
+				String identityApproved = (String) jsonObject.get(MessageTag.approved.name());
 
 				// release lock
 				serverData.releaseClientId(clientId, serverId);
+
+				// owners of the identity in the hash ring keep it until the
+				// client leaves. With reservations, this is only sent for a
+				// client which moved to the server.
+				if ((serverData.getHashRing() != null || serverData.getConfig().isOptimistic())
+						&& "true".equals(identityApproved)) {
+					serverData.registerIdentity(clientId, serverId);
+				}
+				break;
+
+			case deleteidentity:
+				// read data from message
+				String deleteIdentity = (String) jsonObject.get(MessageTag.identity.name());
+				String deleteIdentityServer = (String) jsonObject.get(MessageTag.serverid.name());
+
+				// remove the registered identity
+				serverData.unregisterIdentity(deleteIdentity, deleteIdentityServer);
+				break;
+
+			case reserveidentity:
+				// read data from message
+				String reserveIdentity = (String) jsonObject.get(MessageTag.identity.name());
+				String reserveServer = (String) jsonObject.get(MessageTag.serverid.name());
+
+				// accept and record the identity if available
+				boolean reserved = serverData.reserveIdentity(reserveIdentity, reserveServer);
+
+				// send reply
+				sendMessage(createReserveIdentityResponse(serverData.getMyData().getId(), reserveIdentity, reserved));
+				break;
+
+			case reserveroomid:
+				// read data from message
+				String reserveRoomId = (String) jsonObject.get(MessageTag.roomid.name());
+				String reserveRoomServer = (String) jsonObject.get(MessageTag.serverid.name());
+
+				// accept and record the room if available
+				boolean roomReserved = serverData.reserveChatRoom(reserveRoomId, reserveRoomServer);
+
+				// send reply
+				sendMessage(createReserveRoomResponse(serverData.getMyData().getId(), reserveRoomId, roomReserved));
 				break;
 
 			case lockroomid:
@@ -143,21 +255,156 @@ public class CoordinationWorker extends Thread {
 				// release the room id
 				serverData.deleteOthersChatRoom(deleteRoomId, deleteServerId);
 				break;
+
+			case migrate:
+				// read data from message
+				final String migrateIdentity = (String) jsonObject.get(MessageTag.identity.name());
+				final String migrateServer = (String) jsonObject.get(MessageTag.serverid.name());
+				String migrateNonce = (String) jsonObject.get(MessageTag.ticket.name());
+				String migrateFormer = (String) jsonObject.get(MessageTag.former.name());
+				String migrateRoomId = (String) jsonObject.get(MessageTag.roomid.name());
+
+				// hold the identity until the client arrives. If it does not,
+				// the identity is no longer registered for the former server.
+				boolean accepted = serverData.acceptMigration(migrateIdentity, migrateNonce, migrateServer,
+						migrateFormer, migrateRoomId, () -> abandonMigration(migrateIdentity, migrateServer));
+
+				// send reply
+				sendMessage(createMigrateResponse(serverData.getMyData().getId(), migrateIdentity, accepted));
+				break;
+
+			case placeroom:
+				// read data from message
+				final String placeRoomId = (String) jsonObject.get(MessageTag.roomid.name());
+				final String placeOwner = (String) jsonObject.get(MessageTag.identity.name());
+				String placeServer = (String) jsonObject.get(MessageTag.serverid.name());
+
+				// create the room for its owner, who moves to this server
+				boolean placed = serverData.placeChatRoom(placeRoomId, placeOwner, placeServer);
+				if (placed) {
+					Metrics.getInstance().increment("load.placed.accepted");
+					CoordinationClient.getInstance().sendAsync(
+							createReleaseRoomMessage(serverData.getMyData().getId(), placeRoomId),
+							serverData.getOtherServers());
+					serverData.getTimerWheel().schedule(() -> abandonPlacedRoom(placeRoomId, placeOwner),
+							Math.max(serverData.getConfig().getMigrationTicketTime(),
+									serverData.getConfig().getLockLease()));
+				}
+
+				// send reply
+				sendMessage(createPlaceRoomResponse(serverData.getMyData().getId(), placeRoomId, placed));
+				break;
+
+			case addserver:
+				// add the server and send it the directory of this server
+				ClusterMembership.getInstance().addServer(ClusterMembership.getInstance().readServer(jsonObject));
+				break;
+
+			case snapshot:
+				// forget the earlier run of the server and send it the
+				// snapshot of this server
+				sendMessage(
+						ClusterMembership.getInstance().rejoin(ClusterMembership.getInstance().readServer(jsonObject)));
+				break;
+
+			case removeserver:
+				// remove the server with its rooms
+				ClusterMembership.getInstance().removeServer((String) jsonObject.get(MessageTag.serverid.name()));
+				break;
+
+			case directory:
+				// record the rooms and clients of the sender
+				ClusterMembership.getInstance().recordDirectory(jsonObject);
+				break;
+
+			case heartbeat:
+				// record the sender as alive and reply
+				String heartbeatServer = (String) jsonObject.get(MessageTag.serverid.name());
+				FailureDetector.getInstance().heartbeat(heartbeatServer);
+				LoadTracker.getInstance().record(heartbeatServer, (JSONObject) jsonObject.get(MessageTag.load.name()));
+				sendMessage(createHeartbeatResponse(serverData.getMyData().getId()));
+				return;
+
+			case metrics:
+				// send the current metrics of the server
+				sendMessage(createMetricsResponse(serverData.getMyData().getId()));
+				break;
+
+			case search:
+				// search the message log of this server
+				String searchRoom = (String) jsonObject.get(MessageTag.roomid.name());
+				sendMessage(createSearchResults(searchRoom,
+						serverData.searchMessages(searchRoom, (String) jsonObject.get(MessageTag.identity.name()),
+								(String) jsonObject.get(MessageTag.content.name()),
+								(Number) jsonObject.get(MessageTag.limit.name()))));
+				break;
 			default:
 				break;
 			}
+			if (requestId != null) {
+				processedRequests.put(requestId, reply);
+			}
 		} catch (ParseException e) {
 			System.err.println(Thread.currentThread().getName() + ": Error while parsing message :" + e.getMessage());
+		} catch (RuntimeException e) {
+			// let a retry process the request again
+			if (requestId != null) {
+				processedRequests.remove(requestId);
+			}
+			throw e;
 		}
 		serverData.printData();
 	}
 
+	/**
+	 * Release the identity of a client which did not arrive with its migration
+	 * ticket, on the servers which hold it for the former server.
+	 * 
+	 * @param identity
+	 * @param serverId
+	 *            the former server of the client
+	 */
+	private void abandonMigration(String identity, String serverId) {
+		ServerData serverData = ServerData.getInstance();
+		if (serverData.getHashRing() != null || serverData.getConfig().isOptimistic()) {
+			CoordinationClient.getInstance().sendAsync(createDeleteIdentityNotification(serverId, identity),
+					serverData.getCoordinationTargets(identity));
+		}
+	}
+
+	/**
+	 * Delete a room placed on this server if its owner never arrived.
+	 * 
+	 * @param roomId
+	 * @param ownerId
+	 */
+	private void abandonPlacedRoom(String roomId, String ownerId) {
+		ServerData serverData = ServerData.getInstance();
+		if (serverData.deleteEmptyChatRoom(roomId, ownerId)) {
+			Metrics.getInstance().increment("load.placed.abandoned");
+			System.out.println("[ Owner " + ownerId + " did not join the placed room " + roomId + " ]");
+			CoordinationClient.getInstance().sendAsync(
+					createDeleteRoomNotification(serverData.getMyData().getId(), roomId),
+					serverData.getOtherServers());
+		}
+	}
+
 	/**
 	 * Send message
 	 * 
 	 * @param message
 	 */
 	private synchronized void sendMessage(JSONObject message) {
+		sendReply(message.toJSONString());
+	}
+
+	/**
+	 * Send an encoded reply
+	 * 
+	 * @param message
+	 */
+	private synchronized void sendReply(String message) {
+		reply = message;
 		try {
 			out.write(message + "\n");
 			out.flush();
@@ -178,6 +425,118 @@ public class CoordinationWorker extends Thread {
 		return lockIdentity;
 	}
 
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createLockIdentitiesResponse(String serverId, Map<String, String> locked) {
+		JSONObject lockIdentities = new JSONObject();
+		lockIdentities.put(MessageTag.type.name(), MessageType.lockidentities.name());
+		lockIdentities.put(MessageTag.serverid.name(), serverId);
+		JSONObject lockedIdentities = new JSONObject();
+		lockedIdentities.putAll(locked);
+		lockIdentities.put(MessageTag.locked.name(), lockedIdentities);
+		return lockIdentities;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createReserveIdentityResponse(String serverId, String identity, boolean reserved) {
+		JSONObject reserveIdentity = new JSONObject();
+		reserveIdentity.put(MessageTag.type.name(), MessageType.reserveidentity.name());
+		reserveIdentity.put(MessageTag.serverid.name(), serverId);
+		reserveIdentity.put(MessageTag.identity.name(), identity);
+		reserveIdentity.put(MessageTag.locked.name(), reserved ? "true" : "false");
+		return reserveIdentity;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createReserveRoomResponse(String serverId, String roomId, boolean reserved) {
+		JSONObject reserveRoom = new JSONObject();
+		reserveRoom.put(MessageTag.type.name(), MessageType.reserveroomid.name());
+		reserveRoom.put(MessageTag.serverid.name(), serverId);
+		reserveRoom.put(MessageTag.roomid.name(), roomId);
+		reserveRoom.put(MessageTag.locked.name(), reserved ? "true" : "false");
+		return reserveRoom;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createMigrateResponse(String serverId, String identity, boolean accepted) {
+		JSONObject migrate = new JSONObject();
+		migrate.put(MessageTag.type.name(), MessageType.migrate.name());
+		migrate.put(MessageTag.serverid.name(), serverId);
+		migrate.put(MessageTag.identity.name(), identity);
+		migrate.put(MessageTag.approved.name(), accepted ? "true" : "false");
+		return migrate;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject createDeleteIdentityNotification(String serverId, String identity) {
+		JSONObject deleteIdentity = new JSONObject();
+		deleteIdentity.put(MessageTag.type.name(), MessageType.deleteidentity.name());
+		deleteIdentity.put(MessageTag.serverid.name(), serverId);
+		deleteIdentity.put(MessageTag.identity.name(), identity);
+		return deleteIdentity;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createHeartbeatResponse(String serverId) {
+		JSONObject heartbeat = new JSONObject();
+		heartbeat.put(MessageTag.type.name(), MessageType.heartbeat.name());
+		heartbeat.put(MessageTag.serverid.name(), serverId);
+		heartbeat.put(MessageTag.load.name(), LoadTracker.getInstance().getLocalReport().toJSON());
+		return heartbeat;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createPlaceRoomResponse(String serverId, String roomId, boolean placed) {
+		JSONObject placeRoom = new JSONObject();
+		placeRoom.put(MessageTag.type.name(), MessageType.placeroom.name());
+		placeRoom.put(MessageTag.serverid.name(), serverId);
+		placeRoom.put(MessageTag.roomid.name(), roomId);
+		placeRoom.put(MessageTag.approved.name(), placed ? "true" : "false");
+		return placeRoom;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject createReleaseRoomMessage(String serverId, String roomId) {
+		JSONObject releaseRoom = new JSONObject();
+		releaseRoom.put(MessageTag.type.name(), MessageType.releaseroomid.name());
+		releaseRoom.put(MessageTag.serverid.name(), serverId);
+		releaseRoom.put(MessageTag.roomid.name(), roomId);
+		releaseRoom.put(MessageTag.approved.name(), "true");
+		return releaseRoom;
+	}
+
+	@SuppressWarnings("unchecked")
+	static JSONObject createDeleteRoomNotification(String serverId, String roomId) {
+		JSONObject deleteRoom = new JSONObject();
+		deleteRoom.put(MessageTag.type.name(), MessageType.deleteroom.name());
+		deleteRoom.put(MessageTag.serverid.name(), serverId);
+		deleteRoom.put(MessageTag.roomid.name(), roomId);
+		return deleteRoom;
+	}
+
+	@SuppressWarnings("unchecked")
+	static JSONObject createSearchResults(String roomId, List<JSONObject> messages) {
+		JSONObject results = new JSONObject();
+		results.put(MessageTag.type.name(), MessageType.searchresults.name());
+		if (roomId != null) {
+			results.put(MessageTag.roomid.name(), roomId);
+		}
+		JSONArray array = new JSONArray();
+		array.addAll(messages);
+		results.put(MessageTag.messages.name(), array);
+		return results;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized JSONObject createMetricsResponse(String serverId) {
+		JSONObject response = new JSONObject();
+		response.put(MessageTag.type.name(), MessageType.metrics.name());
+		response.put(MessageTag.serverid.name(), serverId);
+		JSONObject metrics = new JSONObject();
+		metrics.putAll(Metrics.getInstance().getSnapshot());
+		response.put(MessageTag.metrics.name(), metrics);
+		return response;
+	}
+
 	@SuppressWarnings("unchecked")
 	private synchronized JSONObject createLockRoomResponse(String serverId, String roomId, boolean locked) {
 		JSONObject lockroom = new JSONObject();
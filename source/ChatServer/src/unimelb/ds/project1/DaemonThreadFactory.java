@@ -0,0 +1,40 @@
+package unimelb.ds.project1;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for thread pools, so that pools do not keep
+ * the server running and their threads can be told apart in the logs.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+	/**
+	 * Prefix of the thread names
+	 */
+	private String name;
+
+	/**
+	 * Number of threads created
+	 */
+	private AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 *            prefix of the thread names
+	 */
+	public DaemonThreadFactory(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, name + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
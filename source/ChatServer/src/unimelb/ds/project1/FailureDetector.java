@@ -0,0 +1,142 @@
+package unimelb.ds.project1;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This singleton class tracks whether other servers are reachable. Every
+ * heartbeat or coordination reply from a server counts as a sign of life. A
+ * server which has not been heard from for the suspect timeout is suspected,
+ * and after the dead timeout it is considered dead. It becomes alive again as
+ * soon as it is heard from.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class FailureDetector {
+	/**
+	 * Status of a server
+	 *
+	 * @author Sewwandi Perera
+	 *
+	 */
+	public enum PeerStatus {
+		alive, suspected, dead;
+	}
+
+	/**
+	 * Which servers are skipped when sending coordination messages
+	 *
+	 * @author Sewwandi Perera
+	 *
+	 */
+	public enum SkipPolicy {
+		none, dead, suspected;
+	}
+
+	/**
+	 * Singleton instance of the class
+	 */
+	private static FailureDetector instance = new FailureDetector();
+
+	/**
+	 * Last time each server was heard from
+	 */
+	private Map<String, Long> lastHeard;
+
+	/**
+	 * Last status reported for each server
+	 */
+	private Map<String, PeerStatus> reportedStatus;
+
+	/**
+	 * Time the detector started. Servers not heard from yet are given until
+	 * the timeouts counted from this time.
+	 */
+	private long startTime;
+
+	/**
+	 * Private constructor of the singleton class
+	 */
+	private FailureDetector() {
+		lastHeard = new ConcurrentHashMap<String, Long>();
+		reportedStatus = new ConcurrentHashMap<String, PeerStatus>();
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Get singleton instance of the class.
+	 *
+	 * @return
+	 */
+	public static FailureDetector getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Record that the server was heard from.
+	 *
+	 * @param serverId
+	 */
+	public void heartbeat(String serverId) {
+		if (serverId != null) {
+			lastHeard.put(serverId, System.currentTimeMillis());
+			updateStatus(serverId);
+		}
+	}
+
+	/**
+	 * Get the current status of the server.
+	 *
+	 * @param serverId
+	 * @return
+	 */
+	public PeerStatus getStatus(String serverId) {
+		Config config = ServerData.getInstance().getConfig();
+		Long heard = lastHeard.get(serverId);
+		long silence = System.currentTimeMillis() - (heard == null ? startTime : heard);
+		if (silence >= config.getDeadTimeout()) {
+			return PeerStatus.dead;
+		} else if (silence >= config.getSuspectTimeout()) {
+			return PeerStatus.suspected;
+		}
+		return PeerStatus.alive;
+	}
+
+	/**
+	 * Check whether coordination messages should be sent to the server under
+	 * the configured skip policy.
+	 *
+	 * @param serverId
+	 * @return
+	 */
+	public boolean isReachable(String serverId) {
+		PeerStatus status = getStatus(serverId);
+		switch (ServerData.getInstance().getConfig().getSkipPolicy()) {
+		case dead:
+			return status != PeerStatus.dead;
+		case suspected:
+			return status == PeerStatus.alive;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Report the server if its status changed since the last check. The
+	 * identities reserved by a server are dropped once it is dead.
+	 *
+	 * @param serverId
+	 */
+	public void updateStatus(String serverId) {
+		PeerStatus status = getStatus(serverId);
+		PeerStatus previous = reportedStatus.put(serverId, status);
+		if (previous != null && previous != status) {
+			System.out.println("[ Server " + serverId + " is " + status + " ]");
+			Metrics.getInstance().increment("peer." + status);
+			if (status == PeerStatus.dead) {
+				ServerData.getInstance().dropReservations(serverId);
+			}
+		}
+	}
+}
@@ -15,7 +15,7 @@ public class GlobalConstants {
 	 *
 	 */
 	public enum MessageType {
-		newidentity, lockidentity, releaseidentity, roomchange, list, roomlist, who, roomcontents, createroom, lockroomid, releaseroomid, join, route, movejoin, serverchange, deleteroom, message, quit;
+		newidentity, lockidentity, releaseidentity, roomchange, list, roomlist, who, roomcontents, createroom, lockroomid, releaseroomid, join, route, movejoin, serverchange, deleteroom, message, quit, deleteidentity, metrics, reserveidentity, reserveroomid, heartbeat, migrate, placeroom, addserver, removeserver, directory, snapshot, search, searchresults, busy, lockidentities, keepalive, resume, presence;
 	}
 
 	/**
@@ -25,7 +25,7 @@ public class GlobalConstants {
 	 *
 	 */
 	public enum MessageTag {
-		type, approved, serverid, identity, locked, former, roomid, rooms, identities, owner, host, port, content;
+		type, approved, serverid, identity, locked, former, roomid, rooms, identities, owner, host, port, content, metrics, requestid, load, clients, members, queued, cpu, coordinationport, lockedidentities, lockedrooms, time, messages, limit, retryafter, token, joined, left, ticket;
 	}
 
 	/**
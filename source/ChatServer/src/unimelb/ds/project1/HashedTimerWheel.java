@@ -0,0 +1,139 @@
+package unimelb.ds.project1;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel which runs delayed tasks. Scheduling and cancelling a
+ * task is constant time, so it can hold a very large number of timeouts. Tasks
+ * run on the wheel thread within one tick of their deadline, so they must be
+ * short.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class HashedTimerWheel extends Thread {
+	/**
+	 * Duration of a tick in milliseconds
+	 */
+	private long tickMillis;
+
+	/**
+	 * Buckets of the wheel. Only the wheel thread touches the buckets.
+	 */
+	private List<List<Timeout>> wheel;
+
+	/**
+	 * Timeouts scheduled since the last tick
+	 */
+	private Queue<Timeout> newTimeouts;
+
+	/**
+	 * Number of ticks since the wheel started
+	 */
+	private long tick = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tickMillis
+	 *            duration of a tick in milliseconds
+	 * @param wheelSize
+	 *            number of buckets in the wheel
+	 */
+	public HashedTimerWheel(long tickMillis, int wheelSize) {
+		this.tickMillis = tickMillis;
+		this.wheel = new ArrayList<List<Timeout>>(wheelSize);
+		for (int i = 0; i < wheelSize; i++) {
+			wheel.add(new LinkedList<Timeout>());
+		}
+		this.newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+		setDaemon(true);
+	}
+
+	/**
+	 * Schedule a task to run after the given delay.
+	 *
+	 * @param task
+	 * @param delayMillis
+	 * @return handle which can cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, Math.max(1, (delayMillis + tickMillis - 1) / tickMillis));
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	@Override
+	public void run() {
+		long startTime = System.currentTimeMillis();
+		while (true) {
+			// wait for the next tick
+			long sleepTime = startTime + (tick + 1) * tickMillis - System.currentTimeMillis();
+			if (sleepTime > 0) {
+				try {
+					Thread.sleep(sleepTime);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			tick++;
+
+			// place new timeouts in their buckets
+			Timeout timeout;
+			while ((timeout = newTimeouts.poll()) != null) {
+				long deadline = tick + timeout.ticks - 1;
+				timeout.rounds = (deadline - tick) / wheel.size();
+				wheel.get((int) (deadline % wheel.size())).add(timeout);
+			}
+
+			// run the expired timeouts of the current bucket
+			Iterator<Timeout> iterator = wheel.get((int) (tick % wheel.size())).iterator();
+			while (iterator.hasNext()) {
+				timeout = iterator.next();
+				if (timeout.cancelled) {
+					iterator.remove();
+				} else if (timeout.rounds > 0) {
+					timeout.rounds--;
+				} else {
+					iterator.remove();
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						System.err.println(getName() + ": Error while running a timer task: " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A scheduled task in the wheel.
+	 *
+	 * @author Sewwandi Perera
+	 *
+	 */
+	public static class Timeout {
+		private Runnable task;
+		private long ticks;
+		private long rounds;
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long ticks) {
+			this.task = task;
+			this.ticks = ticks;
+		}
+
+		/**
+		 * Cancel the task. It is removed from the wheel when its bucket is
+		 * next visited.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+}
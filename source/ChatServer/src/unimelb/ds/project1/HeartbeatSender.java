@@ -0,0 +1,88 @@
+package unimelb.ds.project1;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import unimelb.ds.project1.GlobalConstants.MessageTag;
+import unimelb.ds.project1.GlobalConstants.MessageType;
+
+/**
+ * This thread periodically sends heartbeats to all other servers, so that the
+ * {@link FailureDetector} notices servers which went down and servers which
+ * came back. Heartbeats and their replies carry the load of the servers.
+ *
+ * Heartbeats are sent to all servers at once, and each reply is recorded as
+ * it arrives, so that a server which does not answer within the coordination
+ * timeout does not delay the heartbeats of the others.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class HeartbeatSender extends Thread {
+
+	/**
+	 * Time between heartbeats in milliseconds
+	 */
+	private long interval;
+
+	/**
+	 * Constructor
+	 *
+	 * @param interval
+	 */
+	public HeartbeatSender(long interval) {
+		this.interval = interval;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		ServerData serverData = ServerData.getInstance();
+		FailureDetector failureDetector = FailureDetector.getInstance();
+		while (true) {
+			JSONObject heartbeat = createHeartbeat(serverData.getMyData().getId());
+			for (Server server : serverData.getOtherServers()) {
+				// report servers which went silent without waiting for them
+				failureDetector.updateStatus(server.getId());
+				// the reply is recorded by the coordination client
+				CoordinationClient.getInstance().sendOnceAndGetReplyAsync(heartbeat, server).thenAccept(reply -> {
+					failureDetector.updateStatus(server.getId());
+					recordLoad(server.getId(), reply);
+				});
+			}
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Record the load report in the reply of a server.
+	 *
+	 * @param serverId
+	 * @param reply
+	 */
+	private void recordLoad(String serverId, String reply) {
+		if (reply == null) {
+			return;
+		}
+		try {
+			JSONObject response = (JSONObject) new JSONParser().parse(reply);
+			LoadTracker.getInstance().record(serverId, (JSONObject) response.get(MessageTag.load.name()));
+		} catch (ParseException e) {
+			System.err.println(getName() + ": invalid heartbeat reply from the server " + serverId + ": " + reply);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject createHeartbeat(String serverId) {
+		JSONObject heartbeat = new JSONObject();
+		heartbeat.put(MessageTag.type.name(), MessageType.heartbeat.name());
+		heartbeat.put(MessageTag.serverid.name(), serverId);
+		heartbeat.put(MessageTag.load.name(), LoadTracker.getInstance().getLocalReport().toJSON());
+		return heartbeat;
+	}
+}
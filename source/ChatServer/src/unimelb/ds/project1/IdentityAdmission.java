@@ -0,0 +1,225 @@
+package unimelb.ds.project1;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import unimelb.ds.project1.GlobalConstants.MessageTag;
+import unimelb.ds.project1.GlobalConstants.MessageType;
+
+/**
+ * This thread paces the identity locks of new clients on other servers, so
+ * that the clients of a failed server reconnecting at once do not flood the
+ * other servers with coordination messages.
+ *
+ * New identities wait in a queue. At every interval, the thread takes as many
+ * identities as the configured rate allows and sends each other server a
+ * single request for all the identities it has to lock. A client is accepted
+ * once every server it was sent to approved its identity.
+ *
+ * The queue is bounded: a client is refused without asking other servers if
+ * the queue is full, or if its identity waited longer than the configured
+ * time to be sent.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class IdentityAdmission extends Thread {
+	/**
+	 * Identity waiting for its lock on other servers
+	 */
+	private static class Pending {
+		private String identity;
+		private List<Server> targets;
+		private CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		private AtomicInteger remaining;
+		private volatile boolean approved = true;
+		private long queuedTime = System.currentTimeMillis();
+
+		private Pending(String identity, List<Server> targets) {
+			this.identity = identity;
+			this.targets = targets;
+			this.remaining = new AtomicInteger(targets.size());
+		}
+
+		private void reply(boolean locked) {
+			if (!locked) {
+				approved = false;
+			}
+			if (remaining.decrementAndGet() == 0) {
+				result.complete(approved);
+			}
+		}
+	}
+
+	/**
+	 * Identities waiting to be sent
+	 */
+	private ConcurrentLinkedQueue<Pending> queue;
+
+	/**
+	 * Number of identities waiting to be sent
+	 */
+	private AtomicInteger queued;
+
+	/**
+	 * Limits the rate at which identities are sent
+	 */
+	private TokenBucket bucket;
+
+	/**
+	 * Configurations of this server
+	 */
+	private Config config;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config
+	 */
+	public IdentityAdmission(Config config) {
+		this.config = config;
+		this.queue = new ConcurrentLinkedQueue<Pending>();
+		this.queued = new AtomicInteger();
+		this.bucket = new TokenBucket(config.getIdentityRate(),
+				config.getIdentityRate() * config.getIdentityBatchTime() / 1000.0);
+		setDaemon(true);
+	}
+
+	/**
+	 * Queue an identity to be locked on the given servers.
+	 *
+	 * @param identity
+	 * @param targets
+	 * @return completes with true when all servers approved the identity,
+	 *         false when a server refused it, or null when it was not sent
+	 *         because the queue was full or it waited too long
+	 */
+	public CompletableFuture<Boolean> lock(String identity, List<Server> targets) {
+		Pending pending = new Pending(identity, targets);
+		if (targets.isEmpty()) {
+			pending.result.complete(true);
+			return pending.result;
+		}
+		if (config.getIdentityQueue() > 0 && queued.get() >= config.getIdentityQueue()) {
+			Metrics.getInstance().increment("identity.refused");
+			pending.result.complete(null);
+			return pending.result;
+		}
+		queue.offer(pending);
+		Metrics.getInstance().set("identity.queued", queued.incrementAndGet());
+		return pending.result;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(config.getIdentityBatchTime());
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				sendBatches();
+			} catch (RuntimeException e) {
+				System.err.println(getName() + ": Error while locking identities: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Take the identities the rate allows and send one request to each server.
+	 */
+	private void sendBatches() {
+		Map<Server, List<Pending>> batches = new LinkedHashMap<Server, List<Pending>>();
+		long now = System.currentTimeMillis();
+		int count = 0;
+		while (!queue.isEmpty()) {
+			// the oldest identities are first, so expired ones are found
+			// without waiting for tokens
+			Pending pending = queue.peek();
+			if (config.getIdentityWait() > 0 && now - pending.queuedTime > config.getIdentityWait()) {
+				queue.poll();
+				count++;
+				Metrics.getInstance().increment("identity.expired");
+				pending.result.complete(null);
+				continue;
+			}
+			if (!bucket.tryAcquire()) {
+				break;
+			}
+			queue.poll();
+			count++;
+			Metrics.getInstance().max("identity.wait.ms.max", now - pending.queuedTime);
+			for (Server server : pending.targets) {
+				List<Pending> batch = batches.get(server);
+				if (batch == null) {
+					batch = new ArrayList<Pending>();
+					batches.put(server, batch);
+				}
+				batch.add(pending);
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+		Metrics.getInstance().set("identity.queued", queued.addAndGet(-count));
+		for (Map.Entry<Server, List<Pending>> batch : batches.entrySet()) {
+			sendBatch(batch.getKey(), batch.getValue());
+		}
+	}
+
+	private void sendBatch(Server server, final List<Pending> batch) {
+		Metrics.getInstance().increment("identity.batches");
+		Metrics.getInstance().max("identity.batch.max", batch.size());
+		List<String> identities = new ArrayList<String>();
+		for (Pending pending : batch) {
+			identities.add(pending.identity);
+		}
+		CoordinationClient.getInstance()
+				.sendAndGetRepliesAsync(createLockIdentities(identities), Collections.singletonList(server))
+				.whenComplete((replies, e) -> {
+					Map<String, String> locked = readLocked(replies);
+					for (Pending pending : batch) {
+						// a server which did not reply does not hold the
+						// identity, like with single lock requests
+						pending.reply(locked == null || !"false".equals(locked.get(pending.identity)));
+					}
+				});
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, String> readLocked(List<String> replies) {
+		if (replies == null || replies.isEmpty()) {
+			return null;
+		}
+		try {
+			JSONObject reply = (JSONObject) new JSONParser().parse(replies.get(0));
+			return (Map<String, String>) reply.get(MessageTag.locked.name());
+		} catch (ParseException | ClassCastException e) {
+			System.err.println(getName() + ": invalid reply to a batch of identity locks: " + replies.get(0));
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject createLockIdentities(List<String> identities) {
+		JSONObject message = new JSONObject();
+		message.put(MessageTag.type.name(), MessageType.lockidentities.name());
+		message.put(MessageTag.serverid.name(), ServerData.getInstance().getMyData().getId());
+		JSONArray array = new JSONArray();
+		array.addAll(identities);
+		message.put(MessageTag.identities.name(), array);
+		return message;
+	}
+}
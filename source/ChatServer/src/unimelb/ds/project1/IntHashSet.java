@@ -0,0 +1,176 @@
+package unimelb.ds.project1;
+
+import java.util.Arrays;
+
+/**
+ * Set of non negative integers, such as handles of the {@link SymbolTable},
+ * kept in an open addressing table without boxing them. This class is not
+ * thread safe.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class IntHashSet {
+	/**
+	 * Value of an empty slot
+	 */
+	private static final int EMPTY = -1;
+
+	/**
+	 * Open addressing table of the values
+	 */
+	private int[] slots;
+
+	/**
+	 * Number of values in the set
+	 */
+	private int size = 0;
+
+	/**
+	 * Constructor
+	 */
+	public IntHashSet() {
+		slots = new int[16];
+		Arrays.fill(slots, EMPTY);
+	}
+
+	/**
+	 * Add a value to the set.
+	 *
+	 * @param value
+	 * @return false if the value was in the set already
+	 */
+	public boolean add(int value) {
+		int slot = findSlot(value);
+		if (slot >= 0) {
+			return false;
+		}
+		slots[-slot - 1] = value;
+		if (++size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a value from the set.
+	 *
+	 * @param value
+	 * @return false if the value was not in the set
+	 */
+	public boolean remove(int value) {
+		if (value < 0) {
+			return false;
+		}
+		int slot = findSlot(value);
+		if (slot < 0) {
+			return false;
+		}
+		int mask = slots.length - 1;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (slots[next] == EMPTY) {
+				break;
+			}
+			if (isOutside(mix(slots[next]) & mask, slot, next)) {
+				slots[slot] = slots[next];
+				slot = next;
+			}
+		}
+		slots[slot] = EMPTY;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Check whether a value is in the set.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public boolean contains(int value) {
+		return value >= 0 && findSlot(value) >= 0;
+	}
+
+	/**
+	 * Get the number of values in the set.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the values in the set.
+	 *
+	 * @return
+	 */
+	public int[] toArray() {
+		int[] values = new int[size];
+		int count = 0;
+		for (int value : slots) {
+			if (value != EMPTY) {
+				values[count++] = value;
+			}
+		}
+		return values;
+	}
+
+	private int findSlot(int value) {
+		int mask = slots.length - 1;
+		int slot = mix(value) & mask;
+		while (slots[slot] != EMPTY) {
+			if (slots[slot] == value) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -slot - 1;
+	}
+
+	private void rehash(int capacity) {
+		int[] old = slots;
+		slots = new int[capacity];
+		Arrays.fill(slots, EMPTY);
+		for (int value : old) {
+			if (value != EMPTY) {
+				slots[-findSlot(value) - 1] = value;
+			}
+		}
+	}
+
+	/**
+	 * Spread the bits of a hash code, so that dense handles and similar
+	 * strings do not fill neighbouring slots.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Check whether the entry found at a slot has to be moved back into a slot
+	 * which was emptied before it, when linear probing. It has to be moved
+	 * unless its own slot lies after the emptied slot, up to where it was
+	 * found.
+	 *
+	 * @param home
+	 *            slot the entry belongs to
+	 * @param emptied
+	 *            slot which was emptied
+	 * @param found
+	 *            slot the entry was found at
+	 * @return
+	 */
+	static boolean isOutside(int home, int emptied, int found) {
+		if (emptied <= found) {
+			return home <= emptied || home > found;
+		}
+		return home <= emptied && home > found;
+	}
+}
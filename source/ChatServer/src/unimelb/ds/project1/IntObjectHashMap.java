@@ -0,0 +1,206 @@
+package unimelb.ds.project1;
+
+/**
+ * Map from non negative integers, such as handles of the {@link SymbolTable},
+ * to objects, kept in an open addressing table without boxing the keys. Null
+ * values are not allowed. This class is not thread safe.
+ *
+ * The slots can be walked with {@link #capacity()}, {@link #keyAt(int)} and
+ * {@link #valueAt(int)}, which creates no iterator.
+ *
+ * @author Sewwandi Perera
+ *
+ * @param <V>
+ *            type of the values
+ */
+public class IntObjectHashMap<V> {
+	/**
+	 * Keys of the slots
+	 */
+	private int[] keys;
+
+	/**
+	 * Values of the slots, null for an empty slot
+	 */
+	private Object[] values;
+
+	/**
+	 * Number of entries in the map
+	 */
+	private int size = 0;
+
+	/**
+	 * Constructor
+	 */
+	public IntObjectHashMap() {
+		keys = new int[8];
+		values = new Object[8];
+	}
+
+	/**
+	 * Get the value of a key.
+	 *
+	 * @param key
+	 * @return the value, or null if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int slot = findSlot(key);
+		return slot >= 0 ? (V) values[slot] : null;
+	}
+
+	/**
+	 * Check whether a key is in the map.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public boolean containsKey(int key) {
+		return findSlot(key) >= 0;
+	}
+
+	/**
+	 * Set the value of a key.
+	 *
+	 * @param key
+	 * @param value
+	 * @return the previous value, or null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		int slot = findSlot(key);
+		if (slot >= 0) {
+			V previous = (V) values[slot];
+			values[slot] = value;
+			return previous;
+		}
+		keys[-slot - 1] = key;
+		values[-slot - 1] = value;
+		if (++size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Remove a key from the map.
+	 *
+	 * @param key
+	 * @return the removed value, or null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int slot = findSlot(key);
+		if (slot < 0) {
+			return null;
+		}
+		V previous = (V) values[slot];
+		removeSlot(slot);
+		return previous;
+	}
+
+	/**
+	 * Remove a key from the map if it has the given value.
+	 *
+	 * @param key
+	 * @param value
+	 * @return true if the key was removed
+	 */
+	public boolean remove(int key, V value) {
+		int slot = findSlot(key);
+		if (slot < 0 || values[slot] != value) {
+			return false;
+		}
+		removeSlot(slot);
+		return true;
+	}
+
+	/**
+	 * Get the number of entries in the map.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of slots in the map.
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * Get the key of a slot.
+	 *
+	 * @param slot
+	 * @return the key, which is only meaningful if the slot has a value
+	 */
+	public int keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * Get the value of a slot.
+	 *
+	 * @param slot
+	 * @return the value, or null if the slot is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	private int findSlot(int key) {
+		int mask = keys.length - 1;
+		int slot = IntHashSet.mix(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -slot - 1;
+	}
+
+	/**
+	 * Empty a slot, moving back the entries after it which would no longer be
+	 * found.
+	 *
+	 * @param slot
+	 */
+	private void removeSlot(int slot) {
+		int mask = keys.length - 1;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (values[next] == null) {
+				break;
+			}
+			if (IntHashSet.isOutside(IntHashSet.mix(keys[next]) & mask, slot, next)) {
+				keys[slot] = keys[next];
+				values[slot] = values[next];
+				slot = next;
+			}
+		}
+		values[slot] = null;
+		size--;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = -findSlot(oldKeys[i]) - 1;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package unimelb.ds.project1;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of recent latencies with buckets of powers of two milliseconds,
+ * used to estimate latency percentiles cheaply. Latencies are kept for two
+ * windows, the current one and the one before it, so that percentiles always
+ * cover at least one full window.
+ * 
+ * @author Sewwandi Perera
+ *
+ */
+public class LatencyHistogram {
+	/**
+	 * Number of buckets. The last bucket holds all larger latencies.
+	 */
+	private static final int BUCKETS = 24;
+
+	/**
+	 * Counts of the current window
+	 */
+	private volatile AtomicLongArray current;
+
+	/**
+	 * Counts of the previous window
+	 */
+	private volatile AtomicLongArray previous;
+
+	/**
+	 * Length of a window in milliseconds
+	 */
+	private long window;
+
+	/**
+	 * Time the current window started
+	 */
+	private volatile long windowStart;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param window
+	 *            length of a window in milliseconds
+	 */
+	public LatencyHistogram(long window) {
+		this.window = window;
+		this.current = new AtomicLongArray(BUCKETS);
+		this.previous = new AtomicLongArray(BUCKETS);
+		this.windowStart = System.currentTimeMillis();
+	}
+
+	/**
+	 * Record a latency.
+	 * 
+	 * @param millis
+	 */
+	public void record(long millis) {
+		rotate();
+		current.incrementAndGet(bucket(millis));
+	}
+
+	/**
+	 * Estimate a latency percentile of the last one to two windows.
+	 * 
+	 * @param percentile
+	 *            between 0 and 1
+	 * @return upper bound of the bucket holding the percentile in
+	 *         milliseconds, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		rotate();
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = current.get(i) + previous.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return 1L << i;
+			}
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	private void rotate() {
+		long now = System.currentTimeMillis();
+		if (now - windowStart < window) {
+			return;
+		}
+		synchronized (this) {
+			if (now - windowStart < window) {
+				return;
+			}
+			previous = now - windowStart < 2 * window ? current : new AtomicLongArray(BUCKETS);
+			current = new AtomicLongArray(BUCKETS);
+			windowStart = now;
+		}
+	}
+
+	/**
+	 * Find the bucket of a latency: bucket i holds latencies up to 2^i ms.
+	 * 
+	 * @param millis
+	 * @return
+	 */
+	private static int bucket(long millis) {
+		if (millis <= 1) {
+			return 0;
+		}
+		int bucket = 64 - Long.numberOfLeadingZeros(millis - 1);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+}
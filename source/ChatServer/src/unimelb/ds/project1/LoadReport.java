@@ -0,0 +1,110 @@
+package unimelb.ds.project1;
+
+import org.json.simple.JSONObject;
+
+import unimelb.ds.project1.GlobalConstants.MessageTag;
+
+/**
+ * Load of a server at a point in time, as shared with other servers in
+ * heartbeats.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class LoadReport {
+	/**
+	 * Number of clients connected to the server
+	 */
+	private long clients;
+
+	/**
+	 * Number of members in the chat rooms of the server
+	 */
+	private long members;
+
+	/**
+	 * Number of coordination messages the server is waiting for
+	 */
+	private long queued;
+
+	/**
+	 * System load average per processor, or a negative value if unknown
+	 */
+	private double cpu;
+
+	/**
+	 * Time the report was received
+	 */
+	private long time;
+
+	/**
+	 * Constructor
+	 *
+	 * @param clients
+	 * @param members
+	 * @param queued
+	 * @param cpu
+	 */
+	public LoadReport(long clients, long members, long queued, double cpu) {
+		this.clients = clients;
+		this.members = members;
+		this.queued = queued;
+		this.cpu = cpu;
+		this.time = System.currentTimeMillis();
+	}
+
+	/**
+	 * Read a report sent by another server.
+	 *
+	 * @param load
+	 * @return
+	 */
+	public static LoadReport fromJSON(JSONObject load) {
+		return new LoadReport(getLong(load, MessageTag.clients), getLong(load, MessageTag.members),
+				getLong(load, MessageTag.queued), ((Number) load.get(MessageTag.cpu.name())).doubleValue());
+	}
+
+	/**
+	 * Encode the report to be sent to other servers.
+	 *
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON() {
+		JSONObject load = new JSONObject();
+		load.put(MessageTag.clients.name(), clients);
+		load.put(MessageTag.members.name(), members);
+		load.put(MessageTag.queued.name(), queued);
+		load.put(MessageTag.cpu.name(), cpu);
+		return load;
+	}
+
+	public long getClients() {
+		return clients;
+	}
+
+	public long getMembers() {
+		return members;
+	}
+
+	public long getQueued() {
+		return queued;
+	}
+
+	public double getCpu() {
+		return cpu;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	private static long getLong(JSONObject load, MessageTag tag) {
+		return ((Number) load.get(tag.name())).longValue();
+	}
+
+	@Override
+	public String toString() {
+		return clients + " clients, " + members + " members, " + queued + " queued, cpu " + cpu;
+	}
+}
@@ -0,0 +1,115 @@
+package unimelb.ds.project1;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONObject;
+
+/**
+ * This singleton class keeps the latest load reports of other servers, which
+ * arrive with heartbeats, and finds a server with fewer clients to which new
+ * clients or rooms can be moved.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class LoadTracker {
+	/**
+	 * Singleton instance of the class
+	 */
+	private static LoadTracker instance = new LoadTracker();
+
+	/**
+	 * Latest load reports of other servers
+	 */
+	private Map<String, LoadReport> reports;
+
+	/**
+	 * Private constructor of the singleton class
+	 */
+	private LoadTracker() {
+		reports = new ConcurrentHashMap<String, LoadReport>();
+	}
+
+	/**
+	 * Get singleton instance of the class.
+	 *
+	 * @return
+	 */
+	public static LoadTracker getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get the current load of this server.
+	 *
+	 * @return
+	 */
+	public LoadReport getLocalReport() {
+		ServerData serverData = ServerData.getInstance();
+		double loadAverage = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+		double cpu = loadAverage < 0 ? -1 : loadAverage / Runtime.getRuntime().availableProcessors();
+		LoadReport report = new LoadReport(serverData.getMyClientCount(), serverData.getMemberCount(),
+				CoordinationClient.getInstance().getInFlight(), cpu);
+		Metrics.getInstance().set("load.clients", report.getClients());
+		return report;
+	}
+
+	/**
+	 * Record a load report sent by another server.
+	 *
+	 * @param serverId
+	 * @param load
+	 */
+	public void record(String serverId, JSONObject load) {
+		if (serverId == null || load == null) {
+			return;
+		}
+		try {
+			reports.put(serverId, LoadReport.fromJSON(load));
+		} catch (RuntimeException e) {
+			System.err.println(Thread.currentThread().getName() + ": invalid load report from the server " + serverId
+					+ ": " + load);
+		}
+	}
+
+	/**
+	 * Find the reachable server with the fewest clients, if it has at least
+	 * the configured margin fewer clients than this server. Servers whose
+	 * report is older than the dead timeout, or whose CPU is over the
+	 * configured limit, are not considered.
+	 *
+	 * @return the server, or null if this server should keep the load
+	 */
+	public Server findLessLoadedServer() {
+		ServerData serverData = ServerData.getInstance();
+		Config config = serverData.getConfig();
+		LoadReport local = getLocalReport();
+		long now = System.currentTimeMillis();
+		Server best = null;
+		long bestClients = local.getClients() - config.getLoadMargin();
+		for (Server server : serverData.getOtherServers()) {
+			LoadReport report = reports.get(server.getId());
+			if (report == null || now - report.getTime() > config.getDeadTimeout()
+					|| !FailureDetector.getInstance().isReachable(server.getId())
+					|| (config.getCpuLimit() > 0 && report.getCpu() > config.getCpuLimit())) {
+				continue;
+			}
+			if (report.getClients() <= bestClients) {
+				best = server;
+				bestClients = report.getClients() - 1;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Get the latest load reports of other servers.
+	 *
+	 * @return
+	 */
+	public Map<String, LoadReport> getReports() {
+		return reports;
+	}
+}
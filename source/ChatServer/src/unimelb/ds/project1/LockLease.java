@@ -0,0 +1,77 @@
+package unimelb.ds.project1;
+
+/**
+ * A lock on an identity or room id held by a server for a limited time. If the
+ * holder does not release the lock before the deadline, the lock expires.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class LockLease {
+	/**
+	 * Identity of the server which holds the lock
+	 */
+	private String serverId;
+
+	/**
+	 * Time the lock was granted
+	 */
+	private long grantedTime;
+
+	/**
+	 * Time the lock expires
+	 */
+	private long deadline;
+
+	/**
+	 * Timer which expires the lock
+	 */
+	private HashedTimerWheel.Timeout expiryTimer;
+
+	/**
+	 * Constructor
+	 *
+	 * @param serverId
+	 * @param leaseMillis
+	 */
+	public LockLease(String serverId, long leaseMillis) {
+		this.serverId = serverId;
+		this.grantedTime = System.currentTimeMillis();
+		this.deadline = grantedTime + leaseMillis;
+	}
+
+	public String getServerId() {
+		return serverId;
+	}
+
+	public long getGrantedTime() {
+		return grantedTime;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Move the deadline of the lock.
+	 *
+	 * @param leaseMillis
+	 *            new lease length from now
+	 */
+	public void renew(long leaseMillis) {
+		this.deadline = System.currentTimeMillis() + leaseMillis;
+	}
+
+	public HashedTimerWheel.Timeout getExpiryTimer() {
+		return expiryTimer;
+	}
+
+	public void setExpiryTimer(HashedTimerWheel.Timeout expiryTimer) {
+		this.expiryTimer = expiryTimer;
+	}
+
+	@Override
+	public String toString() {
+		return serverId + " until " + deadline;
+	}
+}
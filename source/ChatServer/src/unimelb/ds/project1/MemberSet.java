@@ -0,0 +1,220 @@
+package unimelb.ds.project1;
+
+/**
+ * Members of a chat room by the handles of their identities. A small room
+ * keeps a map from handles to workers. Once the room reaches the threshold
+ * number of members, it only keeps a bit per handle and finds the workers in
+ * the {@link SessionTable}, and it goes back to the map when it shrinks below
+ * half of the threshold. This class is not thread safe.
+ *
+ * Members are walked by position, which creates no iterator:
+ *
+ * <pre>
+ * for (int i = members.next(0); i &gt;= 0; i = members.next(i + 1)) {
+ * 	ClientWorker worker = members.workerAt(i);
+ * }
+ * </pre>
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class MemberSet {
+	/**
+	 * Members of a small room, null while the room keeps bits
+	 */
+	private IntObjectHashMap<ClientWorker> map;
+
+	/**
+	 * Bit per handle of the members of a large room, null while the room keeps
+	 * a map
+	 */
+	private long[] bits;
+
+	/**
+	 * Number of members while the room keeps bits
+	 */
+	private int bitCount;
+
+	/**
+	 * Workers of all members
+	 */
+	private SessionTable sessions;
+
+	/**
+	 * Number of members from which bits are kept, 0 to always keep a map
+	 */
+	private int threshold;
+
+	/**
+	 * Constructor
+	 *
+	 * @param sessions
+	 * @param threshold
+	 *            number of members from which bits are kept, 0 to always keep
+	 *            a map
+	 */
+	public MemberSet(SessionTable sessions, int threshold) {
+		this.sessions = sessions;
+		this.threshold = threshold;
+		this.map = new IntObjectHashMap<ClientWorker>();
+	}
+
+	/**
+	 * Add a member, or replace its worker.
+	 *
+	 * @param handle
+	 * @param worker
+	 * @return false if the handle was a member already
+	 */
+	public boolean add(int handle, ClientWorker worker) {
+		sessions.set(handle, worker);
+		if (map != null) {
+			boolean added = map.put(handle, worker) == null;
+			if (threshold > 0 && map.size() >= threshold) {
+				toBits();
+			}
+			return added;
+		}
+		int word = handle >>> 6;
+		if (word >= bits.length) {
+			long[] grown = new long[Math.max(word + 1, bits.length * 2)];
+			System.arraycopy(bits, 0, grown, 0, bits.length);
+			bits = grown;
+		}
+		if ((bits[word] & (1L << handle)) != 0) {
+			return false;
+		}
+		bits[word] |= 1L << handle;
+		bitCount++;
+		return true;
+	}
+
+	/**
+	 * Remove a member.
+	 *
+	 * @param handle
+	 * @return false if the handle was not a member
+	 */
+	public boolean remove(int handle) {
+		if (map != null) {
+			return map.remove(handle) != null;
+		}
+		if (!contains(handle)) {
+			return false;
+		}
+		clearBit(handle);
+		return true;
+	}
+
+	/**
+	 * Remove a member if it has the given worker.
+	 *
+	 * @param handle
+	 * @param worker
+	 * @return false if the handle was not a member with the worker
+	 */
+	public boolean remove(int handle, ClientWorker worker) {
+		if (map != null) {
+			return map.remove(handle, worker);
+		}
+		if (!contains(handle) || sessions.get(handle) != worker) {
+			return false;
+		}
+		clearBit(handle);
+		return true;
+	}
+
+	/**
+	 * Get the number of members.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return map != null ? map.size() : bitCount;
+	}
+
+	/**
+	 * Find the first position of a member at or after a position.
+	 *
+	 * @param position
+	 * @return the position, or -1 if there are no more members
+	 */
+	public int next(int position) {
+		if (map != null) {
+			for (int slot = position; slot < map.capacity(); slot++) {
+				if (map.valueAt(slot) != null) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+		int word = position >>> 6;
+		if (word >= bits.length) {
+			return -1;
+		}
+		long remaining = bits[word] & (-1L << position);
+		while (remaining == 0) {
+			if (++word == bits.length) {
+				return -1;
+			}
+			remaining = bits[word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(remaining);
+	}
+
+	/**
+	 * Get the handle of the member at a position.
+	 *
+	 * @param position
+	 * @return
+	 */
+	public int handleAt(int position) {
+		return map != null ? map.keyAt(position) : position;
+	}
+
+	/**
+	 * Get the worker of the member at a position.
+	 *
+	 * @param position
+	 * @return
+	 */
+	public ClientWorker workerAt(int position) {
+		return map != null ? map.valueAt(position) : sessions.get(position);
+	}
+
+	private boolean contains(int handle) {
+		int word = handle >>> 6;
+		return handle >= 0 && word < bits.length && (bits[word] & (1L << handle)) != 0;
+	}
+
+	private void clearBit(int handle) {
+		bits[handle >>> 6] &= ~(1L << handle);
+		bitCount--;
+		if (bitCount < threshold / 2) {
+			toMap();
+		}
+	}
+
+	private void toBits() {
+		IntObjectHashMap<ClientWorker> members = map;
+		bits = new long[64];
+		bitCount = 0;
+		map = null;
+		for (int slot = 0; slot < members.capacity(); slot++) {
+			if (members.valueAt(slot) != null) {
+				add(members.keyAt(slot), members.valueAt(slot));
+			}
+		}
+		Metrics.getInstance().increment("members.tobits");
+	}
+
+	private void toMap() {
+		IntObjectHashMap<ClientWorker> members = new IntObjectHashMap<ClientWorker>();
+		for (int i = next(0); i >= 0; i = next(i + 1)) {
+			members.put(i, sessions.get(i));
+		}
+		map = members;
+		bits = null;
+		Metrics.getInstance().increment("members.tomap");
+	}
+}
@@ -0,0 +1,212 @@
+package unimelb.ds.project1;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recent chat messages of a room, kept as encoded frames in a ring buffer
+ * outside the Java heap, so that clients joining the room can be sent what
+ * they missed.
+ *
+ * Each record holds the time the message was sent, the length of the frame and
+ * the frame itself. When the buffer is full or holds the maximum number of
+ * messages, the oldest records are overwritten. The memory of all histories
+ * together is capped, and a room gets no history when the cap is reached.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class MessageHistory {
+	/**
+	 * Size of the time and length before each frame
+	 */
+	private static final int HEADER_SIZE = 12;
+
+	/**
+	 * Bytes allocated for all histories of this server
+	 */
+	private static AtomicLong allocatedBytes = new AtomicLong();
+
+	/**
+	 * Ring buffer of records
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Maximum number of messages kept
+	 */
+	private int maxMessages;
+
+	/**
+	 * Offset of the oldest record
+	 */
+	private int head;
+
+	/**
+	 * Offset where the next record is written
+	 */
+	private int tail;
+
+	/**
+	 * Bytes used by records
+	 */
+	private int used;
+
+	/**
+	 * Number of records
+	 */
+	private int count;
+
+	/**
+	 * Private constructor, use {@link #allocate(Config)}
+	 *
+	 * @param capacity
+	 * @param maxMessages
+	 */
+	private MessageHistory(int capacity, int maxMessages) {
+		this.buffer = ByteBuffer.allocateDirect(capacity);
+		this.maxMessages = maxMessages;
+	}
+
+	/**
+	 * Allocate a history for a room, if history is enabled and the memory cap
+	 * allows it.
+	 *
+	 * @param config
+	 * @return the history, or null if the room keeps no history
+	 */
+	public static MessageHistory allocate(Config config) {
+		int capacity = config.getHistoryRoomBytes();
+		if (config.getHistoryMessages() <= 0 || capacity <= HEADER_SIZE) {
+			return null;
+		}
+		long allocated;
+		do {
+			allocated = allocatedBytes.get();
+			if (allocated + capacity > config.getHistoryMemory()) {
+				Metrics.getInstance().increment("history.refused");
+				return null;
+			}
+		} while (!allocatedBytes.compareAndSet(allocated, allocated + capacity));
+		Metrics.getInstance().set("history.bytes", allocated + capacity);
+		Metrics.getInstance().increment("history.rooms");
+		return new MessageHistory(capacity, config.getHistoryMessages());
+	}
+
+	/**
+	 * Give the memory of the history back to the cap. The history must not be
+	 * used afterwards.
+	 */
+	public synchronized void release() {
+		Metrics.getInstance().set("history.bytes", allocatedBytes.addAndGet(-buffer.capacity()));
+		Metrics.getInstance().add("history.rooms", -1);
+		buffer = null;
+	}
+
+	/**
+	 * Add a message to the history.
+	 *
+	 * @param frame
+	 *            message as it is sent to clients, including the line end
+	 */
+	public synchronized void append(String frame) {
+		if (buffer == null) {
+			return;
+		}
+		byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+		int size = HEADER_SIZE + bytes.length;
+		if (size > buffer.capacity()) {
+			Metrics.getInstance().increment("history.toolarge");
+			return;
+		}
+		while (count > 0 && (buffer.capacity() - used < size || count >= maxMessages)) {
+			evictOldest();
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(System.currentTimeMillis());
+		header.putInt(bytes.length);
+		tail = put(tail, header.array());
+		tail = put(tail, bytes);
+		used += size;
+		count++;
+	}
+
+	/**
+	 * Get the messages sent since the given time, oldest first.
+	 *
+	 * @param since
+	 *            time in milliseconds
+	 * @return encoded frames
+	 */
+	public synchronized List<String> getMessagesSince(long since) {
+		List<String> frames = new ArrayList<String>();
+		if (buffer == null) {
+			return frames;
+		}
+		byte[] header = new byte[HEADER_SIZE];
+		int offset = head;
+		for (int i = 0; i < count; i++) {
+			offset = get(offset, header);
+			ByteBuffer fields = ByteBuffer.wrap(header);
+			long time = fields.getLong();
+			int length = fields.getInt();
+			if (time < since) {
+				offset = (offset + length) % buffer.capacity();
+				continue;
+			}
+			byte[] bytes = new byte[length];
+			offset = get(offset, bytes);
+			frames.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+		return frames;
+	}
+
+	private void evictOldest() {
+		byte[] header = new byte[HEADER_SIZE];
+		get(head, header);
+		int size = HEADER_SIZE + ByteBuffer.wrap(header).getInt(8);
+		head = (head + size) % buffer.capacity();
+		used -= size;
+		count--;
+		Metrics.getInstance().increment("history.evicted");
+	}
+
+	/**
+	 * Write bytes at an offset of the ring buffer, wrapping at its end.
+	 *
+	 * @param offset
+	 * @param bytes
+	 * @return offset after the bytes
+	 */
+	private int put(int offset, byte[] bytes) {
+		int first = Math.min(bytes.length, buffer.capacity() - offset);
+		buffer.position(offset);
+		buffer.put(bytes, 0, first);
+		if (first < bytes.length) {
+			buffer.position(0);
+			buffer.put(bytes, first, bytes.length - first);
+		}
+		return (offset + bytes.length) % buffer.capacity();
+	}
+
+	/**
+	 * Read bytes at an offset of the ring buffer, wrapping at its end.
+	 *
+	 * @param offset
+	 * @param bytes
+	 * @return offset after the bytes
+	 */
+	private int get(int offset, byte[] bytes) {
+		int first = Math.min(bytes.length, buffer.capacity() - offset);
+		buffer.position(offset);
+		buffer.get(bytes, 0, first);
+		if (first < bytes.length) {
+			buffer.position(0);
+			buffer.get(bytes, first, bytes.length - first);
+		}
+		return (offset + bytes.length) % buffer.capacity();
+	}
+}
@@ -0,0 +1,931 @@
+package unimelb.ds.project1;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import unimelb.ds.project1.GlobalConstants.MessageTag;
+
+/**
+ * This thread indexes the message log of this server, so that messages can
+ * be found by room, identity and words without reading the whole log.
+ *
+ * The index maps terms to the offsets of the log records which contain them.
+ * The segment the log is writing to is indexed in memory, reading only the
+ * records appended since the last run. When the log moves on to a new segment,
+ * the index of the finished segment is written next to it in an index file.
+ * An index file holds a table of fixed size entries, one per term in sorted
+ * order, followed by the terms and by their offsets, delta encoded. Index
+ * files are memory mapped and searched in place, so a term is found by a
+ * binary search of the table without reading the terms into memory.
+ *
+ * Once the configured number of indexes of the same level exist, they are
+ * merged in the background into one index of the next level, so a search
+ * looks at a few indexes instead of one per segment. An index is deleted once
+ * all of its log segments are deleted.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class MessageIndexer extends Thread {
+	/**
+	 * Magic number at the start of an index file
+	 */
+	private static final int MAGIC = 0x43524959;
+
+	/**
+	 * Extension of index files, added to the name of the first log segment
+	 */
+	private static final String INDEX_SUFFIX = ".idx";
+
+	/**
+	 * Bytes of the log read at once
+	 */
+	private static final int READ_SIZE = 1 << 20;
+
+	/**
+	 * Bytes of an entry of the term table: position and length of the term,
+	 * number and position of its offsets
+	 */
+	private static final int ENTRY_SIZE = 16;
+
+	/**
+	 * Bits of an indexed offset which hold the offset in its log segment. The
+	 * bits above hold the number of the segment within the index.
+	 */
+	private static final int OFFSET_BITS = 40;
+
+	private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+	/**
+	 * Orders terms by their UTF-8 bytes, which is the order of the term table
+	 */
+	private static final Comparator<byte[]> TERM_ORDER = (x, y) -> compareTerms(x, y);
+
+	/**
+	 * Offsets of the records containing a term, in increasing order
+	 */
+	private static class Postings {
+		private long[] offsets = new long[4];
+		private int size;
+
+		private void add(long offset) {
+			if (size == offsets.length) {
+				offsets = Arrays.copyOf(offsets, size * 2);
+			}
+			offsets[size++] = offset;
+		}
+
+		private long[] toArray() {
+			return Arrays.copyOf(offsets, size);
+		}
+	}
+
+	/**
+	 * Index of one or more finished log segments, memory mapped from its index
+	 * file
+	 */
+	private static class SegmentIndex {
+		private File file;
+		private List<File> segments;
+		private int level;
+		private ByteBuffer buffer;
+		private int count;
+		private int table;
+		private int terms;
+		private int postings;
+
+		/**
+		 * Get the indexed offsets of the records containing a term.
+		 *
+		 * @param term
+		 * @return offsets in increasing order, null if no record contains it
+		 */
+		private long[] get(String term) {
+			byte[] key = term.getBytes(StandardCharsets.UTF_8);
+			int low = 0;
+			int high = count - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int order = compareTerm(middle, key);
+				if (order < 0) {
+					low = middle + 1;
+				} else if (order > 0) {
+					high = middle - 1;
+				} else {
+					return getPostings(middle);
+				}
+			}
+			return null;
+		}
+
+		private byte[] getTerm(int entry) {
+			byte[] term = new byte[buffer.getInt(table + entry * ENTRY_SIZE + 4)];
+			ByteBuffer bytes = buffer.duplicate();
+			bytes.position(terms + buffer.getInt(table + entry * ENTRY_SIZE));
+			bytes.get(term);
+			return term;
+		}
+
+		private long[] getPostings(int entry) {
+			ByteBuffer bytes = buffer.duplicate();
+			bytes.position(postings + buffer.getInt(table + entry * ENTRY_SIZE + 12));
+			long[] offsets = new long[buffer.getInt(table + entry * ENTRY_SIZE + 8)];
+			long offset = 0;
+			for (int i = 0; i < offsets.length; i++) {
+				offset += readVarLong(bytes);
+				offsets[i] = offset;
+			}
+			return offsets;
+		}
+
+		private int compareTerm(int entry, byte[] key) {
+			int start = terms + buffer.getInt(table + entry * ENTRY_SIZE);
+			int length = buffer.getInt(table + entry * ENTRY_SIZE + 4);
+			for (int i = 0; i < length && i < key.length; i++) {
+				int order = (buffer.get(start + i) & 0xFF) - (key[i] & 0xFF);
+				if (order != 0) {
+					return order;
+				}
+			}
+			return length - key.length;
+		}
+	}
+
+	/**
+	 * Writes an index file. Terms are added in sorted order, each followed by
+	 * its offsets. The offsets are written to a temporary file as they come,
+	 * and only the term table is kept in memory.
+	 */
+	private static class IndexWriter {
+		private File file;
+		private File postingsFile;
+		private OutputStream postings;
+		private long postingsSize = 0;
+		private ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+		private DataOutputStream table = new DataOutputStream(tableBytes);
+		private ByteArrayOutputStream terms = new ByteArrayOutputStream();
+		private int count = 0;
+		private long previous;
+
+		private IndexWriter(File file) throws IOException {
+			this.file = file;
+			this.postingsFile = new File(file.getPath() + ".postings.tmp");
+			this.postings = new BufferedOutputStream(new FileOutputStream(postingsFile));
+		}
+
+		/**
+		 * Start a term, which is followed by the given number of offsets.
+		 *
+		 * @param term
+		 * @param size
+		 * @throws IOException
+		 */
+		private void addTerm(byte[] term, int size) throws IOException {
+			if (postingsSize > Integer.MAX_VALUE) {
+				throw new IOException("index file too large " + file);
+			}
+			table.writeInt(terms.size());
+			table.writeInt(term.length);
+			table.writeInt(size);
+			table.writeInt((int) postingsSize);
+			terms.write(term);
+			count++;
+			previous = 0;
+		}
+
+		private void addOffset(long offset) throws IOException {
+			postingsSize += writeVarLong(postings, offset - previous);
+			previous = offset;
+		}
+
+		/**
+		 * Write the index file and replace any earlier file of the same name.
+		 *
+		 * @param level
+		 * @param segments
+		 *            log segments of the index, oldest first
+		 * @return size of the index file
+		 * @throws IOException
+		 */
+		private long finish(int level, List<File> segments) throws IOException {
+			postings.close();
+			File temp = new File(file.getPath() + ".tmp");
+			try (FileOutputStream stream = new FileOutputStream(temp)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+				out.writeInt(MAGIC);
+				out.writeInt(level);
+				out.writeInt(segments.size());
+				for (File segment : segments) {
+					byte[] name = segment.getName().getBytes(StandardCharsets.UTF_8);
+					out.writeInt(name.length);
+					out.write(name);
+				}
+				out.writeInt(count);
+				out.writeInt(terms.size());
+				table.flush();
+				tableBytes.writeTo(out);
+				terms.writeTo(out);
+				out.flush();
+				try (FileChannel channel = FileChannel.open(postingsFile.toPath(), StandardOpenOption.READ)) {
+					long position = 0;
+					while (position < channel.size()) {
+						position += channel.transferTo(position, channel.size() - position, stream.getChannel());
+					}
+				}
+				stream.getChannel().force(true);
+			} finally {
+				Files.deleteIfExists(postingsFile.toPath());
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return file.length();
+		}
+
+		/**
+		 * Give up the file.
+		 */
+		private void abort() {
+			try {
+				postings.close();
+				Files.deleteIfExists(postingsFile.toPath());
+			} catch (IOException e) {
+				System.err.println("Error while removing " + postingsFile + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Directory of the message log
+	 */
+	private File directory;
+
+	/**
+	 * Configurations of this server
+	 */
+	private Config config;
+
+	/**
+	 * Indexes of finished log segments by the name of their first segment
+	 */
+	private NavigableMap<String, SegmentIndex> segments;
+
+	/**
+	 * Whether the index files written before the last restart were loaded
+	 */
+	private boolean loaded = false;
+
+	/**
+	 * Log segment indexed in memory
+	 */
+	private File tailSegment;
+
+	/**
+	 * Offset up to which the tail segment is indexed
+	 */
+	private long tailOffset;
+
+	/**
+	 * Index of the tail segment
+	 */
+	private Map<String, Postings> tailPostings;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config
+	 */
+	public MessageIndexer(Config config) {
+		this.config = config;
+		this.directory = new File(config.getLogDir());
+		this.segments = new ConcurrentSkipListMap<String, SegmentIndex>();
+		this.tailPostings = new HashMap<String, Postings>();
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(config.getIndexInterval());
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				update();
+			} catch (IOException | RuntimeException e) {
+				Metrics.getInstance().increment("index.failed");
+				System.err.println(getName() + ": Error while indexing the message log: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Find the latest messages matching the query. Every given part of the
+	 * query must match.
+	 *
+	 * @param roomId
+	 *            room of the messages, or null for any room
+	 * @param identity
+	 *            sender of the messages, or null for anyone
+	 * @param text
+	 *            words all of which the messages contain, or null
+	 * @param limit
+	 *            maximum number of messages
+	 * @return matching log records, oldest first
+	 */
+	public List<JSONObject> search(String roomId, String identity, String text, int limit) {
+		long startTime = System.currentTimeMillis();
+		List<String> terms = new ArrayList<String>();
+		if (roomId != null) {
+			terms.add(roomTerm(roomId));
+		}
+		if (identity != null) {
+			terms.add(identityTerm(identity));
+		}
+		if (text != null) {
+			terms.addAll(tokenize(text));
+		}
+		List<JSONObject> results = new ArrayList<JSONObject>();
+		if (terms.isEmpty() || limit <= 0) {
+			return results;
+		}
+
+		// find the matching offsets, newest index first
+		List<List<File>> matchedSegments = new ArrayList<List<File>>();
+		List<long[]> matches = new ArrayList<long[]>();
+		synchronized (this) {
+			if (tailSegment != null) {
+				List<long[]> lists = new ArrayList<long[]>();
+				for (String term : terms) {
+					Postings postings = tailPostings.get(term);
+					lists.add(postings == null ? null : postings.toArray());
+				}
+				matchedSegments.add(Collections.singletonList(tailSegment));
+				matches.add(intersect(lists));
+			}
+			for (SegmentIndex index : segments.descendingMap().values()) {
+				List<long[]> lists = new ArrayList<long[]>();
+				for (String term : terms) {
+					lists.add(index.get(term));
+				}
+				matchedSegments.add(index.segments);
+				matches.add(intersect(lists));
+			}
+		}
+
+		// read the matching records, newest first
+		JSONParser parser = new JSONParser();
+		for (int m = 0; m < matches.size() && results.size() < limit; m++) {
+			long[] offsets = matches.get(m);
+			int i = offsets.length - 1;
+			while (i >= 0 && results.size() < limit) {
+				int segmentNumber = (int) (offsets[i] >>> OFFSET_BITS);
+				File segment = matchedSegments.get(m).get(segmentNumber);
+				if (!segment.exists()) {
+					// deleted while its index covers later segments
+					while (i >= 0 && (int) (offsets[i] >>> OFFSET_BITS) == segmentNumber) {
+						i--;
+					}
+					continue;
+				}
+				try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+					for (; i >= 0 && (int) (offsets[i] >>> OFFSET_BITS) == segmentNumber
+							&& results.size() < limit; i--) {
+						results.add((JSONObject) parser.parse(readLine(channel, offsets[i] & OFFSET_MASK)));
+					}
+				} catch (IOException | ParseException e) {
+					System.err.println(Thread.currentThread().getName() + ": Error while reading the log segment "
+							+ segment + ": " + e.getMessage());
+					while (i >= 0 && (int) (offsets[i] >>> OFFSET_BITS) == segmentNumber) {
+						i--;
+					}
+				}
+			}
+		}
+		Collections.reverse(results);
+		Metrics.getInstance().increment("search.queries");
+		Metrics.getInstance().add("search.results", results.size());
+		Metrics.getInstance().max("search.ms.max", System.currentTimeMillis() - startTime);
+		return results;
+	}
+
+	/**
+	 * Bring the index up to date with the log.
+	 *
+	 * @throws IOException
+	 */
+	private void update() throws IOException {
+		long startTime = System.currentTimeMillis();
+		if (!loaded) {
+			loadIndexes();
+			loaded = true;
+		}
+		File[] logSegments = MessageLog.listSegments(directory, config.getServerId());
+
+		// drop the indexes whose segments were all deleted
+		Set<String> covered = new HashSet<String>();
+		for (SegmentIndex index : new ArrayList<SegmentIndex>(segments.values())) {
+			boolean live = false;
+			for (File segment : index.segments) {
+				live |= segment.exists();
+			}
+			if (!live) {
+				segments.remove(index.segments.get(0).getName());
+				Files.deleteIfExists(index.file.toPath());
+				continue;
+			}
+			for (File segment : index.segments) {
+				covered.add(segment.getName());
+			}
+		}
+
+		// index finished segments and keep indexing the last one in memory
+		for (int i = 0; i < logSegments.length; i++) {
+			File segment = logSegments[i];
+			boolean last = i == logSegments.length - 1;
+			if (covered.contains(segment.getName())) {
+				continue;
+			}
+			synchronized (this) {
+				if (!segment.equals(tailSegment)) {
+					tailSegment = segment;
+					tailOffset = 0;
+					tailPostings = new HashMap<String, Postings>();
+				}
+			}
+			indexTail();
+			if (!last) {
+				SegmentIndex index = loadIndex(writeIndex(segment));
+				synchronized (this) {
+					segments.put(segment.getName(), index);
+					tailSegment = null;
+					tailPostings = new HashMap<String, Postings>();
+				}
+				Metrics.getInstance().increment("index.segments");
+			}
+		}
+		mergeIndexes();
+		Metrics.getInstance().set("index.files", segments.size());
+		Metrics.getInstance().max("index.ms.max", System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Index the records appended to the tail segment since the last run.
+	 * Only complete lines are indexed.
+	 *
+	 * @throws IOException
+	 */
+	private void indexTail() throws IOException {
+		JSONParser parser = new JSONParser();
+		try (FileChannel channel = FileChannel.open(tailSegment.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+			long offset = tailOffset;
+			while (offset < size) {
+				buffer.clear();
+				channel.read(buffer, offset);
+				buffer.flip();
+				int lineStart = 0;
+				for (int i = 0; i < buffer.limit(); i++) {
+					if (buffer.get(i) != '\n') {
+						continue;
+					}
+					String line = new String(buffer.array(), lineStart, i - lineStart, StandardCharsets.UTF_8);
+					indexRecord(parser, line, offset + lineStart);
+					lineStart = i + 1;
+				}
+				if (lineStart == 0) {
+					// an incomplete line, or a line longer than the buffer
+					if (buffer.limit() == READ_SIZE) {
+						lineStart = READ_SIZE;
+					} else {
+						break;
+					}
+				}
+				offset += lineStart;
+			}
+			synchronized (this) {
+				tailOffset = offset;
+			}
+		}
+	}
+
+	private void indexRecord(JSONParser parser, String line, long offset) {
+		JSONObject record;
+		try {
+			record = (JSONObject) parser.parse(line);
+		} catch (ParseException | ClassCastException e) {
+			Metrics.getInstance().increment("index.skipped");
+			return;
+		}
+		Set<String> terms = new LinkedHashSet<String>();
+		terms.add(roomTerm((String) record.get(MessageTag.roomid.name())));
+		terms.add(identityTerm((String) record.get(MessageTag.identity.name())));
+		String content = (String) record.get(MessageTag.content.name());
+		if (content != null) {
+			terms.addAll(tokenize(content));
+		}
+		synchronized (this) {
+			for (String term : terms) {
+				Postings postings = tailPostings.get(term);
+				if (postings == null) {
+					postings = new Postings();
+					tailPostings.put(term, postings);
+				}
+				postings.add(offset);
+			}
+		}
+		Metrics.getInstance().increment("index.records");
+	}
+
+	/**
+	 * Write the index of the tail segment to its index file.
+	 *
+	 * @param segment
+	 * @return the index file
+	 * @throws IOException
+	 */
+	private File writeIndex(File segment) throws IOException {
+		List<byte[]> terms = new ArrayList<byte[]>();
+		Map<byte[], Postings> postings = new HashMap<byte[], Postings>();
+		synchronized (this) {
+			for (Map.Entry<String, Postings> entry : tailPostings.entrySet()) {
+				byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				terms.add(term);
+				postings.put(term, entry.getValue());
+			}
+		}
+		Collections.sort(terms, TERM_ORDER);
+		File file = indexFile(segment, 0);
+		IndexWriter writer = new IndexWriter(file);
+		try {
+			for (byte[] term : terms) {
+				Postings offsets = postings.get(term);
+				writer.addTerm(term, offsets.size);
+				for (int i = 0; i < offsets.size; i++) {
+					writer.addOffset(offsets.offsets[i]);
+				}
+			}
+			Metrics.getInstance().add("index.bytes", writer.finish(0, Collections.singletonList(segment)));
+		} catch (IOException e) {
+			writer.abort();
+			throw e;
+		}
+		Metrics.getInstance().add("index.terms", terms.size());
+		return file;
+	}
+
+	/**
+	 * Merge the oldest run of indexes of the same level into one index of the
+	 * next level, as long as there is such a run.
+	 *
+	 * @throws IOException
+	 */
+	private void mergeIndexes() throws IOException {
+		int factor = config.getIndexMerge();
+		if (factor < 2) {
+			return;
+		}
+		while (true) {
+			List<SegmentIndex> run = new ArrayList<SegmentIndex>();
+			for (SegmentIndex index : segments.values()) {
+				if (!run.isEmpty() && run.get(0).level != index.level) {
+					run.clear();
+				}
+				run.add(index);
+				if (run.size() == factor) {
+					break;
+				}
+			}
+			if (run.size() < factor) {
+				return;
+			}
+			SegmentIndex merged = loadIndex(merge(run));
+			synchronized (this) {
+				for (SegmentIndex index : run) {
+					segments.remove(index.segments.get(0).getName());
+				}
+				segments.put(merged.segments.get(0).getName(), merged);
+			}
+			for (SegmentIndex index : run) {
+				Files.deleteIfExists(index.file.toPath());
+			}
+			Metrics.getInstance().increment("index.merges");
+		}
+	}
+
+	/**
+	 * Write the index of the segments of several indexes. The indexes are
+	 * consecutive, so the offsets of each term stay in increasing order when
+	 * the offsets from each index are appended in turn.
+	 *
+	 * @param indexes
+	 *            oldest first
+	 * @return the index file
+	 * @throws IOException
+	 */
+	private File merge(List<SegmentIndex> indexes) throws IOException {
+		List<File> merged = new ArrayList<File>();
+		long[] bases = new long[indexes.size()];
+		for (int i = 0; i < indexes.size(); i++) {
+			bases[i] = (long) merged.size() << OFFSET_BITS;
+			merged.addAll(indexes.get(i).segments);
+		}
+		int level = indexes.get(0).level + 1;
+		File file = indexFile(merged.get(0), level);
+		IndexWriter writer = new IndexWriter(file);
+		try {
+			int[] entries = new int[indexes.size()];
+			byte[][] current = new byte[indexes.size()][];
+			for (int i = 0; i < indexes.size(); i++) {
+				current[i] = indexes.get(i).count > 0 ? indexes.get(i).getTerm(0) : null;
+			}
+			int terms = 0;
+			while (true) {
+				// the smallest term not written yet
+				byte[] term = null;
+				for (byte[] candidate : current) {
+					if (candidate != null && (term == null || compareTerms(candidate, term) < 0)) {
+						term = candidate;
+					}
+				}
+				if (term == null) {
+					break;
+				}
+				List<long[]> lists = new ArrayList<long[]>();
+				int size = 0;
+				for (int i = 0; i < indexes.size(); i++) {
+					long[] offsets = null;
+					if (current[i] != null && compareTerms(current[i], term) == 0) {
+						SegmentIndex index = indexes.get(i);
+						offsets = index.getPostings(entries[i]);
+						size += offsets.length;
+						current[i] = ++entries[i] < index.count ? index.getTerm(entries[i]) : null;
+					}
+					lists.add(offsets);
+				}
+				writer.addTerm(term, size);
+				for (int i = 0; i < lists.size(); i++) {
+					if (lists.get(i) != null) {
+						for (long offset : lists.get(i)) {
+							writer.addOffset(bases[i] + offset);
+						}
+					}
+				}
+				terms++;
+			}
+			writer.finish(level, merged);
+			Metrics.getInstance().max("index.merge.terms.max", terms);
+		} catch (IOException e) {
+			writer.abort();
+			throw e;
+		}
+		return file;
+	}
+
+	/**
+	 * Load the index files written before the last restart. Files which cannot
+	 * be read, including those of an earlier format, are deleted and their
+	 * segments are indexed again. A file whose segments are all covered by a
+	 * merged index is left over from a merge which did not finish.
+	 *
+	 * @throws IOException
+	 */
+	private void loadIndexes() throws IOException {
+		final String prefix = config.getServerId() + "-";
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(INDEX_SUFFIX));
+		if (files == null) {
+			return;
+		}
+		List<SegmentIndex> indexes = new ArrayList<SegmentIndex>();
+		for (File file : files) {
+			try {
+				indexes.add(loadIndex(file));
+			} catch (IOException | RuntimeException e) {
+				Metrics.getInstance().increment("index.rebuilt");
+				System.err.println(getName() + ": rebuilding the index " + file + ": " + e.getMessage());
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+		Collections.sort(indexes, (x, y) -> y.level - x.level);
+		Set<String> covered = new HashSet<String>();
+		for (SegmentIndex index : indexes) {
+			boolean subsumed = true;
+			for (File segment : index.segments) {
+				subsumed &= covered.contains(segment.getName());
+			}
+			if (subsumed) {
+				Files.deleteIfExists(index.file.toPath());
+				continue;
+			}
+			for (File segment : index.segments) {
+				covered.add(segment.getName());
+			}
+			segments.put(index.segments.get(0).getName(), index);
+		}
+	}
+
+	/**
+	 * Map an index file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private SegmentIndex loadIndex(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("invalid index file " + file);
+			}
+			SegmentIndex index = new SegmentIndex();
+			index.file = file;
+			index.level = buffer.getInt();
+			index.segments = new ArrayList<File>();
+			for (int count = buffer.getInt(); count > 0; count--) {
+				byte[] name = new byte[buffer.getInt()];
+				buffer.get(name);
+				index.segments.add(new File(directory, new String(name, StandardCharsets.UTF_8)));
+			}
+			index.count = buffer.getInt();
+			int termBytes = buffer.getInt();
+			index.table = buffer.position();
+			index.terms = index.table + index.count * ENTRY_SIZE;
+			index.postings = index.terms + termBytes;
+			index.buffer = buffer;
+			return index;
+		}
+	}
+
+	/**
+	 * Get the index file of a segment, or of the merged index starting with
+	 * the segment.
+	 *
+	 * @param segment
+	 * @param level
+	 * @return
+	 */
+	private static File indexFile(File segment, int level) {
+		return new File(segment.getPath() + (level > 0 ? "." + level : "") + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Compare terms by their UTF-8 bytes.
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	private static int compareTerms(byte[] x, byte[] y) {
+		for (int i = 0; i < x.length && i < y.length; i++) {
+			int order = (x[i] & 0xFF) - (y[i] & 0xFF);
+			if (order != 0) {
+				return order;
+			}
+		}
+		return x.length - y.length;
+	}
+
+	/**
+	 * Read the log record starting at an offset.
+	 *
+	 * @param channel
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	private static String readLine(FileChannel channel, long offset) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (channel.read(buffer, offset) > 0) {
+			buffer.flip();
+			for (int i = 0; i < buffer.limit(); i++) {
+				if (buffer.get(i) == '\n') {
+					line.write(buffer.array(), 0, i);
+					return new String(line.toByteArray(), StandardCharsets.UTF_8);
+				}
+			}
+			line.write(buffer.array(), 0, buffer.limit());
+			offset += buffer.limit();
+			buffer.clear();
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Find the offsets contained in all lists.
+	 *
+	 * @param lists
+	 *            offsets in increasing order, null for none
+	 * @return
+	 */
+	private static long[] intersect(List<long[]> lists) {
+		long[] result = null;
+		for (long[] list : lists) {
+			if (list == null) {
+				return new long[0];
+			}
+			if (result == null) {
+				result = list;
+				continue;
+			}
+			long[] common = new long[Math.min(result.length, list.length)];
+			int size = 0;
+			for (int i = 0, j = 0; i < result.length && j < list.length;) {
+				if (result[i] < list[j]) {
+					i++;
+				} else if (result[i] > list[j]) {
+					j++;
+				} else {
+					common[size++] = result[i];
+					i++;
+					j++;
+				}
+			}
+			result = Arrays.copyOf(common, size);
+		}
+		return result == null ? new long[0] : result;
+	}
+
+	private static String roomTerm(String roomId) {
+		return "r:" + roomId;
+	}
+
+	private static String identityTerm(String identity) {
+		return "i:" + identity;
+	}
+
+	/**
+	 * Split text into word terms, ignoring case.
+	 *
+	 * @param text
+	 * @return
+	 */
+	private static Set<String> tokenize(String text) {
+		Set<String> terms = new LinkedHashSet<String>();
+		for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+			if (!token.isEmpty()) {
+				terms.add("t:" + token);
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Write a value in as few bytes as it needs.
+	 *
+	 * @param out
+	 * @param value
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	private static int writeVarLong(OutputStream out, long value) throws IOException {
+		int bytes = 1;
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+			bytes++;
+		}
+		out.write((int) value);
+		return bytes;
+	}
+
+	private static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
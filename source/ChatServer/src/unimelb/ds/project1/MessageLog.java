@@ -0,0 +1,386 @@
+package unimelb.ds.project1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import unimelb.ds.project1.GlobalConstants.MessageTag;
+
+/**
+ * This thread appends the chat messages of this server to log files on disk.
+ *
+ * Chat rooms hand messages over through a lock-free queue, so broadcasting
+ * never waits for the disk. The thread takes all queued messages at once and
+ * writes them with a single write, and forces them to disk according to the
+ * sync policy. When the queue is full, messages are dropped from the log
+ * rather than slowing down the chat.
+ *
+ * The log is split into segment files named after the server and the time
+ * the segment was started, one JSON object per line. A new segment is started
+ * when the current one is too large or too old, and old segments are deleted
+ * according to the retention settings.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class MessageLog extends Thread {
+	/**
+	 * When the log is forced to disk
+	 */
+	public enum SyncPolicy {
+		/**
+		 * After every batch of messages
+		 */
+		always,
+		/**
+		 * At most once per sync interval
+		 */
+		interval,
+		/**
+		 * Left to the operating system
+		 */
+		never
+	}
+
+	/**
+	 * Message waiting to be written
+	 */
+	private static class Entry {
+		private long time;
+		private String roomId;
+		private String identity;
+		private String content;
+		private String frame;
+
+		private Entry(long time, String roomId, String identity, String content, String frame) {
+			this.time = time;
+			this.roomId = roomId;
+			this.identity = identity;
+			this.content = content;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * Extension of segment files
+	 */
+	public static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * Messages waiting to be written
+	 */
+	private ConcurrentLinkedQueue<Entry> queue;
+
+	/**
+	 * Number of messages in the queue
+	 */
+	private AtomicInteger queued;
+
+	/**
+	 * Configurations of this server
+	 */
+	private Config config;
+
+	/**
+	 * Directory of the segment files
+	 */
+	private File directory;
+
+	/**
+	 * Current segment
+	 */
+	private FileChannel segment;
+
+	/**
+	 * Time the current segment was started
+	 */
+	private long segmentStartTime;
+
+	/**
+	 * Time the log was last forced to disk
+	 */
+	private long lastSyncTime;
+
+	/**
+	 * Whether messages were written since the last sync
+	 */
+	private boolean unsynced;
+
+	/**
+	 * False once the log is closing
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config
+	 */
+	public MessageLog(Config config) {
+		this.config = config;
+		this.directory = new File(config.getLogDir());
+		this.queue = new ConcurrentLinkedQueue<Entry>();
+		this.queued = new AtomicInteger();
+		setDaemon(true);
+	}
+
+	/**
+	 * Queue a chat message to be written. This never blocks.
+	 *
+	 * @param roomId
+	 * @param message
+	 *            chat message as broadcast to the room
+	 */
+	public void append(String roomId, JSONObject message) {
+		if (reserve()) {
+			queue.offer(new Entry(System.currentTimeMillis(), roomId, (String) message.get(MessageTag.identity.name()),
+					(String) message.get(MessageTag.content.name()), null));
+		}
+	}
+
+	/**
+	 * Queue a chat message which is already encoded to be written. The message
+	 * is decoded by the log thread. This never blocks.
+	 *
+	 * @param roomId
+	 * @param frame
+	 *            chat message as broadcast to the room
+	 */
+	public void appendFrame(String roomId, String frame) {
+		if (reserve()) {
+			queue.offer(new Entry(System.currentTimeMillis(), roomId, null, null, frame));
+		}
+	}
+
+	private boolean reserve() {
+		if (!running || queued.incrementAndGet() > config.getLogQueue()) {
+			queued.decrementAndGet();
+			Metrics.getInstance().increment("log.dropped");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the queued messages and close the log.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(this);
+		try {
+			join(config.getLogSyncInterval() + 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			System.err.println(getName() + ": cannot create the log directory " + directory);
+			running = false;
+			return;
+		}
+		long batchNanos = TimeUnit.MILLISECONDS.toNanos(config.getLogBatchTime());
+		StringBuilder batch = new StringBuilder();
+		while (running || !queue.isEmpty()) {
+			int count = 0;
+			Entry entry;
+			while ((entry = queue.poll()) != null) {
+				batch.append(encode(entry)).append('\n');
+				count++;
+			}
+			queued.addAndGet(-count);
+			try {
+				if (count > 0) {
+					write(batch, count);
+				}
+				syncIfDue();
+			} catch (IOException e) {
+				Metrics.getInstance().add("log.failed", count);
+				System.err.println(getName() + ": Error while writing the message log: " + e.getMessage());
+				closeSegment();
+			}
+			batch.setLength(0);
+			if (count == 0 && running) {
+				LockSupport.parkNanos(this, batchNanos);
+			}
+		}
+		try {
+			if (segment != null && unsynced) {
+				segment.force(false);
+			}
+		} catch (IOException e) {
+			System.err.println(getName() + ": Error while closing the message log: " + e.getMessage());
+		}
+		closeSegment();
+	}
+
+	/**
+	 * Write a batch of messages to the current segment, starting a new segment
+	 * first if needed.
+	 *
+	 * @param batch
+	 * @param count
+	 * @throws IOException
+	 */
+	private void write(StringBuilder batch, int count) throws IOException {
+		long now = System.currentTimeMillis();
+		if (segment != null && (segment.size() >= config.getLogSegmentBytes()
+				|| now - segmentStartTime >= config.getLogSegmentTime())) {
+			if (unsynced) {
+				segment.force(false);
+				unsynced = false;
+			}
+			closeSegment();
+		}
+		if (segment == null) {
+			openSegment(now);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+		int bytes = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			segment.write(buffer);
+		}
+		unsynced = true;
+		if (config.getLogSync() == SyncPolicy.always) {
+			sync();
+		}
+		Metrics metrics = Metrics.getInstance();
+		metrics.add("log.written", count);
+		metrics.add("log.bytes", bytes);
+		metrics.increment("log.batches");
+		metrics.max("log.batch.max", count);
+	}
+
+	private void syncIfDue() throws IOException {
+		if (unsynced && config.getLogSync() == SyncPolicy.interval
+				&& System.currentTimeMillis() - lastSyncTime >= config.getLogSyncInterval()) {
+			sync();
+		}
+	}
+
+	private void sync() throws IOException {
+		long startTime = System.currentTimeMillis();
+		segment.force(false);
+		unsynced = false;
+		lastSyncTime = System.currentTimeMillis();
+		Metrics.getInstance().increment("log.syncs");
+		Metrics.getInstance().max("log.sync.ms.max", lastSyncTime - startTime);
+	}
+
+	private void openSegment(long now) throws IOException {
+		File file = new File(directory, segmentName(now));
+		while (file.exists()) {
+			file = new File(directory, segmentName(++now));
+		}
+		segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		segmentStartTime = now;
+		Metrics.getInstance().increment("log.segments");
+		System.out.println(getName() + ": started the log segment " + file);
+		deleteOldSegments(now);
+	}
+
+	private void closeSegment() {
+		if (segment == null) {
+			return;
+		}
+		try {
+			segment.close();
+		} catch (IOException e) {
+			System.err.println(getName() + ": Error while closing a log segment: " + e.getMessage());
+		}
+		segment = null;
+		unsynced = false;
+	}
+
+	/**
+	 * Delete the segments of this server which are older than the retention
+	 * time, and the oldest segments while all of them together are larger
+	 * than the retention size. The current segment is never deleted.
+	 *
+	 * @param now
+	 */
+	private void deleteOldSegments(long now) {
+		File[] segments = listSegments(directory, config.getServerId());
+		long totalBytes = 0;
+		for (File file : segments) {
+			totalBytes += file.length();
+		}
+		for (int i = 0; i < segments.length - 1; i++) {
+			File file = segments[i];
+			boolean expired = config.getLogRetention() > 0
+					&& now - getSegmentStartTime(segments[i + 1]) > config.getLogRetention();
+			boolean oversized = config.getLogRetainBytes() > 0 && totalBytes > config.getLogRetainBytes();
+			if (!expired && !oversized) {
+				break;
+			}
+			long length = file.length();
+			if (file.delete()) {
+				totalBytes -= length;
+				Metrics.getInstance().increment("log.deleted");
+				System.out.println(getName() + ": deleted the log segment " + file);
+			}
+		}
+	}
+
+	private String segmentName(long startTime) {
+		return config.getServerId() + "-" + String.format("%015d", startTime) + SEGMENT_SUFFIX;
+	}
+
+	/**
+	 * List the segments of a server in a directory, oldest first.
+	 *
+	 * @param directory
+	 * @param serverId
+	 * @return
+	 */
+	public static File[] listSegments(File directory, String serverId) {
+		final String prefix = serverId + "-";
+		File[] segments = directory.listFiles((dir, name) -> name.startsWith(prefix)
+				&& name.endsWith(SEGMENT_SUFFIX) && name.length() == prefix.length() + 15 + SEGMENT_SUFFIX.length());
+		if (segments == null) {
+			return new File[0];
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Get the time a segment was started from its name.
+	 *
+	 * @param segment
+	 * @return
+	 */
+	public static long getSegmentStartTime(File segment) {
+		String name = segment.getName();
+		int end = name.length() - SEGMENT_SUFFIX.length();
+		return Long.parseLong(name.substring(end - 15, end));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static String encode(Entry entry) {
+		if (entry.frame != null) {
+			JSONObject message = (JSONObject) JSONValue.parse(entry.frame);
+			entry.identity = (String) message.get(MessageTag.identity.name());
+			entry.content = (String) message.get(MessageTag.content.name());
+		}
+		JSONObject record = new JSONObject();
+		record.put(MessageTag.time.name(), entry.time);
+		record.put(MessageTag.roomid.name(), entry.roomId);
+		record.put(MessageTag.identity.name(), entry.identity);
+		record.put(MessageTag.content.name(), entry.content);
+		return record.toJSONString();
+	}
+}
@@ -0,0 +1,116 @@
+package unimelb.ds.project1;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This singleton class holds counters and gauges of the server, which can be
+ * printed or requested by other servers.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class Metrics {
+	/**
+	 * Singleton instance of the class
+	 */
+	private static Metrics instance = new Metrics();
+
+	/**
+	 * Metric values with their names
+	 */
+	private Map<String, AtomicLong> values;
+
+	/**
+	 * Private constructor of the singleton class
+	 */
+	private Metrics() {
+		values = new ConcurrentHashMap<String, AtomicLong>();
+	}
+
+	/**
+	 * Get singleton instance of the class.
+	 *
+	 * @return
+	 */
+	public static Metrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Increment a counter by one.
+	 *
+	 * @param name
+	 */
+	public void increment(String name) {
+		add(name, 1);
+	}
+
+	/**
+	 * Add a value to a counter.
+	 *
+	 * @param name
+	 * @param delta
+	 */
+	public void add(String name, long delta) {
+		getValue(name).addAndGet(delta);
+	}
+
+	/**
+	 * Set the current value of a gauge.
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public void set(String name, long value) {
+		getValue(name).set(value);
+	}
+
+	/**
+	 * Keep the largest value seen by a gauge.
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public void max(String name, long value) {
+		AtomicLong current = getValue(name);
+		long old;
+		while ((old = current.get()) < value && !current.compareAndSet(old, value)) {
+		}
+	}
+
+	/**
+	 * Get the current value of a metric.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public long get(String name) {
+		AtomicLong value = values.get(name);
+		return value == null ? 0 : value.get();
+	}
+
+	/**
+	 * Get a sorted copy of all metrics.
+	 *
+	 * @return
+	 */
+	public Map<String, Long> getSnapshot() {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+
+	private AtomicLong getValue(String name) {
+		AtomicLong value = values.get(name);
+		if (value == null) {
+			values.putIfAbsent(name, new AtomicLong());
+			value = values.get(name);
+		}
+		return value;
+	}
+}
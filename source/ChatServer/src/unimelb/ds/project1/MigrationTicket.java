@@ -0,0 +1,104 @@
+package unimelb.ds.project1;
+
+/**
+ * A ticket given to this server by the server a client is moving away from.
+ * It holds the identity of the client until the client arrives with a
+ * movejoin message, so that the movejoin completes without locking the
+ * identity on other servers again. Only a movejoin with the nonce of the
+ * ticket, which the client received in its route message, can use the
+ * ticket. A ticket which is not used in time expires.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class MigrationTicket {
+	/**
+	 * Identity of the moving client
+	 */
+	private String identity;
+
+	/**
+	 * Random nonce the client presents with its movejoin
+	 */
+	private String nonce;
+
+	/**
+	 * Identity of the server the client is moving away from
+	 */
+	private String serverId;
+
+	/**
+	 * Room the client is leaving
+	 */
+	private String former;
+
+	/**
+	 * Room the client is joining
+	 */
+	private String roomId;
+
+	/**
+	 * Time the ticket was issued
+	 */
+	private long issuedTime;
+
+	/**
+	 * Timer which expires the ticket
+	 */
+	private HashedTimerWheel.Timeout expiryTimer;
+
+	/**
+	 * Constructor
+	 *
+	 * @param identity
+	 * @param nonce
+	 * @param serverId
+	 * @param former
+	 * @param roomId
+	 */
+	public MigrationTicket(String identity, String nonce, String serverId, String former, String roomId) {
+		this.identity = identity;
+		this.nonce = nonce;
+		this.serverId = serverId;
+		this.former = former;
+		this.roomId = roomId;
+		this.issuedTime = System.currentTimeMillis();
+	}
+
+	public String getIdentity() {
+		return identity;
+	}
+
+	public String getNonce() {
+		return nonce;
+	}
+
+	public String getServerId() {
+		return serverId;
+	}
+
+	public String getFormer() {
+		return former;
+	}
+
+	public String getRoomId() {
+		return roomId;
+	}
+
+	public long getIssuedTime() {
+		return issuedTime;
+	}
+
+	public HashedTimerWheel.Timeout getExpiryTimer() {
+		return expiryTimer;
+	}
+
+	public void setExpiryTimer(HashedTimerWheel.Timeout expiryTimer) {
+		this.expiryTimer = expiryTimer;
+	}
+
+	@Override
+	public String toString() {
+		return identity + " from " + serverId + " to " + roomId;
+	}
+}
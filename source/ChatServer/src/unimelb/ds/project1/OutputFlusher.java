@@ -0,0 +1,148 @@
+package unimelb.ds.project1;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This thread flushes the output of client connections a short delay after
+ * the first message is written to them, instead of after every message.
+ *
+ * During a burst of broadcasts, the messages written to a connection within
+ * the delay are sent to the socket with a single write. Every connection waits
+ * for the same delay, so connections are flushed in the order their first
+ * message was written.
+ *
+ * Writing to a socket blocks while the client does not read, so this thread
+ * only times the flushes and hands them to a pool. A connection which is still
+ * not flushed after the flush timeout is closed, which ends the write.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class OutputFlusher extends Thread {
+	/**
+	 * Connection waiting to be flushed
+	 */
+	private static class Pending {
+		private ClientWorker worker;
+		private long deadline;
+
+		private Pending(ClientWorker worker, long deadline) {
+			this.worker = worker;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Connections waiting to be flushed, in the order of their deadlines
+	 */
+	private ConcurrentLinkedQueue<Pending> queue;
+
+	/**
+	 * Time in nanoseconds a connection waits before it is flushed
+	 */
+	private long delay;
+
+	/**
+	 * Time in nanoseconds after which a connection is flushed by the thread
+	 * writing to it, if this thread did not flush it yet
+	 */
+	private long maxDelay;
+
+	/**
+	 * Whether this thread waits for connections to flush
+	 */
+	private volatile boolean idle = false;
+
+	/**
+	 * Threads which write the gathered messages to the sockets
+	 */
+	private ExecutorService writers;
+
+	/**
+	 * Time in milliseconds after which a connection which is not flushed yet
+	 * is closed
+	 */
+	private long flushTimeout;
+
+	/**
+	 * Constructor
+	 *
+	 * @param config
+	 */
+	public OutputFlusher(Config config) {
+		this.queue = new ConcurrentLinkedQueue<Pending>();
+		this.delay = TimeUnit.MICROSECONDS.toNanos(config.getFlushDelay());
+		this.maxDelay = TimeUnit.MICROSECONDS.toNanos(Math.max(config.getFlushMaxDelay(), config.getFlushDelay()));
+		this.flushTimeout = config.getFlushTimeout();
+		this.writers = Executors.newCachedThreadPool(new DaemonThreadFactory("OutputWriter"));
+		setDaemon(true);
+	}
+
+	/**
+	 * Flush the output of a connection after the delay.
+	 *
+	 * @param worker
+	 */
+	public void schedule(ClientWorker worker) {
+		queue.offer(new Pending(worker, System.nanoTime() + delay));
+		if (idle) {
+			LockSupport.unpark(this);
+		}
+	}
+
+	/**
+	 * Get the time in nanoseconds after which a connection should not wait any
+	 * longer to be flushed.
+	 *
+	 * @return
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Pending pending = queue.peek();
+			if (pending == null) {
+				idle = true;
+				// a connection may have been queued before the flag was set
+				if (queue.isEmpty()) {
+					LockSupport.park(this);
+				}
+				idle = false;
+				continue;
+			}
+			long wait = pending.deadline - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			queue.poll();
+			writers.execute(() -> flush(pending.worker));
+		}
+	}
+
+	/**
+	 * Flush the output of a connection, closing the connection if the client
+	 * does not take the messages within the flush timeout.
+	 *
+	 * @param worker
+	 */
+	private void flush(ClientWorker worker) {
+		HashedTimerWheel.Timeout timeout = ServerData.getInstance().getTimerWheel()
+				.schedule(() -> worker.abortOutput(), flushTimeout);
+		try {
+			worker.flushOutput();
+		} catch (RuntimeException e) {
+			System.err.println(Thread.currentThread().getName() + ": Error while flushing a client connection: "
+					+ e.getMessage());
+		} finally {
+			timeout.cancel();
+		}
+	}
+}
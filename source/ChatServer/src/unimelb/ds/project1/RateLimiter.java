@@ -0,0 +1,141 @@
+package unimelb.ds.project1;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import unimelb.ds.project1.GlobalConstants.MessageType;
+
+/**
+ * Limits the rate of messages a client may send, over all messages and per
+ * message type, and keeps track of how often the client was throttled so that
+ * abusive clients can be disconnected. An instance is used by the thread
+ * reading from one client.
+ * 
+ * @author Sewwandi Perera
+ *
+ */
+public class RateLimiter {
+	/**
+	 * Limits per message type parsed from the config, as rate and burst
+	 */
+	private static volatile Map<String, double[]> typeLimits;
+
+	/**
+	 * Config value the type limits were parsed from
+	 */
+	private static volatile String typeLimitsSpec;
+
+	/**
+	 * Bucket for all messages of the client, null if not limited
+	 */
+	private TokenBucket clientBucket;
+
+	/**
+	 * Buckets per message type
+	 */
+	private Map<String, TokenBucket> typeBuckets;
+
+	/**
+	 * Configurations of this server
+	 */
+	private Config config;
+
+	/**
+	 * Start of the current window of throttled messages
+	 */
+	private long windowStart;
+
+	/**
+	 * Throttled messages in the current window
+	 */
+	private int throttled;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param config
+	 */
+	public RateLimiter(Config config) {
+		this.config = config;
+		if (config.getRateLimit() > 0) {
+			clientBucket = new TokenBucket(config.getRateLimit(), config.getRateBurst());
+		}
+		typeBuckets = new HashMap<String, TokenBucket>();
+		for (Map.Entry<String, double[]> limit : getTypeLimits(config.getTypeLimits()).entrySet()) {
+			typeBuckets.put(limit.getKey(), new TokenBucket(limit.getValue()[0], limit.getValue()[1]));
+		}
+	}
+
+	/**
+	 * Check whether a message of the given type may be processed now.
+	 * 
+	 * @param type
+	 *            message type, or null if unknown
+	 * @return false if the message should be dropped
+	 */
+	public boolean tryAcquire(String type) {
+		if (MessageType.quit.name().equals(type)) {
+			return true;
+		}
+		TokenBucket typeBucket = type == null ? null : typeBuckets.get(type);
+		if (typeBucket != null && !typeBucket.tryAcquire()) {
+			Metrics.getInstance().increment("throttle.type." + type);
+			return throttled();
+		}
+		if (clientBucket != null && !clientBucket.tryAcquire()) {
+			Metrics.getInstance().increment("throttle.client");
+			return throttled();
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether the client was throttled too often in the current window.
+	 * 
+	 * @return
+	 */
+	public boolean isOffender() {
+		return config.getMaxThrottles() > 0 && throttled > config.getMaxThrottles();
+	}
+
+	private boolean throttled() {
+		long now = System.currentTimeMillis();
+		if (now - windowStart > config.getThrottleWindow()) {
+			windowStart = now;
+			throttled = 0;
+		}
+		throttled++;
+		return false;
+	}
+
+	/**
+	 * Parse limits per message type given as type:rate:burst separated by
+	 * commas, such as "message:10:20,list:1:5".
+	 * 
+	 * @param spec
+	 * @return
+	 */
+	private static Map<String, double[]> getTypeLimits(String spec) {
+		if (spec == null || spec.isEmpty()) {
+			return new HashMap<String, double[]>();
+		}
+		if (spec.equals(typeLimitsSpec)) {
+			return typeLimits;
+		}
+		Map<String, double[]> limits = new HashMap<String, double[]>();
+		for (String limit : spec.split(",")) {
+			String[] parts = limit.trim().split(":");
+			try {
+				MessageType.valueOf(parts[0]);
+				double rate = Double.parseDouble(parts[1]);
+				double burst = parts.length > 2 ? Double.parseDouble(parts[2]) : rate;
+				limits.put(parts[0], new double[] { rate, burst });
+			} catch (RuntimeException e) {
+				System.err.println("[ Ignoring the invalid message type limit \"" + limit + "\" ]");
+			}
+		}
+		typeLimits = limits;
+		typeLimitsSpec = spec;
+		return limits;
+	}
+}
@@ -0,0 +1,159 @@
+package unimelb.ds.project1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact snapshot of the chat rooms of this server and their owners, kept
+ * in a file so that the rooms can be restored after a restart.
+ *
+ * The file holds a magic number, the time it was written, the server id, the
+ * number of rooms, the room ids with their owners, and a CRC32 of everything
+ * before it. Strings are written as their length followed by UTF-8 bytes. A
+ * new snapshot is written to a temporary file which then replaces the old
+ * one, so a crash while writing leaves the previous snapshot in place.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class RoomSnapshot {
+	/**
+	 * Magic number at the start of a snapshot file
+	 */
+	private static final int MAGIC = 0x43525331;
+
+	/**
+	 * Snapshot file
+	 */
+	private Path file;
+
+	/**
+	 * Rooms in the last snapshot written, to skip writing an unchanged one
+	 */
+	private Map<String, String> lastWritten;
+
+	/**
+	 * Constructor
+	 *
+	 * @param fileName
+	 */
+	public RoomSnapshot(String fileName) {
+		this.file = Paths.get(fileName);
+	}
+
+	/**
+	 * Write the snapshot if the rooms changed since the last one.
+	 *
+	 * @param serverId
+	 * @param rooms
+	 *            room ids with their owners
+	 * @return true if a new snapshot was written
+	 * @throws IOException
+	 */
+	public synchronized boolean write(String serverId, Map<String, String> rooms) throws IOException {
+		if (rooms.equals(lastWritten)) {
+			return false;
+		}
+		byte[] encoded = encode(serverId, rooms);
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(encoded);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		lastWritten = new LinkedHashMap<String, String>(rooms);
+		Metrics.getInstance().increment("snapshot.written");
+		Metrics.getInstance().set("snapshot.bytes", encoded.length);
+		return true;
+	}
+
+	/**
+	 * Read the rooms in the snapshot of the given server.
+	 *
+	 * @param serverId
+	 * @return room ids with their owners, empty if there is no valid snapshot
+	 */
+	public Map<String, String> read(String serverId) {
+		Map<String, String> rooms = new LinkedHashMap<String, String>();
+		if (!Files.exists(file)) {
+			return rooms;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			CRC32 crc = new CRC32();
+			ByteBuffer content = buffer.duplicate();
+			content.limit(buffer.limit() - 4);
+			crc.update(content);
+			if (buffer.getInt(buffer.limit() - 4) != (int) crc.getValue() || buffer.getInt() != MAGIC) {
+				System.err.println("[ Snapshot " + file + " is damaged, ignoring it ]");
+				return rooms;
+			}
+			long writtenTime = buffer.getLong();
+			if (!readString(buffer).equals(serverId)) {
+				System.err.println("[ Snapshot " + file + " belongs to another server, ignoring it ]");
+				return rooms;
+			}
+			int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				String roomId = readString(buffer);
+				rooms.put(roomId, readString(buffer));
+			}
+			System.out.println("[ Read " + count + " rooms from the snapshot written at " + writtenTime + " ]");
+		} catch (IOException | RuntimeException e) {
+			System.err.println("[ Error while reading the snapshot " + file + ": " + e.getMessage() + " ]");
+			rooms.clear();
+		}
+		return rooms;
+	}
+
+	private byte[] encode(String serverId, Map<String, String> rooms) {
+		int size = 4 + 8 + stringSize(serverId) + 4 + 4;
+		for (Map.Entry<String, String> room : rooms.entrySet()) {
+			size += stringSize(room.getKey()) + stringSize(room.getValue());
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC);
+		buffer.putLong(System.currentTimeMillis());
+		writeString(buffer, serverId);
+		buffer.putInt(rooms.size());
+		for (Map.Entry<String, String> room : rooms.entrySet()) {
+			writeString(buffer, room.getKey());
+			writeString(buffer, room.getValue());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int) crc.getValue());
+		return buffer.array();
+	}
+
+	private static int stringSize(String value) {
+		return 4 + value.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	private static void writeString(ByteBuffer buffer, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
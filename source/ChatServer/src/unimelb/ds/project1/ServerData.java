@@ -1,11 +1,16 @@
 package unimelb.ds.project1;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.json.simple.JSONObject;
 
 /**
  * This singleton class holds all server data.
@@ -20,26 +25,42 @@ public class ServerData {
 	private static ServerData instance = new ServerData();
 
 	/**
-	 * Thread safe queue of all my clients
+	 * Handles of the identities of all my clients
+	 */
+	private IntHashSet myClients;
+
+	/**
+	 * Handles of identities
 	 */
-	private Queue<String> myClients;
+	private SymbolTable symbols;
+
+	/**
+	 * Workers of the members of chat rooms by the handles of their identities
+	 */
+	private SessionTable sessionTable;
 
 	/**
 	 * Locked client identities with the server identity which sent the lock
 	 * request
 	 */
-	private Map<String, String> lockedClients;
+	private Map<String, LockLease> lockedClients;
 
 	/**
 	 * Chat rooms with their IDs
 	 */
 	private Map<String, ChatRoom> myChatRooms;
 
+	/**
+	 * Chat rooms of this server by the handles of the identities of their
+	 * owners
+	 */
+	private IntObjectHashMap<ChatRoom> ownedChatRooms;
+
 	/**
 	 * Locked room identifiers with the server identity which sent the lock
 	 * request
 	 */
-	private Map<String, String> lockedRoomIds;
+	private Map<String, LockLease> lockedRoomIds;
 
 	/**
 	 * Chat rooms owned by other servers with their belonging server id
@@ -51,21 +72,80 @@ public class ServerData {
 	 */
 	private Map<String, Server> otherServers;
 
+	/**
+	 * Identities reserved on this server by the server holding the client, when
+	 * this server is an owner of the identity in the hash ring
+	 */
+	private Map<String, String> registeredIdentities;
+
+	/**
+	 * Identities of clients moving to this server from other servers, held
+	 * until the clients arrive
+	 */
+	private Map<String, MigrationTicket> migrationTickets;
+
+	/**
+	 * Resumable sessions of clients of this server by identity
+	 */
+	private Map<String, ClientSession> sessions;
+
 	/**
 	 * Information of this server
 	 */
 	private Server myData;
 
+	/**
+	 * Configurations of this server
+	 */
+	private Config config;
+
+	/**
+	 * Timer wheel used to expire locks and other timeouts
+	 */
+	private HashedTimerWheel timerWheel;
+
+	/**
+	 * Log of the chat messages of this server, null if there is no log
+	 */
+	private MessageLog messageLog;
+
+	/**
+	 * Index of the message log, null if the log is not indexed
+	 */
+	private MessageIndexer messageIndexer;
+
+	/**
+	 * Paces the identity locks of new clients, null to send them at once
+	 */
+	private IdentityAdmission identityAdmission;
+
+	/**
+	 * Flushes the output of client connections, null to flush every message
+	 */
+	private OutputFlusher outputFlusher;
+
+	/**
+	 * Consistent hash ring of all servers. This is null unless the hash ring
+	 * mode is enabled.
+	 */
+	private volatile ConsistentHashRing hashRing;
+
 	/**
 	 * Private constructor of the singleton class
 	 */
 	private ServerData() {
-		myClients = new ConcurrentLinkedQueue<String>();
+		symbols = new SymbolTable();
+		sessionTable = new SessionTable();
+		myClients = new IntHashSet();
 		myChatRooms = new ConcurrentHashMap<String, ChatRoom>();
+		ownedChatRooms = new IntObjectHashMap<ChatRoom>();
 		othersChatRooms = new ConcurrentHashMap<String, String>();
 		otherServers = new ConcurrentHashMap<String, Server>();
-		lockedClients = new ConcurrentHashMap<String, String>();
-		lockedRoomIds = new ConcurrentHashMap<String, String>();
+		lockedClients = new ConcurrentHashMap<String, LockLease>();
+		lockedRoomIds = new ConcurrentHashMap<String, LockLease>();
+		registeredIdentities = new ConcurrentHashMap<String, String>();
+		migrationTickets = new ConcurrentHashMap<String, MigrationTicket>();
+		sessions = new HashMap<String, ClientSession>();
 	}
 
 	/**
@@ -81,10 +161,243 @@ public class ServerData {
 	 * Add another coordinating server
 	 * 
 	 * @param server
+	 * @return true if the server was not known before
 	 */
-	public void addOtherServer(Server server) {
-		otherServers.put(server.getId(), server);
+	public boolean addOtherServer(Server server) {
+		Server previous = otherServers.put(server.getId(), server);
 		othersChatRooms.put(GlobalConstants.MAIN_HALL_PREFIX + server.getId(), server.getId());
+		return previous == null;
+	}
+
+	/**
+	 * Remove a server which left the system, with its chat rooms and the
+	 * identities registered for it.
+	 * 
+	 * @param serverId
+	 * @return the removed server, or null if it was not known
+	 */
+	public synchronized Server removeOtherServer(String serverId) {
+		Server server = otherServers.remove(serverId);
+		if (server != null) {
+			othersChatRooms.values().removeIf(owner -> owner.equals(serverId));
+			registeredIdentities.values().removeIf(owner -> owner.equals(serverId));
+		}
+		return server;
+	}
+
+	/**
+	 * Get all servers in the system including this server
+	 * 
+	 * @return
+	 */
+	public List<Server> getAllServers() {
+		List<Server> servers = getOtherServers();
+		servers.add(myData);
+		return servers;
+	}
+
+	/**
+	 * Rebuild the hash ring after servers joined or left, if the hash ring
+	 * mode is enabled.
+	 */
+	public void rebuildHashRing() {
+		if (config.isHashRing()) {
+			hashRing = new ConsistentHashRing(getAllServers());
+		}
+	}
+
+	/**
+	 * Record the chat rooms and clients of another server, sent when the
+	 * servers learn about each other. Identities are registered when this
+	 * server keeps the registrations of the identity.
+	 * 
+	 * @param serverId
+	 * @param rooms
+	 * @param identities
+	 */
+	public synchronized void recordDirectory(String serverId, List<String> rooms, List<String> identities) {
+		for (String roomId : rooms) {
+			if (!myChatRooms.containsKey(roomId)) {
+				othersChatRooms.put(roomId, serverId);
+			}
+		}
+		ConsistentHashRing ring = hashRing;
+		if (ring == null && !config.isOptimistic()) {
+			return;
+		}
+		for (String clientId : identities) {
+			if (ring == null || isOwner(ring, clientId)) {
+				registeredIdentities.put(clientId, serverId);
+			}
+		}
+	}
+
+	/**
+	 * Check whether this server is one of the owners of the key in the hash
+	 * ring.
+	 * 
+	 * @param ring
+	 * @param key
+	 * @return
+	 */
+	private boolean isOwner(ConsistentHashRing ring, String key) {
+		for (Server owner : ring.getOwners(key, config.getRingReplicas())) {
+			if (owner.getId().equals(myData.getId())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forget the state of another server which restarted: its rooms other than
+	 * the main hall, the identities registered for it and the locks it held.
+	 * 
+	 * @param serverId
+	 */
+	public synchronized void forgetServerState(String serverId) {
+		String mainHall = GlobalConstants.MAIN_HALL_PREFIX + serverId;
+		othersChatRooms.entrySet()
+				.removeIf(room -> room.getValue().equals(serverId) && !room.getKey().equals(mainHall));
+		registeredIdentities.values().removeIf(owner -> owner.equals(serverId));
+		for (String clientId : new ArrayList<String>(lockedClients.keySet())) {
+			releaseClientId(clientId, serverId);
+		}
+		for (String roomId : new ArrayList<String>(lockedRoomIds.keySet())) {
+			LockLease lease = lockedRoomIds.get(roomId);
+			if (lease != null && lease.getServerId().equals(serverId)) {
+				releaseLease(lockedRoomIds, roomId);
+			}
+		}
+	}
+
+	/**
+	 * Take over locks which another server holds for other servers, so that
+	 * this server does not grant them again while it was starting. The locks
+	 * expire unless their holders release them.
+	 * 
+	 * @param lockedIdentities
+	 *            identities with the servers holding them
+	 * @param lockedRooms
+	 *            room ids with the servers holding them
+	 */
+	public synchronized void importLocks(Map<String, String> lockedIdentities, Map<String, String> lockedRooms) {
+		for (Map.Entry<String, String> lock : lockedIdentities.entrySet()) {
+			if (!lock.getValue().equals(myData.getId()) && !lockedClients.containsKey(lock.getKey())) {
+				grantLease(lockedClients, lock.getKey(), lock.getValue());
+			}
+		}
+		for (Map.Entry<String, String> lock : lockedRooms.entrySet()) {
+			if (!lock.getValue().equals(myData.getId()) && !lockedRoomIds.containsKey(lock.getKey())) {
+				grantLease(lockedRoomIds, lock.getKey(), lock.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Get the identities locked on this server with the servers holding them.
+	 * 
+	 * @return
+	 */
+	public Map<String, String> getLockedIdentities() {
+		return getLockHolders(lockedClients);
+	}
+
+	/**
+	 * Get the room ids locked on this server with the servers holding them.
+	 * 
+	 * @return
+	 */
+	public Map<String, String> getLockedRoomIds() {
+		return getLockHolders(lockedRoomIds);
+	}
+
+	private Map<String, String> getLockHolders(Map<String, LockLease> locks) {
+		Map<String, String> holders = new HashMap<String, String>();
+		for (Map.Entry<String, LockLease> lock : locks.entrySet()) {
+			holders.put(lock.getKey(), lock.getValue().getServerId());
+		}
+		return holders;
+	}
+
+	/**
+	 * Get the chat rooms of this server other than the main hall, with their
+	 * owners.
+	 * 
+	 * @return
+	 */
+	public synchronized Map<String, String> getMyChatRoomOwners() {
+		Map<String, String> owners = new TreeMap<String, String>();
+		for (ChatRoom room : myChatRooms.values()) {
+			if (!room.getId().equals(GlobalConstants.MAIN_HALL)) {
+				owners.put(room.getId(), room.getOwnerId());
+			}
+		}
+		return owners;
+	}
+
+	/**
+	 * Restore a chat room from the snapshot of this server. The room has no
+	 * members until its owner and other clients join it.
+	 * 
+	 * @param roomId
+	 * @param ownerId
+	 * @return true if the room was restored
+	 */
+	public synchronized boolean restoreChatRoom(String roomId, String ownerId) {
+		if (myChatRooms.containsKey(roomId) || isClientOwner(ownerId)) {
+			return false;
+		}
+		putChatRoom(new ChatRoom(roomId, ownerId));
+		return true;
+	}
+
+	/**
+	 * Check whether another server has a chat room with the given id.
+	 * 
+	 * @param roomId
+	 * @return
+	 */
+	public boolean isOthersChatRoom(String roomId) {
+		return othersChatRooms.containsKey(roomId);
+	}
+
+	/**
+	 * Delete a restored chat room if its owner did not come back.
+	 * 
+	 * @param roomId
+	 * @param ownerId
+	 * @return true if the room was deleted
+	 */
+	public synchronized boolean deleteUnclaimedChatRoom(String roomId, String ownerId) {
+		ChatRoom room = myChatRooms.get(roomId);
+		if (room == null || !room.getOwnerId().equals(ownerId) || isMyClient(ownerId)) {
+			return false;
+		}
+		deleteChatRoom(roomId, false);
+		return true;
+	}
+
+	/**
+	 * Get the ids of the chat rooms of this server.
+	 * 
+	 * @return
+	 */
+	public List<String> getMyChatRoomIds() {
+		return new ArrayList<String>(myChatRooms.keySet());
+	}
+
+	/**
+	 * Get the identities of the clients of this server.
+	 * 
+	 * @return
+	 */
+	public synchronized List<String> getMyClients() {
+		List<String> clients = new ArrayList<String>();
+		for (int handle : myClients.toArray()) {
+			clients.add(symbols.getName(handle));
+		}
+		return clients;
 	}
 
 	/**
@@ -104,11 +417,15 @@ public class ServerData {
 	 * @param successful
 	 */
 	public synchronized void releaseRoomId(String roomId, String requestedServer, boolean successful) {
-		if (lockedRoomIds.containsKey(roomId) && lockedRoomIds.get(roomId).equals(requestedServer)) {
-			if (successful) {
-				othersChatRooms.put(roomId, requestedServer);
-			}
-			lockedRoomIds.remove(roomId);
+		boolean held = lockedRoomIds.containsKey(roomId)
+				&& lockedRoomIds.get(roomId).getServerId().equals(requestedServer);
+		// in the hash ring mode only the owners lock the room id, but all
+		// servers record the new room
+		if (successful && (held || getHashRing() != null)) {
+			othersChatRooms.put(roomId, requestedServer);
+		}
+		if (held) {
+			releaseLease(lockedRoomIds, roomId);
 		}
 	}
 
@@ -143,7 +460,7 @@ public class ServerData {
 	 * @param ownerThread
 	 */
 	public synchronized void addMyNewChatRoom(String roomId, String ownerId, ClientWorker ownerThread) {
-		if (lockedRoomIds.containsKey(roomId) && lockedRoomIds.get(roomId).equals(myData.getId())) {
+		if (lockedRoomIds.containsKey(roomId) && lockedRoomIds.get(roomId).getServerId().equals(myData.getId())) {
 			// remove owner from other chat rooms
 			for (ChatRoom room : myChatRooms.values()) {
 				room.ifContainsRemoveMember(ownerId);
@@ -152,10 +469,10 @@ public class ServerData {
 			// add new chat room and add the member to the chat room
 			ChatRoom chatRoom = new ChatRoom(roomId, ownerId);
 			chatRoom.addMember(ownerId, ownerThread);
-			myChatRooms.put(roomId, chatRoom);
+			putChatRoom(chatRoom);
 
 			// remove locked room id
-			lockedRoomIds.remove(roomId);
+			releaseLease(lockedRoomIds, roomId);
 		}
 	}
 
@@ -168,10 +485,14 @@ public class ServerData {
 	 */
 	public synchronized boolean lockChatRoom(String chatroomid, String serverId) {
 		// || othersChatRooms.containsKey(chatroomid)
-		if (myChatRooms.keySet().contains(chatroomid) || lockedRoomIds.keySet().contains(chatroomid)) {
+		if (renewLease(lockedRoomIds, chatroomid, serverId)) {
+			return true;
+		}
+		if (myChatRooms.keySet().contains(chatroomid) || lockedRoomIds.keySet().contains(chatroomid)
+				|| (hashRing != null && othersChatRooms.containsKey(chatroomid))) {
 			return false;
 		}
-		lockedRoomIds.put(chatroomid, serverId);
+		grantLease(lockedRoomIds, chatroomid, serverId);
 		return true;
 	}
 
@@ -192,7 +513,35 @@ public class ServerData {
 	 * @param room
 	 */
 	public synchronized void addChatRoom(ChatRoom room) {
+		putChatRoom(room);
+	}
+
+	/**
+	 * Add a chat room of this server, and index it by its owner.
+	 * 
+	 * @param room
+	 */
+	private void putChatRoom(ChatRoom room) {
 		myChatRooms.put(room.getId(), room);
+		if (!room.getOwnerId().isEmpty()) {
+			ownedChatRooms.put(symbols.acquire(room.getOwnerId()), room);
+		}
+	}
+
+	/**
+	 * Remove a chat room of this server, and its owner from the index.
+	 * 
+	 * @param roomId
+	 */
+	private void removeChatRoom(String roomId) {
+		ChatRoom room = myChatRooms.remove(roomId);
+		if (room == null || room.getOwnerId().isEmpty()) {
+			return;
+		}
+		int handle = symbols.lookup(room.getOwnerId());
+		if (ownedChatRooms.remove(handle, room)) {
+			releaseHandle(handle);
+		}
 	}
 
 	/**
@@ -203,9 +552,9 @@ public class ServerData {
 	 */
 	public synchronized void releaseClientId(String clientId, String serverId) {
 		if (lockedClients.containsKey(clientId)) {
-			String storedServerId = lockedClients.get(clientId);
+			String storedServerId = lockedClients.get(clientId).getServerId();
 			if (storedServerId.equals(serverId)) {
-				lockedClients.remove(clientId);
+				releaseLease(lockedClients, clientId);
 			}
 		}
 	}
@@ -218,14 +567,385 @@ public class ServerData {
 	 * @return
 	 */
 	public synchronized boolean lockIdentity(String clientId, String serverId) {
-		if (myClients.contains(clientId) || lockedClients.containsKey(clientId)) {
+		if (renewLease(lockedClients, clientId, serverId)) {
+			return true;
+		}
+		if (isMyClient(clientId) || lockedClients.containsKey(clientId)
+				|| registeredIdentities.containsKey(clientId) || migrationTickets.containsKey(clientId)) {
 			return false;
 		} else {
-			lockedClients.put(clientId, serverId);
+			grantLease(lockedClients, clientId, serverId);
 			return true;
 		}
 	}
 	
+	/**
+	 * Lock a key for the given server until the lease expires.
+	 * 
+	 * @param locks
+	 * @param key
+	 * @param serverId
+	 */
+	private void grantLease(final Map<String, LockLease> locks, final String key, String serverId) {
+		long leaseMillis = config.getLockLease();
+		final LockLease lease = new LockLease(serverId, leaseMillis);
+		lease.setExpiryTimer(timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expireLease(locks, key, lease);
+			}
+		}, leaseMillis));
+		locks.put(key, lease);
+		Metrics.getInstance().increment("lock.lease.granted");
+		Metrics.getInstance().set("lock.lease.ms", leaseMillis);
+		updateLockGauge();
+	}
+
+	/**
+	 * Renew the lease if the lock request is a repeat from another server which
+	 * already holds the lock. Requests from this server are never renewals,
+	 * because they come from different clients.
+	 * 
+	 * @param locks
+	 * @param key
+	 * @param serverId
+	 * @return true if the lease was renewed
+	 */
+	private boolean renewLease(Map<String, LockLease> locks, String key, String serverId) {
+		LockLease lease = locks.get(key);
+		if (lease == null || serverId.equals(myData.getId()) || !lease.getServerId().equals(serverId)) {
+			return false;
+		}
+		lease.renew(config.getLockLease());
+		Metrics.getInstance().increment("lock.lease.renewed");
+		return true;
+	}
+
+	/**
+	 * Remove a lock which was released by its holder.
+	 * 
+	 * @param locks
+	 * @param key
+	 */
+	private void releaseLease(Map<String, LockLease> locks, String key) {
+		LockLease lease = locks.remove(key);
+		if (lease != null) {
+			lease.getExpiryTimer().cancel();
+			long heldMillis = System.currentTimeMillis() - lease.getGrantedTime();
+			Metrics.getInstance().increment("lock.lease.released");
+			Metrics.getInstance().add("lock.lease.heldms.total", heldMillis);
+			Metrics.getInstance().max("lock.lease.heldms.max", heldMillis);
+			updateLockGauge();
+		}
+	}
+
+	/**
+	 * Called by the timer wheel when a lease reaches its deadline. If the lease
+	 * was renewed meanwhile, the timer is scheduled again for the remaining
+	 * time.
+	 * 
+	 * @param locks
+	 * @param key
+	 * @param lease
+	 */
+	private synchronized void expireLease(final Map<String, LockLease> locks, final String key,
+			final LockLease lease) {
+		if (locks.get(key) != lease) {
+			return;
+		}
+		long remaining = lease.getDeadline() - System.currentTimeMillis();
+		if (remaining > 0) {
+			lease.setExpiryTimer(timerWheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					expireLease(locks, key, lease);
+				}
+			}, remaining));
+			return;
+		}
+		locks.remove(key);
+		Metrics.getInstance().increment("lock.lease.expired");
+		updateLockGauge();
+		System.out.println("[ Lock on " + key + " held by " + lease.getServerId() + " expired ]");
+	}
+
+	private void updateLockGauge() {
+		Metrics.getInstance().set("lock.lease.active", lockedClients.size() + lockedRoomIds.size());
+	}
+
+	/**
+	 * Accept a client moving to a room of this server from another server. The
+	 * identity is held for the client until it arrives, or until the ticket
+	 * expires.
+	 * 
+	 * @param clientId
+	 * @param nonce
+	 *            nonce the client has to present with its movejoin
+	 * @param serverId
+	 *            server the client is moving away from
+	 * @param former
+	 * @param roomId
+	 * @param onExpiry
+	 *            run if the client does not arrive in time
+	 * @return true if the ticket was issued
+	 */
+	public synchronized boolean acceptMigration(final String clientId, String nonce, String serverId,
+			String former, String roomId, final Runnable onExpiry) {
+		if (nonce == null || isMyClient(clientId) || lockedClients.containsKey(clientId)
+				|| migrationTickets.containsKey(clientId) || !myChatRooms.containsKey(roomId)
+				|| (registeredIdentities.containsKey(clientId) && !registeredIdentities.get(clientId).equals(serverId))) {
+			Metrics.getInstance().increment("migration.rejected");
+			return false;
+		}
+		final MigrationTicket ticket = new MigrationTicket(clientId, nonce, serverId, former, roomId);
+		ticket.setExpiryTimer(timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expireMigrationTicket(clientId, ticket, onExpiry);
+			}
+		}, config.getMigrationTicketTime()));
+		migrationTickets.put(clientId, ticket);
+		Metrics.getInstance().increment("migration.accepted");
+		return true;
+	}
+
+	/**
+	 * Start a resumable session for a client.
+	 * 
+	 * @param identity
+	 * @param token
+	 * @param worker
+	 */
+	public synchronized void openSession(String identity, String token, ClientWorker worker) {
+		sessions.put(identity, new ClientSession(identity, token, worker));
+	}
+
+	/**
+	 * Keep the session of a client whose connection dropped for the grace
+	 * period.
+	 * 
+	 * @param identity
+	 * @param worker
+	 *            worker of the dropped connection
+	 * @param onExpiry
+	 *            run if the client does not resume the session in time
+	 * @param grace
+	 *            grace period in milliseconds
+	 * @return false if there is no session, or another connection took it over
+	 */
+	public synchronized boolean suspendSession(String identity, ClientWorker worker, Runnable onExpiry, long grace) {
+		ClientSession session = sessions.get(identity);
+		if (session == null || session.getWorker() != worker) {
+			return false;
+		}
+		session.setSuspended(true);
+		session.setExpiryTimer(timerWheel.schedule(onExpiry, grace));
+		Metrics.getInstance().increment("session.suspended");
+		return true;
+	}
+
+	/**
+	 * Resume the session of a client on a new connection. The connection
+	 * holding the session, if it is still open, is closed without removing the
+	 * client.
+	 * 
+	 * @param identity
+	 * @param token
+	 *            token presented by the client
+	 * @param newToken
+	 *            token for the resumed session
+	 * @param worker
+	 *            worker of the new connection
+	 * @return the worker of the former connection, or null if the session
+	 *         cannot be resumed
+	 */
+	public synchronized ClientWorker resumeSession(String identity, String token, String newToken,
+			ClientWorker worker) {
+		ClientSession session = sessions.get(identity);
+		if (session == null || !MessageDigest.isEqual(session.getToken().getBytes(StandardCharsets.UTF_8),
+				token.getBytes(StandardCharsets.UTF_8))) {
+			return null;
+		}
+		ClientWorker former = session.getWorker();
+		if (session.isSuspended()) {
+			session.getExpiryTimer().cancel();
+			session.setSuspended(false);
+		} else {
+			former.handOver();
+			Metrics.getInstance().increment("session.takeover");
+		}
+		session.setWorker(worker);
+		session.setToken(newToken);
+		return former;
+	}
+
+	/**
+	 * End the session of a client which did not come back in time.
+	 * 
+	 * @param identity
+	 * @param worker
+	 *            worker of the dropped connection
+	 * @return true if the client should now be removed
+	 */
+	public synchronized boolean expireSession(String identity, ClientWorker worker) {
+		ClientSession session = sessions.get(identity);
+		if (session == null || session.getWorker() != worker || !session.isSuspended()) {
+			return false;
+		}
+		sessions.remove(identity);
+		Metrics.getInstance().increment("session.expired");
+		return true;
+	}
+
+	/**
+	 * End the session of a client which quit.
+	 * 
+	 * @param identity
+	 * @param worker
+	 */
+	public synchronized void closeSession(String identity, ClientWorker worker) {
+		ClientSession session = sessions.get(identity);
+		if (session != null && session.getWorker() == worker) {
+			sessions.remove(identity);
+		}
+	}
+
+	/**
+	 * Take the ticket of a client arriving from another server. The identity
+	 * of the client no longer needs to be registered for the former server.
+	 * A movejoin without the nonce of the ticket leaves the ticket in place,
+	 * so the identity stays taken until the ticket is used or expires.
+	 * 
+	 * @param clientId
+	 * @param nonce
+	 *            nonce presented by the client
+	 * @return the ticket, or null if there is none or the nonce is wrong
+	 */
+	public synchronized MigrationTicket takeMigrationTicket(String clientId, String nonce) {
+		MigrationTicket ticket = migrationTickets.get(clientId);
+		if (ticket == null) {
+			return null;
+		}
+		if (nonce == null || !MessageDigest.isEqual(ticket.getNonce().getBytes(StandardCharsets.UTF_8),
+				nonce.getBytes(StandardCharsets.UTF_8))) {
+			Metrics.getInstance().increment("migration.nonce.rejected");
+			return null;
+		}
+		migrationTickets.remove(clientId);
+		ticket.getExpiryTimer().cancel();
+		unregisterIdentity(clientId, ticket.getServerId());
+		Metrics.getInstance().increment("migration.completed");
+		Metrics.getInstance().max("migration.ms.max", System.currentTimeMillis() - ticket.getIssuedTime());
+		return ticket;
+	}
+
+	/**
+	 * Called by the timer wheel when a client did not arrive with its ticket.
+	 * 
+	 * @param clientId
+	 * @param ticket
+	 * @param onExpiry
+	 */
+	private void expireMigrationTicket(String clientId, MigrationTicket ticket, Runnable onExpiry) {
+		synchronized (this) {
+			if (!migrationTickets.remove(clientId, ticket)) {
+				return;
+			}
+			unregisterIdentity(clientId, ticket.getServerId());
+			Metrics.getInstance().increment("migration.expired");
+		}
+		System.out.println("[ Migration ticket of " + ticket + " expired ]");
+		onExpiry.run();
+	}
+
+	/**
+	 * Reserve an identity for a client of another server in the single round
+	 * trip protocol. The reservation is final unless the server aborts it with
+	 * a deleteidentity message.
+	 * 
+	 * @param clientId
+	 * @param serverId
+	 * @return true if the reservation was accepted
+	 */
+	public synchronized boolean reserveIdentity(String clientId, String serverId) {
+		if (isMyClient(clientId) || lockedClients.containsKey(clientId)
+				|| migrationTickets.containsKey(clientId)
+				|| (registeredIdentities.containsKey(clientId) && !registeredIdentities.get(clientId).equals(serverId))) {
+			Metrics.getInstance().increment("reserve.identity.rejected");
+			return false;
+		}
+		registeredIdentities.put(clientId, serverId);
+		Metrics.getInstance().increment("reserve.identity.accepted");
+		return true;
+	}
+
+	/**
+	 * Drop the identities reserved by a server which is dead. Such a server
+	 * can no longer abort its reservations with a deleteidentity message, so
+	 * they would otherwise be held for ever.
+	 * 
+	 * @param serverId
+	 */
+	public synchronized void dropReservations(String serverId) {
+		if (!config.isOptimistic()) {
+			return;
+		}
+		int dropped = 0;
+		for (Iterator<Map.Entry<String, String>> it = registeredIdentities.entrySet().iterator(); it.hasNext();) {
+			if (it.next().getValue().equals(serverId)) {
+				it.remove();
+				dropped++;
+			}
+		}
+		if (dropped > 0) {
+			Metrics.getInstance().add("reserve.identity.dropped", dropped);
+			System.out.println("[ Dropped " + dropped + " identities reserved by the dead server " + serverId + " ]");
+		}
+	}
+
+	/**
+	 * Reserve a room id for another server in the single round trip protocol.
+	 * The room is recorded straight away, and removed again if the server
+	 * aborts it with a deleteroom message.
+	 * 
+	 * @param roomId
+	 * @param serverId
+	 * @return true if the reservation was accepted
+	 */
+	public synchronized boolean reserveChatRoom(String roomId, String serverId) {
+		if (myChatRooms.containsKey(roomId) || lockedRoomIds.containsKey(roomId)
+				|| (othersChatRooms.containsKey(roomId) && !othersChatRooms.get(roomId).equals(serverId))) {
+			Metrics.getInstance().increment("reserve.roomid.rejected");
+			return false;
+		}
+		othersChatRooms.put(roomId, serverId);
+		Metrics.getInstance().increment("reserve.roomid.accepted");
+		return true;
+	}
+
+	/**
+	 * Register an identity used by a client of another server. Only the owners
+	 * of the identity in the hash ring keep these.
+	 * 
+	 * @param clientId
+	 * @param serverId
+	 */
+	public synchronized void registerIdentity(String clientId, String serverId) {
+		registeredIdentities.put(clientId, serverId);
+	}
+
+	/**
+	 * Remove a registered identity when the client leaves its server.
+	 * 
+	 * @param clientId
+	 * @param serverId
+	 */
+	public synchronized void unregisterIdentity(String clientId, String serverId) {
+		if (registeredIdentities.containsKey(clientId) && registeredIdentities.get(clientId).equals(serverId)) {
+			registeredIdentities.remove(clientId);
+		}
+	}
+
 	public synchronized ChatRoom addMemberToChatRoom(String roomId, String clientId, ClientWorker worker){
 		try {
 			ChatRoom room = getChatRoom(roomId);
@@ -245,12 +965,12 @@ public class ServerData {
 	 * @return
 	 */
 	public synchronized boolean addNewClient(String clientId) {
-		if (myClients.contains(clientId)) {
+		if (isMyClient(clientId)) {
 			return false;
 		} else {
-			myClients.add(clientId);
-			if (lockedClients.containsKey(clientId) && lockedClients.get(clientId).equals(myData.getId())) {
-				lockedClients.remove(clientId);
+			myClients.add(symbols.acquire(clientId));
+			if (lockedClients.containsKey(clientId) && lockedClients.get(clientId).getServerId().equals(myData.getId())) {
+				releaseLease(lockedClients, clientId);
 			}
 			System.out.println("[ Added a new client " + clientId + " ]");
 			return true;
@@ -264,12 +984,28 @@ public class ServerData {
 	 * @return
 	 */
 	public synchronized boolean isClientOwner(String clientId) {
-		for (ChatRoom chatRoom : myChatRooms.values()) {
-			if (chatRoom.getOwnerId().equals(clientId)) {
-				return true;
-			}
-		}
-		return false;
+		return ownedChatRooms.containsKey(symbols.lookup(clientId));
+	}
+
+	/**
+	 * Get the chat room of this server owned by the client.
+	 * 
+	 * @param clientId
+	 * @return the id of the room, or null if the client owns no room
+	 */
+	public synchronized String getOwnedChatRoomId(String clientId) {
+		ChatRoom room = ownedChatRooms.get(symbols.lookup(clientId));
+		return room == null ? null : room.getId();
+	}
+
+	/**
+	 * Check whether the client belongs to this server.
+	 * 
+	 * @param clientId
+	 * @return
+	 */
+	private boolean isMyClient(String clientId) {
+		return myClients.contains(symbols.lookup(clientId));
 	}
 
 	/**
@@ -297,6 +1033,39 @@ public class ServerData {
 		return null;
 	}
 
+	/**
+	 * Get the table of handles of identities.
+	 * 
+	 * @return
+	 */
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	/**
+	 * Get the table of workers of the members of chat rooms.
+	 * 
+	 * @return
+	 */
+	public SessionTable getSessionTable() {
+		return sessionTable;
+	}
+
+	/**
+	 * Drop a reference to the handle of an identity, and forget the worker of
+	 * the identity once nothing refers to the handle.
+	 * 
+	 * @param handle
+	 */
+	public void releaseHandle(int handle) {
+		// the handle is not given out again before its worker is forgotten
+		synchronized (symbols) {
+			if (symbols.release(handle)) {
+				sessionTable.clear(handle);
+			}
+		}
+	}
+
 	/**
 	 * Get the chat room given by the identifier.
 	 * 
@@ -319,7 +1088,7 @@ public class ServerData {
 	public synchronized void deleteChatRoom(String roomId, boolean ownerQuit) {
 		ChatRoom mainhall = getChatRoom(GlobalConstants.MAIN_HALL);
 		this.getChatRoom(roomId).prepareToDelete(mainhall, ownerQuit);
-		this.myChatRooms.remove(roomId);
+		removeChatRoom(roomId);
 	}
 	
 	/**
@@ -334,14 +1103,78 @@ public class ServerData {
 		}
 	}
 
+	/**
+	 * Create a room for a client of another server, which moves to this server
+	 * to own it. The room id may be locked by that server.
+	 * 
+	 * @param roomId
+	 * @param ownerId
+	 * @param serverId
+	 *            server the owner is moving away from
+	 * @return true if the room was created
+	 */
+	public synchronized boolean placeChatRoom(String roomId, String ownerId, String serverId) {
+		LockLease lease = lockedRoomIds.get(roomId);
+		if (myChatRooms.containsKey(roomId) || isClientOwner(ownerId)
+				|| (lease != null && !lease.getServerId().equals(serverId))) {
+			return false;
+		}
+		if (lease != null) {
+			releaseLease(lockedRoomIds, roomId);
+		}
+		othersChatRooms.remove(roomId);
+		putChatRoom(new ChatRoom(roomId, ownerId));
+		return true;
+	}
+
+	/**
+	 * Delete a room placed on this server if its owner never joined it.
+	 * 
+	 * @param roomId
+	 * @param ownerId
+	 * @return true if the room was deleted
+	 */
+	public synchronized boolean deleteEmptyChatRoom(String roomId, String ownerId) {
+		ChatRoom room = myChatRooms.get(roomId);
+		if (room == null || !room.getOwnerId().equals(ownerId) || room.getMemberCount() > 0) {
+			return false;
+		}
+		room.releaseHistory();
+		removeChatRoom(roomId);
+		return true;
+	}
+
+	/**
+	 * Get the number of clients of this server.
+	 * 
+	 * @return
+	 */
+	public synchronized int getMyClientCount() {
+		return myClients.size();
+	}
+
+	/**
+	 * Get the number of members in the chat rooms of this server.
+	 * 
+	 * @return
+	 */
+	public int getMemberCount() {
+		int members = 0;
+		for (ChatRoom room : myChatRooms.values()) {
+			members += room.getMemberCount();
+		}
+		return members;
+	}
+
 	/**
 	 * Remove a client belong to this server.
 	 * 
 	 * @param clientId
 	 */
 	public synchronized void removeMyClient(String clientId) {
-		if (myClients.contains(clientId)) {
-			myClients.remove(clientId);
+		int handle = symbols.lookup(clientId);
+		if (myClients.remove(handle)) {
+			releaseHandle(handle);
 		}
 	}
 
@@ -363,6 +1196,178 @@ public class ServerData {
 		this.myData = myData;
 	}
 
+	/**
+	 * Get configurations of this server.
+	 * 
+	 * @return
+	 */
+	public Config getConfig() {
+		return config;
+	}
+
+	/**
+	 * Set configurations of this server.
+	 * 
+	 * @param config
+	 */
+	public void setConfig(Config config) {
+		this.config = config;
+	}
+
+	/**
+	 * Get the consistent hash ring, or null if the hash ring mode is disabled.
+	 * 
+	 * @return
+	 */
+	public ConsistentHashRing getHashRing() {
+		return hashRing;
+	}
+
+	/**
+	 * Get the servers which should be asked to lock the given identity or room
+	 * id. These are all other servers, or only the owners of the key when the
+	 * hash ring mode is enabled.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public List<Server> getCoordinationTargets(String key) {
+		ConsistentHashRing ring = hashRing;
+		if (ring == null) {
+			return getOtherServers();
+		}
+		List<Server> targets = new ArrayList<Server>();
+		for (Server owner : ring.getOwners(key, config.getRingReplicas())) {
+			if (!owner.getId().equals(myData.getId())) {
+				targets.add(owner);
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * Set the consistent hash ring.
+	 * 
+	 * @param hashRing
+	 */
+	public void setHashRing(ConsistentHashRing hashRing) {
+		this.hashRing = hashRing;
+	}
+
+	/**
+	 * Get the timer wheel of the server.
+	 * 
+	 * @return
+	 */
+	public HashedTimerWheel getTimerWheel() {
+		return timerWheel;
+	}
+
+	/**
+	 * Set the timer wheel of the server.
+	 * 
+	 * @param timerWheel
+	 */
+	public void setTimerWheel(HashedTimerWheel timerWheel) {
+		this.timerWheel = timerWheel;
+	}
+
+	/**
+	 * Get the message log of the server.
+	 * 
+	 * @return the log, or null if chat messages are not logged
+	 */
+	public MessageLog getMessageLog() {
+		return messageLog;
+	}
+
+	/**
+	 * Set the message log of the server.
+	 * 
+	 * @param messageLog
+	 */
+	public void setMessageLog(MessageLog messageLog) {
+		this.messageLog = messageLog;
+	}
+
+	/**
+	 * Get the index of the message log.
+	 * 
+	 * @return the index, or null if the log is not indexed
+	 */
+	public MessageIndexer getMessageIndexer() {
+		return messageIndexer;
+	}
+
+	/**
+	 * Set the index of the message log.
+	 * 
+	 * @param messageIndexer
+	 */
+	public void setMessageIndexer(MessageIndexer messageIndexer) {
+		this.messageIndexer = messageIndexer;
+	}
+
+	/**
+	 * Get the queue which paces the identity locks of new clients.
+	 * 
+	 * @return the queue, or null if identities are locked at once
+	 */
+	public IdentityAdmission getIdentityAdmission() {
+		return identityAdmission;
+	}
+
+	/**
+	 * Set the queue which paces the identity locks of new clients.
+	 * 
+	 * @param identityAdmission
+	 */
+	public void setIdentityAdmission(IdentityAdmission identityAdmission) {
+		this.identityAdmission = identityAdmission;
+	}
+
+	/**
+	 * Get the thread which flushes the output of client connections.
+	 * 
+	 * @return the thread, or null if every message is flushed at once
+	 */
+	public OutputFlusher getOutputFlusher() {
+		return outputFlusher;
+	}
+
+	/**
+	 * Set the thread which flushes the output of client connections.
+	 * 
+	 * @param outputFlusher
+	 */
+	public void setOutputFlusher(OutputFlusher outputFlusher) {
+		this.outputFlusher = outputFlusher;
+	}
+
+	/**
+	 * Search the message log.
+	 * 
+	 * @param roomId
+	 *            room of the messages, or null for any room
+	 * @param identity
+	 *            sender of the messages, or null for anyone
+	 * @param text
+	 *            words the messages contain, or null
+	 * @param limit
+	 *            requested number of messages, or null for the maximum
+	 * @return matching messages, oldest first, empty if the log is not indexed
+	 */
+	public List<JSONObject> searchMessages(String roomId, String identity, String text, Number limit) {
+		if (messageIndexer == null) {
+			return new ArrayList<JSONObject>();
+		}
+		int maxResults = config.getSearchLimit();
+		if (limit != null && limit.intValue() < maxResults) {
+			maxResults = limit.intValue();
+		}
+		return messageIndexer.search(roomId, identity, text, maxResults);
+	}
+
 	/**
 	 * Print data.
 	 */
@@ -370,9 +1375,13 @@ public class ServerData {
 		System.out.println("=================================");
 		System.out.println("===All my chat rooms: " + myChatRooms.keySet());
 		System.out.println("===All otherservers chat rooms" + othersChatRooms.keySet());
-		System.out.println("===All locked chat rooms: " + lockedRoomIds.keySet());
-		System.out.println("===All my clients: " + myClients);
-		System.out.println("===All locked clients: " + lockedClients.keySet());
+		System.out.println("===All locked chat rooms: " + lockedRoomIds);
+		System.out.println("===All my clients: " + getMyClients());
+		System.out.println("===All locked clients: " + lockedClients);
+		System.out.println("===All registered clients: " + registeredIdentities.keySet());
+		System.out.println("===All migrating clients: " + migrationTickets.values());
+		System.out.println("===Load of other servers: " + LoadTracker.getInstance().getReports());
+		System.out.println("===Metrics: " + Metrics.getInstance().getSnapshot());
 		System.out.println("=================================");
 	}
 }
@@ -0,0 +1,58 @@
+package unimelb.ds.project1;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the client worker of every identity which is a member of a
+ * chat room, in an array indexed by the handle of the identity. The handles of
+ * the {@link SymbolTable} are dense, so the array is a compact table of the
+ * connected clients, and large chat rooms only keep a bit per handle.
+ *
+ * Workers are set while holding the lock of the chat room the client joins,
+ * so a room reading the table while holding its lock sees the worker of each
+ * of its members.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class SessionTable {
+	/**
+	 * Workers by the handle of their identity
+	 */
+	private volatile ClientWorker[] workers = new ClientWorker[64];
+
+	/**
+	 * Set the worker of an identity.
+	 *
+	 * @param handle
+	 * @param worker
+	 */
+	public synchronized void set(int handle, ClientWorker worker) {
+		if (handle >= workers.length) {
+			workers = Arrays.copyOf(workers, Math.max(handle + 1, workers.length * 2));
+		}
+		workers[handle] = worker;
+	}
+
+	/**
+	 * Get the worker of an identity.
+	 *
+	 * @param handle
+	 * @return the worker, or null if there is none
+	 */
+	public ClientWorker get(int handle) {
+		ClientWorker[] current = workers;
+		return handle >= 0 && handle < current.length ? current[handle] : null;
+	}
+
+	/**
+	 * Forget the worker of an identity whose handle was freed.
+	 *
+	 * @param handle
+	 */
+	public synchronized void clear(int handle) {
+		if (handle >= 0 && handle < workers.length) {
+			workers[handle] = null;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package unimelb.ds.project1;
+
+import java.io.IOException;
+
+/**
+ * This thread periodically writes the chat rooms of this server to the
+ * snapshot file.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class SnapshotWriter extends Thread {
+	/**
+	 * Time between snapshots in milliseconds
+	 */
+	private long interval;
+
+	/**
+	 * Snapshot file
+	 */
+	private RoomSnapshot snapshot;
+
+	/**
+	 * Constructor
+	 *
+	 * @param snapshot
+	 * @param interval
+	 */
+	public SnapshotWriter(RoomSnapshot snapshot, long interval) {
+		this.snapshot = snapshot;
+		this.interval = interval;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			writeSnapshot();
+		}
+	}
+
+	/**
+	 * Write the current chat rooms of this server.
+	 */
+	private void writeSnapshot() {
+		ServerData serverData = ServerData.getInstance();
+		try {
+			snapshot.write(serverData.getMyData().getId(), serverData.getMyChatRoomOwners());
+		} catch (IOException e) {
+			Metrics.getInstance().increment("snapshot.failed");
+			System.err.println(getName() + ": Error while writing the snapshot: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package unimelb.ds.project1;
+
+import java.util.Arrays;
+
+/**
+ * This class maps identities to small integer handles, so that the
+ * membership and ownership of this server can be kept in maps and sets of
+ * integers.
+ *
+ * Handles are dense: a released handle is given to the next new name. Every
+ * structure which keeps a handle acquires it, and releases it when it drops
+ * the handle, so a name keeps its handle as long as anything still uses it.
+ *
+ * @author Sewwandi Perera
+ *
+ */
+public class SymbolTable {
+	/**
+	 * Value of a handle which was not found
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * Names by handle
+	 */
+	private String[] names = new String[64];
+
+	/**
+	 * Number of structures holding each handle
+	 */
+	private int[] references = new int[64];
+
+	/**
+	 * Released handles, which are given out first
+	 */
+	private int[] freeHandles = new int[16];
+
+	/**
+	 * Number of released handles
+	 */
+	private int freeCount = 0;
+
+	/**
+	 * Lowest handle which was never given out
+	 */
+	private int nextHandle = 0;
+
+	/**
+	 * Open addressing table of handles plus one by the hash of their names, 0
+	 * for an empty slot
+	 */
+	private int[] index = new int[128];
+
+	/**
+	 * Number of names in the table
+	 */
+	private int size = 0;
+
+	/**
+	 * Get the handle of a name, giving it a new handle if it has none, and
+	 * count one more reference to it.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public synchronized int acquire(String name) {
+		int slot = findSlot(name);
+		if (slot >= 0) {
+			int handle = index[slot] - 1;
+			references[handle]++;
+			return handle;
+		}
+		int handle = freeCount > 0 ? freeHandles[--freeCount] : nextHandle++;
+		if (handle == names.length) {
+			names = Arrays.copyOf(names, handle * 2);
+			references = Arrays.copyOf(references, handle * 2);
+		}
+		names[handle] = name;
+		references[handle] = 1;
+		index[-slot - 1] = handle + 1;
+		if (++size * 2 > index.length) {
+			rehash(index.length * 2);
+		}
+		Metrics.getInstance().set("symbols.size", size);
+		return handle;
+	}
+
+	/**
+	 * Count one reference less to a handle. The handle is freed when it has no
+	 * more references.
+	 *
+	 * @param handle
+	 * @return true if the handle was freed
+	 */
+	public synchronized boolean release(int handle) {
+		if (handle < 0 || handle >= nextHandle || references[handle] == 0 || --references[handle] > 0) {
+			return false;
+		}
+		removeSlot(findSlot(names[handle]));
+		names[handle] = null;
+		if (freeCount == freeHandles.length) {
+			freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+		}
+		freeHandles[freeCount++] = handle;
+		size--;
+		Metrics.getInstance().set("symbols.size", size);
+		return true;
+	}
+
+	/**
+	 * Get the handle of a name without counting a reference to it.
+	 *
+	 * @param name
+	 * @return the handle, or {@link #NONE} if the name has no handle
+	 */
+	public synchronized int lookup(String name) {
+		if (name == null) {
+			return NONE;
+		}
+		int slot = findSlot(name);
+		return slot >= 0 ? index[slot] - 1 : NONE;
+	}
+
+	/**
+	 * Get the name of a handle.
+	 *
+	 * @param handle
+	 * @return the name, or null if the handle is not in use
+	 */
+	public synchronized String getName(int handle) {
+		return handle >= 0 && handle < nextHandle ? names[handle] : null;
+	}
+
+	/**
+	 * Find the slot of a name in the index.
+	 *
+	 * @param name
+	 * @return the slot, or minus one minus the empty slot where the name
+	 *         belongs
+	 */
+	private int findSlot(String name) {
+		int mask = index.length - 1;
+		int slot = IntHashSet.mix(name.hashCode()) & mask;
+		while (index[slot] != 0) {
+			if (names[index[slot] - 1].equals(name)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -slot - 1;
+	}
+
+	/**
+	 * Empty a slot of the index, moving back the entries after it which would
+	 * no longer be found.
+	 *
+	 * @param slot
+	 */
+	private void removeSlot(int slot) {
+		int mask = index.length - 1;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (index[next] == 0) {
+				break;
+			}
+			int home = IntHashSet.mix(names[index[next] - 1].hashCode()) & mask;
+			if (IntHashSet.isOutside(home, slot, next)) {
+				index[slot] = index[next];
+				slot = next;
+			}
+		}
+		index[slot] = 0;
+	}
+
+	private void rehash(int capacity) {
+		int[] old = index;
+		index = new int[capacity];
+		for (int entry : old) {
+			if (entry != 0) {
+				index[-findSlot(names[entry - 1]) - 1] = entry;
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package unimelb.ds.project1;
+
+/**
+ * Token bucket which allows a number of events per second on average, and
+ * bursts of up to its capacity. Instances are not thread safe, each is meant
+ * to be used by a single thread.
+ * 
+ * @author Sewwandi Perera
+ *
+ */
+public class TokenBucket {
+	/**
+	 * Tokens added per second
+	 */
+	private double rate;
+
+	/**
+	 * Maximum number of tokens
+	 */
+	private double capacity;
+
+	/**
+	 * Tokens currently available
+	 */
+	private double tokens;
+
+	/**
+	 * Time the tokens were last refilled in nanoseconds
+	 */
+	private long lastRefill;
+
+	/**
+	 * Constructor. The bucket starts full.
+	 * 
+	 * @param rate
+	 *            tokens added per second
+	 * @param capacity
+	 *            maximum number of tokens
+	 */
+	public TokenBucket(double rate, double capacity) {
+		this.rate = rate;
+		this.capacity = Math.max(capacity, 1);
+		this.tokens = this.capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Take a token if one is available.
+	 * 
+	 * @return false if the event should be throttled
+	 */
+	public boolean tryAcquire() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+		lastRefill = now;
+		if (tokens < 1) {
+			return false;
+		}
+		tokens--;
+		return true;
+	}
+}